@@ -0,0 +1,67 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.graphics;
+
+/**
+ * Result of an AssetLoader task. Never blocks, callers poll isDone once per
+ * frame instead.
+ *
+ * @param <T>
+ *            Decoded data type
+ */
+public final class AssetFuture<T> {
+
+	// Set once task has finished, written last.
+	private volatile boolean mDone;
+	// Exception task failed with, null on success.
+	private Exception mError;
+	// Decoded data, null on failure.
+	private T mValue;
+
+	/**
+	 * Returns decoded data, or null if task has not finished or has failed.
+	 */
+	public T get() {
+		return mDone ? mValue : null;
+	}
+
+	/**
+	 * Returns exception task failed with, or null if task has not finished or
+	 * has succeeded.
+	 */
+	public Exception getError() {
+		return mDone ? mError : null;
+	}
+
+	/**
+	 * Returns true once task has been uploaded or has failed.
+	 */
+	public boolean isDone() {
+		return mDone;
+	}
+
+	void complete(T value) {
+		mValue = value;
+		mDone = true;
+	}
+
+	void fail(Exception error) {
+		mError = error;
+		mDone = true;
+	}
+
+}
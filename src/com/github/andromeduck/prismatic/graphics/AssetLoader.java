@@ -0,0 +1,261 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.graphics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Loads assets in two stages. Reading and decoding is done on background
+ * threads, after which decoded data is queued for GL thread, which only
+ * uploads it to GL objects. Uploads are pumped once per frame under a time
+ * budget, so that loading is spread over several frames instead of stalling
+ * one.
+ */
+public final class AssetLoader {
+
+	/**
+	 * Asset loading task.
+	 *
+	 * @param <T>
+	 *            Decoded data type
+	 */
+	public interface Task<T> {
+
+		/**
+		 * Reads and decodes asset. Called from background thread.
+		 */
+		T decode() throws Exception;
+
+		/**
+		 * Uploads decoded asset. Called from GL thread.
+		 */
+		void upload(T data) throws Exception;
+
+	}
+
+	/**
+	 * Decoded image, tightly packed RGBA rows in a direct buffer.
+	 */
+	public static final class Image {
+		public int mHeight;
+		public ByteBuffer mPixels;
+		public int mWidth;
+	}
+
+	// Pending upload, decoded data with its task and future.
+	private static final class Upload<T> {
+		final T mData;
+		final AssetFuture<T> mFuture;
+		final Task<T> mTask;
+
+		Upload(Task<T> task, T data, AssetFuture<T> future) {
+			mTask = task;
+			mData = data;
+			mFuture = future;
+		}
+
+		void run() {
+			try {
+				mTask.upload(mData);
+				mFuture.complete(mData);
+			} catch (Exception ex) {
+				mFuture.fail(ex);
+			}
+		}
+	}
+
+	// Tasks finished, uploaded or failed.
+	private final AtomicInteger mCompletedCount = new AtomicInteger();
+	// Background threads reading and decoding.
+	private final ExecutorService mExecutor;
+	// Tasks submitted.
+	private final AtomicInteger mSubmittedCount = new AtomicInteger();
+	// Decoded data waiting for upload on GL thread.
+	private final ConcurrentLinkedQueue<Upload<?>> mUploads = new ConcurrentLinkedQueue<Upload<?>>();
+
+	/**
+	 * Creates new loader.
+	 *
+	 * @param threadCount
+	 *            Number of background threads
+	 */
+	public AssetLoader(int threadCount) {
+		mExecutor = Executors.newFixedThreadPool(threadCount,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "AssetLoader");
+						thread.setDaemon(true);
+						thread.setPriority(Thread.MIN_PRIORITY);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Reads whole stream and decodes it into image. Stream is closed.
+	 */
+	public static Image decodeImage(InputStream in) throws IOException {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		options.inScaled = false;
+		Bitmap bitmap;
+		try {
+			bitmap = BitmapFactory.decodeStream(in, null, options);
+		} finally {
+			in.close();
+		}
+		if (bitmap == null) {
+			throw new IOException("Unable to decode image");
+		}
+
+		Image image = new Image();
+		image.mWidth = bitmap.getWidth();
+		image.mHeight = bitmap.getHeight();
+		image.mPixels = ByteBuffer.allocateDirect(bitmap.getByteCount())
+				.order(ByteOrder.nativeOrder());
+		bitmap.copyPixelsToBuffer(image.mPixels);
+		image.mPixels.position(0);
+		bitmap.recycle();
+		return image;
+	}
+
+	/**
+	 * Reads whole stream as UTF-8 text. Stream is closed.
+	 */
+	public static String decodeString(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[1024];
+			int len;
+			while ((len = in.read(buf)) != -1) {
+				out.write(buf, 0, len);
+			}
+			return out.toString("UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Getter for number of tasks finished since last resetProgress.
+	 */
+	public int getCompletedCount() {
+		return mCompletedCount.get();
+	}
+
+	/**
+	 * Returns fraction of tasks submitted since last resetProgress that have
+	 * finished, from 0 to 1.
+	 */
+	public float getProgress() {
+		int submitted = mSubmittedCount.get();
+		return submitted == 0 ? 1f : (float) mCompletedCount.get() / submitted;
+	}
+
+	/**
+	 * Getter for number of tasks submitted since last resetProgress.
+	 */
+	public int getSubmittedCount() {
+		return mSubmittedCount.get();
+	}
+
+	/**
+	 * Returns true if every submitted task has finished.
+	 */
+	public boolean isIdle() {
+		return mCompletedCount.get() == mSubmittedCount.get();
+	}
+
+	/**
+	 * Resets progress counters. Should be called only while idle.
+	 */
+	public void resetProgress() {
+		mSubmittedCount.set(0);
+		mCompletedCount.set(0);
+	}
+
+	/**
+	 * Stops background threads. Tasks not decoded yet are dropped.
+	 */
+	public void shutdown() {
+		mExecutor.shutdownNow();
+	}
+
+	/**
+	 * Submits task for decoding on background thread. Can be called from any
+	 * thread.
+	 *
+	 * @param task
+	 *            Task to run
+	 * @return Future completed once decoded data has been uploaded.
+	 */
+	public <T> AssetFuture<T> submit(final Task<T> task) {
+		final AssetFuture<T> future = new AssetFuture<T>();
+		mSubmittedCount.incrementAndGet();
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					T data = task.decode();
+					mUploads.add(new Upload<T>(task, data, future));
+				} catch (Exception ex) {
+					future.fail(ex);
+					mCompletedCount.incrementAndGet();
+				}
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Uploads decoded assets until queue is empty or time budget has been
+	 * spent. At least one upload is done per call, so that loading always
+	 * progresses. To be called from GL thread once per frame.
+	 *
+	 * @param budgetNanos
+	 *            Time budget in nanoseconds
+	 * @return Number of uploads done.
+	 */
+	public int upload(long budgetNanos) {
+		long startTime = System.nanoTime();
+		int count = 0;
+		Upload<?> upload;
+		while ((upload = mUploads.poll()) != null) {
+			upload.run();
+			mCompletedCount.incrementAndGet();
+			++count;
+			if (System.nanoTime() - startTime >= budgetNanos) {
+				break;
+			}
+		}
+		return count;
+	}
+
+}
@@ -0,0 +1,298 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.graphics;
+
+import android.opengl.GLES30;
+
+/**
+ * Bloom filter working on a chain of progressively downsampled textures.
+ * Bright parts of the source are extracted into half resolution, then every
+ * level is downsampled from the previous one and blurred with a separable
+ * Gaussian. Blurred levels are finally added back up the chain, so that the
+ * first level holds a wide bloom at the cost of small per level kernels.
+ * <p/>
+ * Blur weights and offsets are precomputed on CPU. Neighbouring texels are
+ * merged into single bilinear taps, so a kernel of n taps covers 2n - 1
+ * texels. Tap count is compiled into the blur shader as a constant.
+ */
+public final class BloomStage implements GpuResource {
+
+	// Texture fetches per blur pass for different quality settings.
+	public static final int QUALITY_LOW = 5;
+	public static final int QUALITY_MEDIUM = 9;
+	public static final int QUALITY_HIGH = 13;
+
+	// Brightness threshold for first downsample.
+	private static final float THRESHOLD = 0.6f;
+
+	private final FBO[] mLevels;
+	// Blur offsets in texels, one per tap on one side.
+	private float[] mOffsets;
+	// Program binary cache, null if programs are always compiled.
+	private ProgramCache mProgramCache;
+	private final Shader mShaderBlur = new Shader();
+	private final Shader mShaderDownsample = new Shader();
+	// Blur shader source without tap count definition.
+	private String mSourceBlur;
+	// Downsample shader source, null if programs have not been set.
+	private String mSourceDownsample;
+	private String mSourceVertex;
+	// Number of bilinear taps per blur pass.
+	private int mTapCount = QUALITY_MEDIUM;
+	// Uniform locations, resolved once programs are linked.
+	private int mUniformOffsets;
+	private int mUniformTexelSize;
+	private int mUniformThreshold;
+	private int mUniformWeights;
+	// Blur weights, one per tap on one side.
+	private float[] mWeights;
+
+	/**
+	 * Creates new bloom stage.
+	 *
+	 * @param levelCount
+	 *            Number of downsampled levels, first one being half size
+	 */
+	public BloomStage(int levelCount) {
+		mLevels = new FBO[levelCount];
+		for (int i = 0; i < levelCount; ++i) {
+			mLevels[i] = new FBO();
+		}
+		calculateWeights();
+	}
+
+	/**
+	 * Getter for bloom intensity scale. Levels are summed together in
+	 * resulting texture so it should be scaled down accordingly.
+	 *
+	 * @return Scale for resulting texture.
+	 */
+	public float getScale() {
+		return 1f / mLevels.length;
+	}
+
+	/**
+	 * Getter for number of taps per blur pass.
+	 */
+	public int getTapCount() {
+		return mTapCount;
+	}
+
+	/**
+	 * Getter for resulting bloom texture. Texture is half the size of source.
+	 *
+	 * @return Texture id.
+	 */
+	public int getTexture() {
+		return mLevels[0].getTexture(0);
+	}
+
+	/**
+	 * Allocates downsample chain for given source size.
+	 *
+	 * @param width
+	 *            Source width in pixels
+	 * @param height
+	 *            Source height in pixels
+	 */
+	public void init(int width, int height) {
+		for (int i = 0; i < mLevels.length; ++i) {
+			width = Math.max(1, width / 2);
+			height = Math.max(1, height / 2);
+			mLevels[i].init(width, height, 2);
+			// Linear minification is needed for 2:1 downsampling.
+			mLevels[i].setFilter(GLES30.GL_LINEAR, GLES30.GL_LINEAR);
+		}
+	}
+
+	@Override
+	public void invalidate() {
+		for (FBO level : mLevels) {
+			level.invalidate();
+		}
+		mShaderBlur.invalidate();
+		mShaderDownsample.invalidate();
+	}
+
+	@Override
+	public void restore() throws Exception {
+		for (FBO level : mLevels) {
+			level.restore();
+		}
+		// Uniform locations are resolved again along with programs.
+		if (mSourceDownsample != null && mShaderDownsample.getProgram() == 0) {
+			setPrograms(mSourceVertex, mSourceDownsample, mSourceBlur,
+					mProgramCache);
+		}
+	}
+
+	/**
+	 * Renders bloom for given source texture. Depth test is expected to be
+	 * disabled and blending is left disabled.
+	 *
+	 * @param sourceTexture
+	 *            Texture bright areas are extracted from
+	 * @param quad
+	 *            Full screen quad
+	 */
+	public void render(int sourceTexture, Mesh quad) throws Exception {
+		if (mShaderBlur.getProgram() == 0) {
+			setProgram(mSourceVertex, mSourceBlur);
+		}
+
+		// Downsample and blur every level.
+		int source = sourceTexture;
+		for (int i = 0; i < mLevels.length; ++i) {
+			FBO level = mLevels[i];
+
+			level.bindTexture(GLES30.GL_TEXTURE_2D, 0);
+			drawDownsample(source, i == 0 ? THRESHOLD : 0f, quad);
+
+			mShaderBlur.useProgram();
+			GLES30.glUniform1fv(mUniformWeights, mWeights.length, mWeights, 0);
+			GLES30.glUniform1fv(mUniformOffsets, mOffsets.length, mOffsets, 0);
+			quad.bind(mShaderBlur);
+
+			level.bindTexture(GLES30.GL_TEXTURE_2D, 1);
+			drawBlur(level.getTexture(0), 1f / level.getWidth(), 0f, quad);
+			level.bindTexture(GLES30.GL_TEXTURE_2D, 0);
+			drawBlur(level.getTexture(1), 0f, 1f / level.getHeight(), quad);
+
+			source = level.getTexture(0);
+		}
+
+		// Add smaller levels back up the chain.
+		GLState.enable(GLES30.GL_BLEND);
+		GLState.blendFunc(GLES30.GL_ONE, GLES30.GL_ONE);
+		for (int i = mLevels.length - 2; i >= 0; --i) {
+			mLevels[i].bindTexture(GLES30.GL_TEXTURE_2D, 0);
+			drawDownsample(mLevels[i + 1].getTexture(0), 0f, quad);
+		}
+		GLState.disable(GLES30.GL_BLEND);
+	}
+
+	/**
+	 * Releases all FBOs and programs.
+	 */
+	public void reset() {
+		for (FBO level : mLevels) {
+			level.reset();
+		}
+		mShaderBlur.deleteProgram();
+		mShaderDownsample.deleteProgram();
+		mSourceDownsample = null;
+	}
+
+	/**
+	 * Compiles bloom programs from given sources.
+	 *
+	 * @param vertexSource
+	 *            Full screen quad vertex shader
+	 * @param downsampleSource
+	 *            Threshold and downsample fragment shader
+	 * @param blurSource
+	 *            Separable blur fragment shader, without TAP_COUNT defined
+	 * @param cache
+	 *            Program binary cache or null
+	 */
+	public void setPrograms(String vertexSource, String downsampleSource,
+			String blurSource, ProgramCache cache) throws Exception {
+		mSourceVertex = vertexSource;
+		mSourceDownsample = downsampleSource;
+		mSourceBlur = blurSource;
+		mProgramCache = cache;
+		mShaderDownsample.setProgram(vertexSource, downsampleSource, cache);
+		mUniformThreshold = mShaderDownsample.getUniform("uThreshold",
+				GLES30.GL_FLOAT);
+		setProgram(vertexSource, blurSource);
+	}
+
+	/**
+	 * Sets number of bilinear taps per blur pass. Blur program is recompiled
+	 * on next render if count changes.
+	 *
+	 * @param tapCount
+	 *            Odd number of taps, e.g QUALITY_MEDIUM
+	 */
+	public void setTapCount(int tapCount) {
+		if (tapCount < 1 || tapCount % 2 == 0) {
+			throw new IllegalArgumentException("Tap count must be odd: "
+					+ tapCount);
+		}
+		if (tapCount != mTapCount) {
+			mTapCount = tapCount;
+			calculateWeights();
+			mShaderBlur.deleteProgram();
+		}
+	}
+
+	/**
+	 * Calculates normalized Gaussian weights for texels from center out to
+	 * radius and merges them pairwise into bilinear taps.
+	 */
+	private void calculateWeights() {
+		int taps = mTapCount / 2 + 1;
+		int radius = (taps - 1) * 2;
+		double sigma = Math.max(1.0, (radius + 1) / 3.0);
+
+		double[] texelWeights = new double[radius + 1];
+		double sum = 0;
+		for (int i = 0; i <= radius; ++i) {
+			texelWeights[i] = Math.exp(-(i * i) / (2.0 * sigma * sigma));
+			sum += i == 0 ? texelWeights[i] : 2 * texelWeights[i];
+		}
+
+		mWeights = new float[taps];
+		mOffsets = new float[taps];
+		mWeights[0] = (float) (texelWeights[0] / sum);
+		for (int i = 1; i < taps; ++i) {
+			double w1 = texelWeights[i * 2 - 1];
+			double w2 = texelWeights[i * 2];
+			mWeights[i] = (float) ((w1 + w2) / sum);
+			mOffsets[i] = (float) (((i * 2 - 1) * w1 + (i * 2) * w2) / (w1 + w2));
+		}
+	}
+
+	private void drawBlur(int texture, float texelX, float texelY, Mesh quad) {
+		GLState.bindTexture(0, GLES30.GL_TEXTURE_2D, texture);
+		GLES30.glUniform2f(mUniformTexelSize, texelX, texelY);
+		quad.draw(GLES30.GL_TRIANGLE_STRIP);
+	}
+
+	private void drawDownsample(int texture, float threshold, Mesh quad) {
+		mShaderDownsample.useProgram();
+		GLState.bindTexture(0, GLES30.GL_TEXTURE_2D, texture);
+		GLES30.glUniform1f(mUniformThreshold, threshold);
+		quad.bind(mShaderDownsample);
+		quad.draw(GLES30.GL_TRIANGLE_STRIP);
+	}
+
+	private void setProgram(String vertexSource, String blurSource)
+			throws Exception {
+		// Definition has to follow #version directive on first line.
+		int versionEnd = blurSource.indexOf('\n') + 1;
+		String source = blurSource.substring(0, versionEnd)
+				+ "#define TAP_COUNT " + (mTapCount / 2 + 1) + "\n"
+				+ blurSource.substring(versionEnd);
+		mShaderBlur.setProgram(vertexSource, source, mProgramCache);
+		mUniformOffsets = mShaderBlur.getUniform("uOffsets", GLES30.GL_FLOAT);
+		mUniformTexelSize = mShaderBlur.getUniform("uTexelSize",
+				GLES30.GL_FLOAT_VEC2);
+		mUniformWeights = mShaderBlur.getUniform("uWeights", GLES30.GL_FLOAT);
+	}
+
+}
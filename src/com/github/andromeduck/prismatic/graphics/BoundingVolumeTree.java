@@ -0,0 +1,483 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.graphics;
+
+import java.util.IdentityHashMap;
+
+import com.github.andromeduck.prismatic.graphics.blocks.BoundsListener;
+import com.github.andromeduck.prismatic.graphics.blocks.Drawable;
+
+/**
+ * Dynamic axis aligned bounding box tree over drawables. Leaves hold
+ * bounding sphere boxes enlarged by a margin, so that small movements do not
+ * change the tree at all. Drawables which move out of their leaf box are
+ * reinserted lazily on next query, choosing siblings by surface area
+ * heuristic and keeping the tree balanced with rotations.
+ * <p/>
+ * Frustum queries walk the tree with an explicit stack and track which planes
+ * still need testing, so subtrees outside any plane are rejected and subtrees
+ * inside all planes are accepted without further tests.
+ */
+public final class BoundingVolumeTree implements BoundsListener {
+
+	// Leaf box enlargement on every side.
+	private static final float MARGIN = 0.5f;
+	private static final int NULL = -1;
+
+	// Node boxes, {minX, minY, minZ, maxX, maxY, maxZ} per node.
+	private float[] mBounds;
+	// Child node indices, NULL for leaves.
+	private int[] mChild1;
+	private int[] mChild2;
+	// Drawables of leaf nodes.
+	private Drawable[] mDrawables;
+	// Head of free node list, linked through mParent.
+	private int mFreeList = NULL;
+	// Node heights, 0 for leaves.
+	private int[] mHeight;
+	// Leaf node of every drawable.
+	private final IdentityHashMap<Drawable, Integer> mLeaves = new IdentityHashMap<Drawable, Integer>();
+	// Leaves whose drawables have reported bounds changes.
+	private int[] mMoved = new int[16];
+	private int mMovedCount = 0;
+	private boolean[] mMovedFlags;
+	// Parent node indices, NULL for root.
+	private int[] mParent;
+	// Drawables found by last query.
+	private Drawable[] mResult = new Drawable[64];
+	private int mResultCount = 0;
+	private int mRoot = NULL;
+	// Traversal stack, node index and plane mask per entry.
+	private int[] mStack = new int[64];
+
+	public BoundingVolumeTree() {
+		allocate(16);
+	}
+
+	@Override
+	public void boundsChanged(Drawable drawable) {
+		Integer leaf = mLeaves.get(drawable);
+		if (leaf == null || mMovedFlags[leaf]) {
+			return;
+		}
+		if (mMovedCount == mMoved.length) {
+			int[] moved = new int[mMovedCount * 2];
+			System.arraycopy(mMoved, 0, moved, 0, mMovedCount);
+			mMoved = moved;
+		}
+		mMoved[mMovedCount++] = leaf;
+		mMovedFlags[leaf] = true;
+	}
+
+	/**
+	 * Getter for drawables found by last query. Array is valid up to
+	 * getResultCount() entries.
+	 */
+	public Drawable[] getResult() {
+		return mResult;
+	}
+
+	/**
+	 * Getter for number of drawables found by last query.
+	 */
+	public int getResultCount() {
+		return mResultCount;
+	}
+
+	/**
+	 * Adds drawable into tree.
+	 *
+	 * @param drawable
+	 *            Drawable to add
+	 */
+	public void insert(Drawable drawable) {
+		if (mLeaves.containsKey(drawable)) {
+			return;
+		}
+		int leaf = allocateNode();
+		mDrawables[leaf] = drawable;
+		setLeafBounds(leaf);
+		insertLeaf(leaf);
+		mLeaves.put(drawable, leaf);
+	}
+
+	/**
+	 * Finds all drawables whose leaf boxes intersect given frustum. Moved
+	 * drawables are refitted first.
+	 *
+	 * @param planes
+	 *            Six frustum planes as given by Visibility.extractPlanes
+	 * @return Number of drawables found.
+	 */
+	public int query(float[] planes) {
+		refit();
+		mResultCount = 0;
+		if (mRoot == NULL) {
+			return 0;
+		}
+
+		int stackSize = 0;
+		mStack[stackSize++] = mRoot;
+		mStack[stackSize++] = 0x3F;
+		while (stackSize > 0) {
+			int mask = mStack[--stackSize];
+			int node = mStack[--stackSize];
+
+			// Test planes box is not known to be inside of yet.
+			int k = node * 6;
+			float cx = (mBounds[k] + mBounds[k + 3]) * 0.5f;
+			float cy = (mBounds[k + 1] + mBounds[k + 4]) * 0.5f;
+			float cz = (mBounds[k + 2] + mBounds[k + 5]) * 0.5f;
+			float ex = mBounds[k + 3] - cx;
+			float ey = mBounds[k + 4] - cy;
+			float ez = mBounds[k + 5] - cz;
+			boolean outside = false;
+			for (int plane = 0; plane < 6 && mask != 0; ++plane) {
+				if ((mask & (1 << plane)) == 0) {
+					continue;
+				}
+				int p = plane * 4;
+				float dist = planes[p] * cx + planes[p + 1] * cy + planes[p + 2]
+						* cz + planes[p + 3];
+				float radius = Math.abs(planes[p]) * ex
+						+ Math.abs(planes[p + 1]) * ey
+						+ Math.abs(planes[p + 2]) * ez;
+				if (dist < -radius) {
+					outside = true;
+					break;
+				}
+				if (dist >= radius) {
+					mask &= ~(1 << plane);
+				}
+			}
+			if (outside) {
+				continue;
+			}
+
+			if (mChild1[node] == NULL) {
+				addResult(mDrawables[node]);
+			} else {
+				if (stackSize + 4 > mStack.length) {
+					int[] stack = new int[mStack.length * 2];
+					System.arraycopy(mStack, 0, stack, 0, stackSize);
+					mStack = stack;
+				}
+				mStack[stackSize++] = mChild1[node];
+				mStack[stackSize++] = mask;
+				mStack[stackSize++] = mChild2[node];
+				mStack[stackSize++] = mask;
+			}
+		}
+		return mResultCount;
+	}
+
+	/**
+	 * Reinserts drawables which have moved out of their leaf boxes.
+	 */
+	public void refit() {
+		for (int i = 0; i < mMovedCount; ++i) {
+			int leaf = mMoved[i];
+			mMovedFlags[leaf] = false;
+			if (mDrawables[leaf] == null || contains(leaf)) {
+				continue;
+			}
+			removeLeaf(leaf);
+			setLeafBounds(leaf);
+			insertLeaf(leaf);
+		}
+		mMovedCount = 0;
+	}
+
+	/**
+	 * Removes drawable from tree.
+	 *
+	 * @param drawable
+	 *            Drawable to remove
+	 */
+	public void remove(Drawable drawable) {
+		Integer leaf = mLeaves.remove(drawable);
+		if (leaf == null) {
+			return;
+		}
+		removeLeaf(leaf);
+		mDrawables[leaf] = null;
+		freeNode(leaf);
+	}
+
+	private void addResult(Drawable drawable) {
+		if (mResultCount == mResult.length) {
+			Drawable[] result = new Drawable[mResultCount * 2];
+			System.arraycopy(mResult, 0, result, 0, mResultCount);
+			mResult = result;
+		}
+		mResult[mResultCount++] = drawable;
+	}
+
+	private void allocate(int capacity) {
+		int oldCapacity = mParent != null ? mParent.length : 0;
+		float[] bounds = new float[capacity * 6];
+		int[] child1 = new int[capacity];
+		int[] child2 = new int[capacity];
+		Drawable[] drawables = new Drawable[capacity];
+		int[] height = new int[capacity];
+		boolean[] movedFlags = new boolean[capacity];
+		int[] parent = new int[capacity];
+		if (oldCapacity > 0) {
+			System.arraycopy(mBounds, 0, bounds, 0, oldCapacity * 6);
+			System.arraycopy(mChild1, 0, child1, 0, oldCapacity);
+			System.arraycopy(mChild2, 0, child2, 0, oldCapacity);
+			System.arraycopy(mDrawables, 0, drawables, 0, oldCapacity);
+			System.arraycopy(mHeight, 0, height, 0, oldCapacity);
+			System.arraycopy(mMovedFlags, 0, movedFlags, 0, oldCapacity);
+			System.arraycopy(mParent, 0, parent, 0, oldCapacity);
+		}
+		mBounds = bounds;
+		mChild1 = child1;
+		mChild2 = child2;
+		mDrawables = drawables;
+		mHeight = height;
+		mMovedFlags = movedFlags;
+		mParent = parent;
+
+		// Link new nodes into free list.
+		for (int i = capacity - 1; i >= oldCapacity; --i) {
+			mParent[i] = mFreeList;
+			mFreeList = i;
+		}
+	}
+
+	private int allocateNode() {
+		if (mFreeList == NULL) {
+			allocate(mParent.length * 2);
+		}
+		int node = mFreeList;
+		mFreeList = mParent[node];
+		mParent[node] = mChild1[node] = mChild2[node] = NULL;
+		mHeight[node] = 0;
+		return node;
+	}
+
+	/**
+	 * Rotates subtree rooted at given node if it is imbalanced.
+	 *
+	 * @return Root of subtree after rotation.
+	 */
+	private int balance(int a) {
+		if (mChild1[a] == NULL || mHeight[a] < 2) {
+			return a;
+		}
+		int b = mChild1[a];
+		int c = mChild2[a];
+		int balance = mHeight[c] - mHeight[b];
+		if (balance > 1) {
+			return rotate(a, c, b);
+		}
+		if (balance < -1) {
+			return rotate(a, b, c);
+		}
+		return a;
+	}
+
+	private boolean contains(int leaf) {
+		float[] sphere = mDrawables[leaf].getBoundingSphere();
+		int k = leaf * 6;
+		float r = sphere[3];
+		return sphere[0] - r >= mBounds[k] && sphere[1] - r >= mBounds[k + 1]
+				&& sphere[2] - r >= mBounds[k + 2]
+				&& sphere[0] + r <= mBounds[k + 3]
+				&& sphere[1] + r <= mBounds[k + 4]
+				&& sphere[2] + r <= mBounds[k + 5];
+	}
+
+	private void fitToChildren(int node) {
+		int k = node * 6, k1 = mChild1[node] * 6, k2 = mChild2[node] * 6;
+		for (int i = 0; i < 3; ++i) {
+			mBounds[k + i] = Math.min(mBounds[k1 + i], mBounds[k2 + i]);
+			mBounds[k + 3 + i] = Math.max(mBounds[k1 + 3 + i],
+					mBounds[k2 + 3 + i]);
+		}
+		mHeight[node] = 1 + Math.max(mHeight[mChild1[node]],
+				mHeight[mChild2[node]]);
+	}
+
+	private void freeNode(int node) {
+		mParent[node] = mFreeList;
+		mChild1[node] = mChild2[node] = NULL;
+		mFreeList = node;
+	}
+
+	private void insertLeaf(int leaf) {
+		if (mRoot == NULL) {
+			mRoot = leaf;
+			mParent[leaf] = NULL;
+			return;
+		}
+
+		// Descend towards cheapest sibling.
+		int index = mRoot;
+		while (mChild1[index] != NULL) {
+			int child1 = mChild1[index];
+			int child2 = mChild2[index];
+			float area = surfaceArea(index, NULL);
+			float combinedArea = surfaceArea(index, leaf);
+
+			// Cost of creating new parent for this node and leaf, and minimum
+			// cost of pushing leaf further down.
+			float cost = 2f * combinedArea;
+			float inheritanceCost = 2f * (combinedArea - area);
+			float cost1 = descendCost(child1, leaf) + inheritanceCost;
+			float cost2 = descendCost(child2, leaf) + inheritanceCost;
+			if (cost < cost1 && cost < cost2) {
+				break;
+			}
+			index = cost1 < cost2 ? child1 : child2;
+		}
+
+		int sibling = index;
+		int oldParent = mParent[sibling];
+		int newParent = allocateNode();
+		mParent[newParent] = oldParent;
+		mChild1[newParent] = sibling;
+		mChild2[newParent] = leaf;
+		mParent[sibling] = newParent;
+		mParent[leaf] = newParent;
+		fitToChildren(newParent);
+		if (oldParent == NULL) {
+			mRoot = newParent;
+		} else if (mChild1[oldParent] == sibling) {
+			mChild1[oldParent] = newParent;
+		} else {
+			mChild2[oldParent] = newParent;
+		}
+
+		refitAncestors(mParent[leaf]);
+	}
+
+	private float descendCost(int child, int leaf) {
+		if (mChild1[child] == NULL) {
+			return surfaceArea(child, leaf);
+		}
+		return surfaceArea(child, leaf) - surfaceArea(child, NULL);
+	}
+
+	private void refitAncestors(int index) {
+		while (index != NULL) {
+			index = balance(index);
+			fitToChildren(index);
+			index = mParent[index];
+		}
+	}
+
+	private void removeLeaf(int leaf) {
+		if (leaf == mRoot) {
+			mRoot = NULL;
+			return;
+		}
+
+		int parent = mParent[leaf];
+		int grandParent = mParent[parent];
+		int sibling = mChild1[parent] == leaf ? mChild2[parent]
+				: mChild1[parent];
+		if (grandParent == NULL) {
+			mRoot = sibling;
+			mParent[sibling] = NULL;
+		} else {
+			if (mChild1[grandParent] == parent) {
+				mChild1[grandParent] = sibling;
+			} else {
+				mChild2[grandParent] = sibling;
+			}
+			mParent[sibling] = grandParent;
+		}
+		freeNode(parent);
+		mParent[leaf] = NULL;
+		refitAncestors(grandParent);
+	}
+
+	/**
+	 * Lifts higher child up in place of node a, giving a the lower grandchild
+	 * of lifted child.
+	 *
+	 * @param a
+	 *            Imbalanced node
+	 * @param up
+	 *            Higher child of a
+	 * @param other
+	 *            Lower child of a
+	 * @return New subtree root.
+	 */
+	private int rotate(int a, int up, int other) {
+		int f = mChild1[up];
+		int g = mChild2[up];
+
+		// Lifted node takes place of a.
+		mChild1[up] = a;
+		mParent[up] = mParent[a];
+		mParent[a] = up;
+		if (mParent[up] == NULL) {
+			mRoot = up;
+		} else if (mChild1[mParent[up]] == a) {
+			mChild1[mParent[up]] = up;
+		} else {
+			mChild2[mParent[up]] = up;
+		}
+
+		// Higher grandchild stays with lifted node, lower one moves to a.
+		int keep = mHeight[f] > mHeight[g] ? f : g;
+		int move = keep == f ? g : f;
+		mChild2[up] = keep;
+		mChild1[a] = other;
+		mChild2[a] = move;
+		mParent[move] = a;
+		fitToChildren(a);
+		fitToChildren(up);
+		return up;
+	}
+
+	private void setLeafBounds(int leaf) {
+		float[] sphere = mDrawables[leaf].getBoundingSphere();
+		float r = sphere[3] + MARGIN;
+		int k = leaf * 6;
+		for (int i = 0; i < 3; ++i) {
+			mBounds[k + i] = sphere[i] - r;
+			mBounds[k + 3 + i] = sphere[i] + r;
+		}
+	}
+
+	/**
+	 * Calculates surface area of node box, or of union of two node boxes.
+	 */
+	private float surfaceArea(int node, int other) {
+		int k = node * 6;
+		float dx, dy, dz;
+		if (other == NULL) {
+			dx = mBounds[k + 3] - mBounds[k];
+			dy = mBounds[k + 4] - mBounds[k + 1];
+			dz = mBounds[k + 5] - mBounds[k + 2];
+		} else {
+			int o = other * 6;
+			dx = Math.max(mBounds[k + 3], mBounds[o + 3])
+					- Math.min(mBounds[k], mBounds[o]);
+			dy = Math.max(mBounds[k + 4], mBounds[o + 4])
+					- Math.min(mBounds[k + 1], mBounds[o + 1]);
+			dz = Math.max(mBounds[k + 5], mBounds[o + 5])
+					- Math.min(mBounds[k + 2], mBounds[o + 2]);
+		}
+		return 2f * (dx * dy + dy * dz + dz * dx);
+	}
+
+}
@@ -0,0 +1,173 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.graphics;
+
+import com.github.andromeduck.prismatic.graphics.blocks.Drawable;
+
+/**
+ * Sorts shadow casters into point light cube map faces in a single pass.
+ * Every face covers a 90 degree frustum around one world axis, bounded by
+ * planes x = +-y, x = +-z and y = +-z through the light. Testing a bounding
+ * sphere against all six frusta therefore only needs six sums and
+ * differences of its light relative center.
+ */
+public final class CubeFaceClassifier {
+
+	// Face indices, bit index in face masks.
+	public static final int FACE_NEGATIVE_Z = 0;
+	public static final int FACE_POSITIVE_X = 1;
+	public static final int FACE_POSITIVE_Z = 2;
+	public static final int FACE_NEGATIVE_X = 3;
+	public static final int FACE_POSITIVE_Y = 4;
+	public static final int FACE_NEGATIVE_Y = 5;
+
+	private static final float SQRT_2 = (float) Math.sqrt(2);
+
+	// Number of casters per face.
+	private final int[] mFaceCounts = new int[ShadowCache.FACE_COUNT];
+	// Casters per face.
+	private final Drawable[][] mFaceLists = new Drawable[ShadowCache.FACE_COUNT][16];
+	// Far plane distance of face frusta.
+	private final float mFar;
+	// Face masks per caster from last classification.
+	private int[] mMasks = new int[16];
+
+	/**
+	 * Creates new classifier.
+	 *
+	 * @param far
+	 *            Far plane distance of cube map projection
+	 */
+	public CubeFaceClassifier(float far) {
+		mFar = far;
+	}
+
+	/**
+	 * Calculates faces given sphere is seen from.
+	 *
+	 * @param light
+	 *            Light position
+	 * @param sphere
+	 *            Array holding {x, y, z, radius}
+	 * @param far
+	 *            Far plane distance
+	 * @return Bit mask of face indices.
+	 */
+	public static int classify(float[] light, float[] sphere, float far) {
+		float dx = sphere[0] - light[0];
+		float dy = sphere[1] - light[1];
+		float dz = sphere[2] - light[2];
+		float r = sphere[3];
+		if (dx * dx + dy * dy + dz * dz > (far + r) * (far + r)) {
+			return 0;
+		}
+
+		// Plane normals are (1, +-1, 0) / sqrt(2) etc, scale radius instead
+		// of normalizing distances.
+		float rs = r * SQRT_2;
+		float sxy = dx + dy, dxy = dx - dy;
+		float sxz = dx + dz, dxz = dx - dz;
+		float syz = dy + dz, dyz = dy - dz;
+
+		int mask = 0;
+		if (dxy >= -rs && sxy >= -rs && dxz >= -rs && sxz >= -rs) {
+			mask |= 1 << FACE_POSITIVE_X;
+		}
+		if (dxy <= rs && sxy <= rs && dxz <= rs && sxz <= rs) {
+			mask |= 1 << FACE_NEGATIVE_X;
+		}
+		if (dxy <= rs && sxy >= -rs && dyz >= -rs && syz >= -rs) {
+			mask |= 1 << FACE_POSITIVE_Y;
+		}
+		if (dxy >= -rs && sxy <= rs && dyz <= rs && syz <= rs) {
+			mask |= 1 << FACE_NEGATIVE_Y;
+		}
+		if (dxz <= rs && sxz >= -rs && dyz <= rs && syz >= -rs) {
+			mask |= 1 << FACE_POSITIVE_Z;
+		}
+		if (dxz >= -rs && sxz <= rs && dyz >= -rs && syz <= rs) {
+			mask |= 1 << FACE_NEGATIVE_Z;
+		}
+		return mask;
+	}
+
+	/**
+	 * Classifies all casters, filling per face draw lists and per caster face
+	 * masks.
+	 *
+	 * @param light
+	 *            Light position
+	 * @param casters
+	 *            Shadow casting drawables
+	 */
+	public void classify(float[] light, SceneRegistry casters) {
+		int count = casters.size();
+		if (mMasks.length < count) {
+			mMasks = new int[Math.max(count, mMasks.length * 2)];
+		}
+		for (int face = 0; face < ShadowCache.FACE_COUNT; ++face) {
+			mFaceCounts[face] = 0;
+		}
+
+		for (int i = 0; i < count; ++i) {
+			Drawable caster = casters.get(i);
+			int mask = classify(light, caster.getBoundingSphere(), mFar);
+			mMasks[i] = mask;
+			for (int face = 0; mask != 0; ++face, mask >>>= 1) {
+				if ((mask & 1) != 0) {
+					add(face, caster);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Getter for number of casters seen from given face.
+	 */
+	public int getFaceCount(int face) {
+		return mFaceCounts[face];
+	}
+
+	/**
+	 * Getter for casters seen from given face. Array is valid up to
+	 * getFaceCount(face) entries.
+	 */
+	public Drawable[] getFaceList(int face) {
+		return mFaceLists[face];
+	}
+
+	/**
+	 * Getter for face masks from last classification, indexed in caster
+	 * order.
+	 */
+	public int[] getMasks() {
+		return mMasks;
+	}
+
+	private void add(int face, Drawable caster) {
+		Drawable[] list = mFaceLists[face];
+		int count = mFaceCounts[face];
+		if (count == list.length) {
+			list = new Drawable[count * 2];
+			System.arraycopy(mFaceLists[face], 0, list, 0, count);
+			mFaceLists[face] = list;
+		}
+		list[count] = caster;
+		mFaceCounts[face] = count + 1;
+	}
+
+}
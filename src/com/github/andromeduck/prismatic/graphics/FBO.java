@@ -19,18 +19,35 @@ package com.github.andromeduck.prismatic.graphics;
 import android.opengl.GLES30;
 
 /**
- * Helper class for handling frame buffer objects.
+ * Helper class for handling frame buffer objects. Parameters FBO was
+ * initialized with are kept so that it can be restored after context loss.
  */
-public final class FBO {
+public final class FBO implements GpuResource {
 
+	// Attachment point textures are bound into.
+	private int mAttachment = GLES30.GL_COLOR_ATTACHMENT0;
+	// Texture target and id currently attached, 0 if none.
+	private int mAttachedTarget = 0;
+	private int mAttachedTexture = 0;
 	// Optional depth buffer handle.
 	private int mDepthBufferHandle = -1;
+	// True if initialized with initDepth.
+	private boolean mDepthOnly;
+	// True if depth and stencil buffer was requested on init.
+	private boolean mDepthStencil;
+	// Texture filtering set on init or with setFilter.
+	private int mMagFilter;
+	private int mMinFilter;
 	// FBO handle.
 	private int mFrameBufferHandle = -1;
 	// Optional stencil buffer handle.
 	private int mStencilBufferHandle = -1;
+	// Texture target, GL_TEXTURE_2D or GL_TEXTURE_CUBE_MAP.
+	private int mTarget = GLES30.GL_TEXTURE_2D;
 	// Generated texture handles.
 	private int[] mTextureHandles = {};
+	// Number of textures FBO was initialized with, 0 if not initialized.
+	private int mTextureCount;
 	// FBO textures and depth buffer size.
 	private int mWidth, mHeight;
 
@@ -40,13 +57,22 @@ public final class FBO {
 	 * @param target
 	 *            GL_TEXTURE_2D, GL_TEXTURE_CUBE_MAP_POSITIVE/NEGATIVE_X/Y_Z.
 	 * @param index
-	 *            Index of texture to bind.
+	 *            Index of texture to bind. Depth only FBOs bind texture into
+	 *            depth attachment.
 	 */
 	public void bindTexture(int target, int index) {
-		GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, mFrameBufferHandle);
-		GLES30.glViewport(0, 0, mWidth, mHeight);
-		GLES30.glFramebufferTexture2D(GLES30.GL_FRAMEBUFFER,
-				GLES30.GL_COLOR_ATTACHMENT0, target, mTextureHandles[index], 0);
+		GLState.bindFramebuffer(mFrameBufferHandle);
+		GLState.viewport(0, 0, mWidth, mHeight);
+		if (mAttachedTarget == target
+				&& mAttachedTexture == mTextureHandles[index]) {
+			GLState.countSkipped();
+			return;
+		}
+		GLES30.glFramebufferTexture2D(GLES30.GL_FRAMEBUFFER, mAttachment,
+				target, mTextureHandles[index], 0);
+		mAttachedTarget = target;
+		mAttachedTexture = mTextureHandles[index];
+		GLState.countIssued();
 	}
 
 	/**
@@ -119,18 +145,24 @@ public final class FBO {
 		// Store FBO size.
 		mWidth = width;
 		mHeight = height;
+		mTarget = target;
+		mDepthOnly = false;
+		mDepthStencil = genDepthStencilBuffer;
+		mTextureCount = textureCount;
+		mMinFilter = GLES30.GL_NEAREST;
+		mMagFilter = GLES30.GL_LINEAR;
 
 		// Genereta FBO.
 		int handle[] = { 0 };
 		GLES30.glGenFramebuffers(1, handle, 0);
 		mFrameBufferHandle = handle[0];
-		GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, mFrameBufferHandle);
+		GLState.bindFramebuffer(mFrameBufferHandle);
 
 		// Generate textures.
 		mTextureHandles = new int[textureCount];
 		GLES30.glGenTextures(textureCount, mTextureHandles, 0);
 		for (int texture : mTextureHandles) {
-			GLES30.glBindTexture(target, texture);
+			GLState.bindTexture(0, target, texture);
 			GLES30.glTexParameteri(target, GLES30.GL_TEXTURE_WRAP_S,
 					GLES30.GL_CLAMP_TO_EDGE);
 			GLES30.glTexParameteri(target, GLES30.GL_TEXTURE_WRAP_T,
@@ -140,35 +172,8 @@ public final class FBO {
 			GLES30.glTexParameteri(target, GLES30.GL_TEXTURE_MAG_FILTER,
 					GLES30.GL_LINEAR);
 
-			if (target == GLES30.GL_TEXTURE_CUBE_MAP) {
-				GLES30.glTexParameteri(target, GLES30.GL_TEXTURE_WRAP_R,
-						GLES30.GL_CLAMP_TO_EDGE);
-				GLES30.glTexParameteri(target, GLES30.GL_TEXTURE_BASE_LEVEL, 0);
-				GLES30.glTexParameteri(target, GLES30.GL_TEXTURE_MAX_LEVEL, 0);
-
-				GLES30.glTexImage2D(GLES30.GL_TEXTURE_CUBE_MAP_POSITIVE_X, 0,
-						GLES30.GL_RGBA8, mWidth, mHeight, 0, GLES30.GL_RGBA,
-						GLES30.GL_UNSIGNED_BYTE, null);
-				GLES30.glTexImage2D(GLES30.GL_TEXTURE_CUBE_MAP_NEGATIVE_X, 0,
-						GLES30.GL_RGBA8, mWidth, mHeight, 0, GLES30.GL_RGBA,
-						GLES30.GL_UNSIGNED_BYTE, null);
-				GLES30.glTexImage2D(GLES30.GL_TEXTURE_CUBE_MAP_POSITIVE_Y, 0,
-						GLES30.GL_RGBA8, mWidth, mHeight, 0, GLES30.GL_RGBA,
-						GLES30.GL_UNSIGNED_BYTE, null);
-				GLES30.glTexImage2D(GLES30.GL_TEXTURE_CUBE_MAP_NEGATIVE_Y, 0,
-						GLES30.GL_RGBA8, mWidth, mHeight, 0, GLES30.GL_RGBA,
-						GLES30.GL_UNSIGNED_BYTE, null);
-				GLES30.glTexImage2D(GLES30.GL_TEXTURE_CUBE_MAP_POSITIVE_Z, 0,
-						GLES30.GL_RGBA8, mWidth, mHeight, 0, GLES30.GL_RGBA,
-						GLES30.GL_UNSIGNED_BYTE, null);
-				GLES30.glTexImage2D(GLES30.GL_TEXTURE_CUBE_MAP_NEGATIVE_Z, 0,
-						GLES30.GL_RGBA8, mWidth, mHeight, 0, GLES30.GL_RGBA,
-						GLES30.GL_UNSIGNED_BYTE, null);
-			} else {
-				GLES30.glTexImage2D(target, 0, GLES30.GL_RGBA8, mWidth,
-						mHeight, 0, GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE,
-						null);
-			}
+			texImage(target, GLES30.GL_RGBA8, GLES30.GL_RGBA,
+					GLES30.GL_UNSIGNED_BYTE);
 		}
 
 		// Generate depth and stencil buffer.
@@ -185,20 +190,157 @@ public final class FBO {
 		}
 	}
 
+	/**
+	 * Initializes depth only FBO with given parameters. Textures are
+	 * allocated as GL_DEPTH_COMPONENT24 and bound into depth attachment with
+	 * no color buffers. Depth comparison is enabled so textures are to be
+	 * sampled with shadow samplers, which return filtered comparison results
+	 * instead of depth values.
+	 * 
+	 * @param width
+	 *            FBO width in pixels
+	 * @param height
+	 *            FBO height in pixels
+	 * @param target
+	 *            GL_TEXTURE_2D or GL_TEXTURE_CUBE_MAP
+	 * @param textureCount
+	 *            Number of textures to generate
+	 */
+	public void initDepth(int width, int height, int target, int textureCount) {
+
+		// Just in case.
+		reset();
+
+		// Store FBO size.
+		mWidth = width;
+		mHeight = height;
+		mTarget = target;
+		mAttachment = GLES30.GL_DEPTH_ATTACHMENT;
+		mDepthOnly = true;
+		mTextureCount = textureCount;
+		mMinFilter = mMagFilter = GLES30.GL_LINEAR;
+
+		// Generate FBO without color buffers.
+		int handle[] = { 0 };
+		GLES30.glGenFramebuffers(1, handle, 0);
+		mFrameBufferHandle = handle[0];
+		GLState.bindFramebuffer(mFrameBufferHandle);
+		handle[0] = GLES30.GL_NONE;
+		GLES30.glDrawBuffers(1, handle, 0);
+		GLES30.glReadBuffer(GLES30.GL_NONE);
+
+		// Generate depth textures.
+		mTextureHandles = new int[textureCount];
+		GLES30.glGenTextures(textureCount, mTextureHandles, 0);
+		for (int texture : mTextureHandles) {
+			GLState.bindTexture(0, target, texture);
+			GLES30.glTexParameteri(target, GLES30.GL_TEXTURE_WRAP_S,
+					GLES30.GL_CLAMP_TO_EDGE);
+			GLES30.glTexParameteri(target, GLES30.GL_TEXTURE_WRAP_T,
+					GLES30.GL_CLAMP_TO_EDGE);
+			GLES30.glTexParameteri(target, GLES30.GL_TEXTURE_MIN_FILTER,
+					GLES30.GL_LINEAR);
+			GLES30.glTexParameteri(target, GLES30.GL_TEXTURE_MAG_FILTER,
+					GLES30.GL_LINEAR);
+			GLES30.glTexParameteri(target, GLES30.GL_TEXTURE_COMPARE_MODE,
+					GLES30.GL_COMPARE_REF_TO_TEXTURE);
+			GLES30.glTexParameteri(target, GLES30.GL_TEXTURE_COMPARE_FUNC,
+					GLES30.GL_LEQUAL);
+
+			texImage(target, GLES30.GL_DEPTH_COMPONENT24,
+					GLES30.GL_DEPTH_COMPONENT, GLES30.GL_UNSIGNED_INT);
+		}
+	}
+
+	@Override
+	public void invalidate() {
+		mFrameBufferHandle = mDepthBufferHandle = mStencilBufferHandle = -1;
+		mTextureHandles = new int[mTextureCount];
+		mAttachedTarget = mAttachedTexture = 0;
+	}
+
 	/**
 	 * Resets this FBO into its initial state, releasing all resources that were
-	 * allocated during a call to init.
+	 * allocated during a call to init. Reset FBO is not restored.
 	 */
 	public void reset() {
 		int[] handle = { mFrameBufferHandle };
-		GLES30.glDeleteFramebuffers(1, handle, 0);
+		GLState.deleteFramebuffers(1, handle, 0);
 		handle[0] = mDepthBufferHandle;
 		GLES30.glDeleteRenderbuffers(1, handle, 0);
 		handle[0] = mStencilBufferHandle;
 		GLES30.glDeleteRenderbuffers(1, handle, 0);
-		GLES30.glDeleteTextures(mTextureHandles.length, mTextureHandles, 0);
+		GLState.deleteTextures(mTextureHandles.length, mTextureHandles, 0);
 		mFrameBufferHandle = mDepthBufferHandle = mStencilBufferHandle = -1;
 		mTextureHandles = new int[0];
+		mAttachment = GLES30.GL_COLOR_ATTACHMENT0;
+		mAttachedTarget = mAttachedTexture = 0;
+		mTextureCount = 0;
+	}
+
+	@Override
+	public void restore() {
+		if (mTextureCount == 0 || mFrameBufferHandle != -1) {
+			return;
+		}
+		int minFilter = mMinFilter;
+		int magFilter = mMagFilter;
+		if (mDepthOnly) {
+			initDepth(mWidth, mHeight, mTarget, mTextureCount);
+		} else {
+			init(mWidth, mHeight, mTarget, mTextureCount, mDepthStencil);
+		}
+		setFilter(minFilter, magFilter);
+	}
+
+	/**
+	 * Sets filtering for all textures of this FBO. Textures are initialized
+	 * with GL_NEAREST minification and GL_LINEAR magnification.
+	 * 
+	 * @param minFilter
+	 *            Minification filter
+	 * @param magFilter
+	 *            Magnification filter
+	 */
+	public void setFilter(int minFilter, int magFilter) {
+		mMinFilter = minFilter;
+		mMagFilter = magFilter;
+		for (int texture : mTextureHandles) {
+			GLState.bindTexture(0, mTarget, texture);
+			GLES30.glTexParameteri(mTarget, GLES30.GL_TEXTURE_MIN_FILTER,
+					minFilter);
+			GLES30.glTexParameteri(mTarget, GLES30.GL_TEXTURE_MAG_FILTER,
+					magFilter);
+		}
+	}
+
+	/**
+	 * Allocates storage for texture currently bound to given target. For
+	 * cube maps all six faces are allocated.
+	 */
+	private void texImage(int target, int internalFormat, int format, int type) {
+		if (target == GLES30.GL_TEXTURE_CUBE_MAP) {
+			GLES30.glTexParameteri(target, GLES30.GL_TEXTURE_WRAP_R,
+					GLES30.GL_CLAMP_TO_EDGE);
+			GLES30.glTexParameteri(target, GLES30.GL_TEXTURE_BASE_LEVEL, 0);
+			GLES30.glTexParameteri(target, GLES30.GL_TEXTURE_MAX_LEVEL, 0);
+
+			GLES30.glTexImage2D(GLES30.GL_TEXTURE_CUBE_MAP_POSITIVE_X, 0,
+					internalFormat, mWidth, mHeight, 0, format, type, null);
+			GLES30.glTexImage2D(GLES30.GL_TEXTURE_CUBE_MAP_NEGATIVE_X, 0,
+					internalFormat, mWidth, mHeight, 0, format, type, null);
+			GLES30.glTexImage2D(GLES30.GL_TEXTURE_CUBE_MAP_POSITIVE_Y, 0,
+					internalFormat, mWidth, mHeight, 0, format, type, null);
+			GLES30.glTexImage2D(GLES30.GL_TEXTURE_CUBE_MAP_NEGATIVE_Y, 0,
+					internalFormat, mWidth, mHeight, 0, format, type, null);
+			GLES30.glTexImage2D(GLES30.GL_TEXTURE_CUBE_MAP_POSITIVE_Z, 0,
+					internalFormat, mWidth, mHeight, 0, format, type, null);
+			GLES30.glTexImage2D(GLES30.GL_TEXTURE_CUBE_MAP_NEGATIVE_Z, 0,
+					internalFormat, mWidth, mHeight, 0, format, type, null);
+		} else {
+			GLES30.glTexImage2D(target, 0, internalFormat, mWidth, mHeight, 0,
+					format, type, null);
+		}
 	}
 
 }
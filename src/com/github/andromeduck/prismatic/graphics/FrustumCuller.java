@@ -0,0 +1,176 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.graphics;
+
+/**
+ * Batch sphere versus frustum test over packed arrays. Sphere centers and
+ * radii are stored as structure of arrays, and every sphere is tested
+ * against all six planes without branching, so the loop runs at the same
+ * speed regardless of how many spheres are visible. Results are written into
+ * a visibility bit set and a list of visible indices.
+ */
+public final class FrustumCuller {
+
+	// Number of spheres added since last clear.
+	private int mCount = 0;
+	// Sphere radii and centers.
+	private float[] mRadius;
+	private float[] mX;
+	private float[] mY;
+	private float[] mZ;
+	// Visibility bit per sphere, bit i % 32 of word i / 32.
+	private int[] mVisibleBits;
+	// Number of visible spheres from last cull.
+	private int mVisibleCount = 0;
+	// Indices of visible spheres from last cull.
+	private int[] mVisibleIndices;
+
+	/**
+	 * Creates new culler.
+	 *
+	 * @param capacity
+	 *            Initial number of spheres
+	 */
+	public FrustumCuller(int capacity) {
+		allocate(Math.max(capacity, 32));
+	}
+
+	/**
+	 * Adds sphere, index being number of spheres added before it.
+	 *
+	 * @param sphere
+	 *            Array holding {x, y, z, radius}
+	 */
+	public void add(float[] sphere) {
+		if (mCount == mX.length) {
+			allocate(mCount * 2);
+		}
+		mX[mCount] = sphere[0];
+		mY[mCount] = sphere[1];
+		mZ[mCount] = sphere[2];
+		mRadius[mCount] = sphere[3];
+		++mCount;
+	}
+
+	/**
+	 * Removes all spheres.
+	 */
+	public void clear() {
+		mCount = 0;
+	}
+
+	/**
+	 * Tests all spheres against given frustum.
+	 *
+	 * @param planes
+	 *            Six normalized planes as given by Visibility.extractPlanes
+	 * @return Number of visible spheres.
+	 */
+	public int cull(float[] planes) {
+		final float ax = planes[0], ay = planes[1], az = planes[2], aw = planes[3];
+		final float bx = planes[4], by = planes[5], bz = planes[6], bw = planes[7];
+		final float cx = planes[8], cy = planes[9], cz = planes[10], cw = planes[11];
+		final float dx = planes[12], dy = planes[13], dz = planes[14], dw = planes[15];
+		final float ex = planes[16], ey = planes[17], ez = planes[18], ew = planes[19];
+		final float fx = planes[20], fy = planes[21], fz = planes[22], fw = planes[23];
+		final float[] xs = mX, ys = mY, zs = mZ, rs = mRadius;
+		final int[] bits = mVisibleBits;
+		final int count = mCount;
+
+		for (int word = 0; word * 32 < count; ++word) {
+			int end = Math.min(count, word * 32 + 32);
+			int mask = 0;
+			for (int i = word * 32; i < end; ++i) {
+				float x = xs[i], y = ys[i], z = zs[i], r = rs[i];
+				// Sign bit of distance plus radius is set for spheres
+				// outside of a plane, combine sign bits of all planes.
+				int outside = Float.floatToRawIntBits(ax * x + ay * y + az * z + aw + r)
+						| Float.floatToRawIntBits(bx * x + by * y + bz * z + bw + r)
+						| Float.floatToRawIntBits(cx * x + cy * y + cz * z + cw + r)
+						| Float.floatToRawIntBits(dx * x + dy * y + dz * z + dw + r)
+						| Float.floatToRawIntBits(ex * x + ey * y + ez * z + ew + r)
+						| Float.floatToRawIntBits(fx * x + fy * y + fz * z + fw + r);
+				mask |= (~outside >>> 31) << (i & 31);
+			}
+			bits[word] = mask;
+		}
+
+		// Expand bit set into index list.
+		int visibleCount = 0;
+		final int[] indices = mVisibleIndices;
+		for (int word = 0; word * 32 < count; ++word) {
+			int mask = bits[word];
+			while (mask != 0) {
+				indices[visibleCount++] = word * 32
+						+ Integer.numberOfTrailingZeros(mask);
+				mask &= mask - 1;
+			}
+		}
+		mVisibleCount = visibleCount;
+		return visibleCount;
+	}
+
+	/**
+	 * Getter for number of spheres.
+	 */
+	public int getCount() {
+		return mCount;
+	}
+
+	/**
+	 * Getter for visibility bit set from last cull. Sphere i is visible if
+	 * bit i % 32 of word i / 32 is set.
+	 */
+	public int[] getVisibleBits() {
+		return mVisibleBits;
+	}
+
+	/**
+	 * Getter for number of visible spheres from last cull.
+	 */
+	public int getVisibleCount() {
+		return mVisibleCount;
+	}
+
+	/**
+	 * Getter for indices of visible spheres from last cull, in ascending
+	 * order. Array is valid up to getVisibleCount() entries.
+	 */
+	public int[] getVisibleIndices() {
+		return mVisibleIndices;
+	}
+
+	private void allocate(int capacity) {
+		float[] x = new float[capacity];
+		float[] y = new float[capacity];
+		float[] z = new float[capacity];
+		float[] radius = new float[capacity];
+		if (mCount > 0) {
+			System.arraycopy(mX, 0, x, 0, mCount);
+			System.arraycopy(mY, 0, y, 0, mCount);
+			System.arraycopy(mZ, 0, z, 0, mCount);
+			System.arraycopy(mRadius, 0, radius, 0, mCount);
+		}
+		mX = x;
+		mY = y;
+		mZ = z;
+		mRadius = radius;
+		mVisibleBits = new int[(capacity + 31) / 32];
+		mVisibleIndices = new int[capacity];
+	}
+
+}
@@ -0,0 +1,360 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.graphics;
+
+import android.opengl.GLES30;
+
+/**
+ * Shadow copy of frequently changed OpenGL state. Calls which would not
+ * change current state are dropped, and issued versus skipped calls as well
+ * as draw calls are counted per frame. All state is unknown until first set, and invalidate
+ * must be called once OpenGL context has been recreated. Methods are to be
+ * called from GL thread only.
+ */
+public final class GLState {
+
+	// Number of texture units tracked.
+	private static final int TEXTURE_UNIT_COUNT = 8;
+	// Capabilities tracked by enable/disable, bit index being array index.
+	private static final int[] CAPABILITIES = { GLES30.GL_BLEND,
+			GLES30.GL_CULL_FACE, GLES30.GL_DEPTH_TEST,
+			GLES30.GL_POLYGON_OFFSET_FILL, GLES30.GL_STENCIL_TEST };
+
+	// Active texture unit, -1 if unknown.
+	private static int sActiveTexture;
+	// Blend factors, -1 if unknown.
+	private static int sBlendDst;
+	private static int sBlendSrc;
+	// Color mask as bits rgba, -1 if unknown.
+	private static int sColorMask;
+	// Depth mask, -1 if unknown.
+	private static int sDepthMask;
+	// Enabled capabilities, valid for bits set in sEnabledKnown.
+	private static int sEnabled;
+	private static int sEnabledKnown;
+	// Bound framebuffer, -1 if unknown.
+	private static int sFramebuffer;
+	// Counters for current and last frame.
+	private static int sDrawCount;
+	private static int sIssuedCount;
+	private static int sLastDrawCount;
+	private static int sLastIssuedCount;
+	private static int sLastSkippedCount;
+	private static int sSkippedCount;
+	// Current program, -1 if unknown.
+	private static int sProgram;
+	// Bound 2D and cube map textures per unit, -1 if unknown.
+	private static final int[] sTexture2D = new int[TEXTURE_UNIT_COUNT];
+	private static final int[] sTextureCube = new int[TEXTURE_UNIT_COUNT];
+	// Bound vertex array, -1 if unknown.
+	private static int sVertexArray;
+	// Viewport, width -1 if unknown.
+	private static final int[] sViewport = new int[4];
+
+	static {
+		invalidate();
+	}
+
+	private GLState() {
+	}
+
+	/**
+	 * Stores counters of frame just rendered and starts counting a new one.
+	 */
+	public static void beginFrame() {
+		sLastDrawCount = sDrawCount;
+		sLastIssuedCount = sIssuedCount;
+		sLastSkippedCount = sSkippedCount;
+		sDrawCount = sIssuedCount = sSkippedCount = 0;
+	}
+
+	/**
+	 * Binds texture into given texture unit.
+	 *
+	 * @param unit
+	 *            Texture unit index, 0 for GL_TEXTURE0
+	 * @param target
+	 *            GL_TEXTURE_2D or GL_TEXTURE_CUBE_MAP
+	 * @param texture
+	 *            Texture id
+	 */
+	public static void bindTexture(int unit, int target, int texture) {
+		int[] bound = target == GLES30.GL_TEXTURE_CUBE_MAP ? sTextureCube
+				: sTexture2D;
+		if (unit < TEXTURE_UNIT_COUNT && bound[unit] == texture) {
+			++sSkippedCount;
+			return;
+		}
+		if (sActiveTexture != unit) {
+			GLES30.glActiveTexture(GLES30.GL_TEXTURE0 + unit);
+			sActiveTexture = unit;
+			++sIssuedCount;
+		}
+		GLES30.glBindTexture(target, texture);
+		if (unit < TEXTURE_UNIT_COUNT) {
+			bound[unit] = texture;
+		}
+		++sIssuedCount;
+	}
+
+	/**
+	 * Binds framebuffer, 0 for default one.
+	 */
+	public static void bindFramebuffer(int framebuffer) {
+		if (sFramebuffer == framebuffer) {
+			++sSkippedCount;
+			return;
+		}
+		GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, framebuffer);
+		sFramebuffer = framebuffer;
+		++sIssuedCount;
+	}
+
+	/**
+	 * Binds vertex array object, 0 for none.
+	 */
+	public static void bindVertexArray(int vertexArray) {
+		if (sVertexArray == vertexArray) {
+			++sSkippedCount;
+			return;
+		}
+		GLES30.glBindVertexArray(vertexArray);
+		sVertexArray = vertexArray;
+		++sIssuedCount;
+	}
+
+	/**
+	 * Sets blend factors.
+	 */
+	public static void blendFunc(int src, int dst) {
+		if (sBlendSrc == src && sBlendDst == dst) {
+			++sSkippedCount;
+			return;
+		}
+		GLES30.glBlendFunc(src, dst);
+		sBlendSrc = src;
+		sBlendDst = dst;
+		++sIssuedCount;
+	}
+
+	/**
+	 * Sets color write mask.
+	 */
+	public static void colorMask(boolean r, boolean g, boolean b, boolean a) {
+		int mask = (r ? 8 : 0) | (g ? 4 : 0) | (b ? 2 : 0) | (a ? 1 : 0);
+		if (sColorMask == mask) {
+			++sSkippedCount;
+			return;
+		}
+		GLES30.glColorMask(r, g, b, a);
+		sColorMask = mask;
+		++sIssuedCount;
+	}
+
+	/**
+	 * Deletes framebuffers, forgetting binding if one of them is bound.
+	 */
+	public static void deleteFramebuffers(int n, int[] framebuffers, int offset) {
+		for (int i = offset; i < offset + n; ++i) {
+			if (framebuffers[i] == sFramebuffer) {
+				sFramebuffer = -1;
+			}
+		}
+		GLES30.glDeleteFramebuffers(n, framebuffers, offset);
+	}
+
+	/**
+	 * Deletes program, forgetting current program if it is the one deleted.
+	 */
+	public static void deleteProgram(int program) {
+		if (program == sProgram) {
+			sProgram = -1;
+		}
+		GLES30.glDeleteProgram(program);
+	}
+
+	/**
+	 * Deletes textures, forgetting bindings of them in all units.
+	 */
+	public static void deleteTextures(int n, int[] textures, int offset) {
+		for (int i = offset; i < offset + n; ++i) {
+			for (int unit = 0; unit < TEXTURE_UNIT_COUNT; ++unit) {
+				if (sTexture2D[unit] == textures[i]) {
+					sTexture2D[unit] = -1;
+				}
+				if (sTextureCube[unit] == textures[i]) {
+					sTextureCube[unit] = -1;
+				}
+			}
+		}
+		GLES30.glDeleteTextures(n, textures, offset);
+	}
+
+	/**
+	 * Deletes vertex arrays, forgetting binding if one of them is bound.
+	 */
+	public static void deleteVertexArrays(int n, int[] vertexArrays, int offset) {
+		for (int i = offset; i < offset + n; ++i) {
+			if (vertexArrays[i] == sVertexArray) {
+				sVertexArray = -1;
+			}
+		}
+		GLES30.glDeleteVertexArrays(n, vertexArrays, offset);
+	}
+
+	/**
+	 * Sets depth write mask.
+	 */
+	public static void depthMask(boolean flag) {
+		int mask = flag ? 1 : 0;
+		if (sDepthMask == mask) {
+			++sSkippedCount;
+			return;
+		}
+		GLES30.glDepthMask(flag);
+		sDepthMask = mask;
+		++sIssuedCount;
+	}
+
+	/**
+	 * Disables given capability, e.g GL_DEPTH_TEST.
+	 */
+	public static void disable(int capability) {
+		setEnabled(capability, false);
+	}
+
+	/**
+	 * Enables given capability, e.g GL_DEPTH_TEST.
+	 */
+	public static void enable(int capability) {
+		setEnabled(capability, true);
+	}
+
+	/**
+	 * Getter for number of draw calls during last frame.
+	 */
+	public static int getDrawCount() {
+		return sLastDrawCount;
+	}
+
+	/**
+	 * Getter for number of calls passed to OpenGL during last frame.
+	 */
+	public static int getIssuedCount() {
+		return sLastIssuedCount;
+	}
+
+	/**
+	 * Getter for number of calls dropped during last frame.
+	 */
+	public static int getSkippedCount() {
+		return sLastSkippedCount;
+	}
+
+	/**
+	 * Marks all state unknown, so that next calls are issued regardless.
+	 * This should be called once OpenGL context has been recreated.
+	 */
+	public static void invalidate() {
+		sActiveTexture = -1;
+		sBlendDst = sBlendSrc = -1;
+		sColorMask = sDepthMask = -1;
+		sEnabled = sEnabledKnown = 0;
+		sFramebuffer = -1;
+		sProgram = -1;
+		for (int unit = 0; unit < TEXTURE_UNIT_COUNT; ++unit) {
+			sTexture2D[unit] = sTextureCube[unit] = -1;
+		}
+		sVertexArray = -1;
+		sViewport[2] = -1;
+	}
+
+	/**
+	 * Activates given program.
+	 */
+	public static void useProgram(int program) {
+		if (sProgram == program) {
+			++sSkippedCount;
+			return;
+		}
+		GLES30.glUseProgram(program);
+		sProgram = program;
+		++sIssuedCount;
+	}
+
+	/**
+	 * Sets viewport.
+	 */
+	public static void viewport(int x, int y, int width, int height) {
+		if (sViewport[0] == x && sViewport[1] == y && sViewport[2] == width
+				&& sViewport[3] == height) {
+			++sSkippedCount;
+			return;
+		}
+		GLES30.glViewport(x, y, width, height);
+		sViewport[0] = x;
+		sViewport[1] = y;
+		sViewport[2] = width;
+		sViewport[3] = height;
+		++sIssuedCount;
+	}
+
+	/**
+	 * Counts a draw call, issued by Mesh and VertexStream.
+	 */
+	static void countDraw() {
+		++sDrawCount;
+	}
+
+	/**
+	 * Counts a call issued outside of this class, e.g framebuffer attachment
+	 * changes tracked by FBO.
+	 */
+	static void countIssued() {
+		++sIssuedCount;
+	}
+
+	/**
+	 * Counts a call dropped outside of this class.
+	 */
+	static void countSkipped() {
+		++sSkippedCount;
+	}
+
+	private static void setEnabled(int capability, boolean enabled) {
+		int bit = 0;
+		while (bit < CAPABILITIES.length && CAPABILITIES[bit] != capability) {
+			++bit;
+		}
+		int mask = bit < CAPABILITIES.length ? 1 << bit : 0;
+		if ((sEnabledKnown & mask) != 0
+				&& ((sEnabled & mask) != 0) == enabled) {
+			++sSkippedCount;
+			return;
+		}
+		if (enabled) {
+			GLES30.glEnable(capability);
+			sEnabled |= mask;
+		} else {
+			GLES30.glDisable(capability);
+			sEnabled &= ~mask;
+		}
+		sEnabledKnown |= mask;
+		++sIssuedCount;
+	}
+
+}
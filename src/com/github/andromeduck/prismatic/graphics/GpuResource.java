@@ -0,0 +1,38 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.graphics;
+
+/**
+ * GL object that remembers how it was created, so that it can be rebuilt
+ * without going back to its original inputs once OpenGL context is lost.
+ */
+public interface GpuResource {
+
+	/**
+	 * Forgets GL object names without deleting them, they died along with
+	 * the context they belonged to.
+	 */
+	void invalidate();
+
+	/**
+	 * Recreates GL objects from what was recorded on creation. Does nothing
+	 * if object was never created or still exists. To be called from GL
+	 * thread.
+	 */
+	void restore() throws Exception;
+
+}
@@ -0,0 +1,89 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.graphics;
+
+import java.util.ArrayList;
+
+/**
+ * Registry of GL objects to be rebuilt after OpenGL context loss. Once
+ * context is lost every registered resource is invalidated, and lost ones
+ * are then restored a few per frame under a time budget. All methods must
+ * be called from GL thread.
+ */
+public final class GpuResources {
+
+	// Resources invalidated but not restored yet, restored from the front.
+	private final ArrayList<GpuResource> mLost = new ArrayList<GpuResource>();
+	// Index of next resource in mLost to restore.
+	private int mNextLost;
+	private final ArrayList<GpuResource> mResources = new ArrayList<GpuResource>();
+
+	/**
+	 * Getter for number of resources waiting to be restored.
+	 */
+	public int getLostCount() {
+		return mLost.size() - mNextLost;
+	}
+
+	/**
+	 * Invalidates all registered resources, e.g once OpenGL context has been
+	 * recreated, and queues them for restoring.
+	 */
+	public void invalidate() {
+		mLost.clear();
+		mNextLost = 0;
+		for (GpuResource resource : mResources) {
+			resource.invalidate();
+			mLost.add(resource);
+		}
+	}
+
+	/**
+	 * Adds resource to registry. Resources are restored in order they were
+	 * registered in.
+	 */
+	public void register(GpuResource resource) {
+		mResources.add(resource);
+	}
+
+	/**
+	 * Restores lost resources until all have been restored or time budget
+	 * has been spent. At least one resource is restored per call. Resource
+	 * failing to restore is dropped from queue before its exception is
+	 * thrown, so that next call continues with the one after it.
+	 *
+	 * @param budgetNanos
+	 *            Time budget in nanoseconds
+	 * @return True if no resources are left to restore.
+	 */
+	public boolean restore(long budgetNanos) throws Exception {
+		long startTime = System.nanoTime();
+		while (mNextLost < mLost.size()) {
+			mLost.get(mNextLost++).restore();
+			if (System.nanoTime() - startTime >= budgetNanos) {
+				break;
+			}
+		}
+		if (mNextLost == mLost.size()) {
+			mLost.clear();
+			mNextLost = 0;
+			return true;
+		}
+		return false;
+	}
+
+}
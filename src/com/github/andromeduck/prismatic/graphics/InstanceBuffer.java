@@ -0,0 +1,204 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.graphics;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import android.opengl.GLES30;
+
+/**
+ * Helper class for streaming per-instance attributes. Every instance holds a
+ * model matrix followed by a color, and is exposed to shaders as attributes
+ * 'mat4 aModelM' and 'vec3 aColor'. Instances are collected on client side
+ * and streamed into a buffer object once per draw.
+ */
+public final class InstanceBuffer {
+
+	// Floats per instance, {modelM[16], r, g, b, pad}.
+	public static final int INSTANCE_SIZE = 20;
+
+	// Buffer object handle, 0 if not generated.
+	private int mBufferHandle = 0;
+	// Number of instances added since last clear.
+	private int mCount = 0;
+	// Client side instance data.
+	private FloatBuffer mData = allocate(256);
+
+	private static FloatBuffer allocate(int instanceCount) {
+		return ByteBuffer.allocateDirect(instanceCount * INSTANCE_SIZE * 4)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+	}
+
+	/**
+	 * Adds new instance.
+	 *
+	 * @param modelM
+	 *            Model matrix of instance
+	 * @param color
+	 *            RGB color of instance
+	 */
+	public void add(float[] modelM, float[] color) {
+		if (mData.remaining() < INSTANCE_SIZE) {
+			FloatBuffer data = allocate(mData.capacity() / INSTANCE_SIZE * 2);
+			mData.flip();
+			data.put(mData);
+			mData = data;
+		}
+		mData.put(modelM, 0, 16);
+		mData.put(color, 0, 3);
+		mData.put(0f);
+		++mCount;
+	}
+
+	/**
+	 * Adds new instance from record already in instance layout, e.g a world
+	 * record of TransformPool.
+	 *
+	 * @param instances
+	 *            Array holding instance records
+	 * @param offset
+	 *            Offset of INSTANCE_SIZE floats to add
+	 */
+	public void add(float[] instances, int offset) {
+		if (mData.remaining() < INSTANCE_SIZE) {
+			FloatBuffer data = allocate(mData.capacity() / INSTANCE_SIZE * 2);
+			mData.flip();
+			data.put(mData);
+			mData = data;
+		}
+		mData.put(instances, offset, INSTANCE_SIZE);
+		++mCount;
+	}
+
+	/**
+	 * Adds new instance interpolated between two records in instance layout,
+	 * e.g previous and current world records of TransformPool.
+	 *
+	 * @param from
+	 *            Array holding records at alpha 0
+	 * @param to
+	 *            Array holding records at alpha 1
+	 * @param offset
+	 *            Offset of INSTANCE_SIZE floats within both arrays
+	 * @param alpha
+	 *            Interpolation factor from 0 to 1
+	 */
+	public void add(float[] from, float[] to, int offset, float alpha) {
+		if (mData.remaining() < INSTANCE_SIZE) {
+			FloatBuffer data = allocate(mData.capacity() / INSTANCE_SIZE * 2);
+			mData.flip();
+			data.put(mData);
+			mData = data;
+		}
+		for (int i = offset; i < offset + INSTANCE_SIZE; ++i) {
+			mData.put(from[i] + (to[i] - from[i]) * alpha);
+		}
+		++mCount;
+	}
+
+	/**
+	 * Removes all instances.
+	 */
+	public void clear() {
+		mData.clear();
+		mCount = 0;
+	}
+
+	/**
+	 * Getter for number of instances.
+	 *
+	 * @return Number of instances added since last clear.
+	 */
+	public int getCount() {
+		return mCount;
+	}
+
+	/**
+	 * Forgets buffer handle without deleting it. This should be called once
+	 * the OpenGL context has been lost.
+	 */
+	public void invalidate() {
+		mBufferHandle = 0;
+	}
+
+	/**
+	 * Releases buffer object.
+	 */
+	public void reset() {
+		int[] handle = { mBufferHandle };
+		GLES30.glDeleteBuffers(1, handle, 0);
+		invalidate();
+	}
+
+	/**
+	 * Sets up instanced attributes for given shader into currently bound
+	 * vertex array object.
+	 *
+	 * @param shader
+	 *            Shader to look attribute locations from
+	 */
+	void setupAttributes(Shader shader) {
+		GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, getHandle());
+
+		// Matrix attribute occupies four consecutive locations.
+		int aModelM = shader.findAttribute("aModelM");
+		if (aModelM != -1) {
+			for (int i = 0; i < 4; ++i) {
+				GLES30.glVertexAttribPointer(aModelM + i, 4,
+						GLES30.GL_FLOAT, false, INSTANCE_SIZE * 4, i * 16);
+				GLES30.glVertexAttribDivisor(aModelM + i, 1);
+				GLES30.glEnableVertexAttribArray(aModelM + i);
+			}
+		}
+
+		int aColor = shader.findAttribute("aColor");
+		if (aColor != -1) {
+			GLES30.glVertexAttribPointer(aColor, 3, GLES30.GL_FLOAT, false,
+					INSTANCE_SIZE * 4, 64);
+			GLES30.glVertexAttribDivisor(aColor, 1);
+			GLES30.glEnableVertexAttribArray(aColor);
+		}
+	}
+
+	/**
+	 * Streams instances into buffer object. Previous buffer contents are
+	 * orphaned so that draws still in flight are not waited for.
+	 */
+	public void upload() {
+		GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, getHandle());
+		GLES30.glBufferData(GLES30.GL_ARRAY_BUFFER, mData.capacity() * 4,
+				null, GLES30.GL_STREAM_DRAW);
+		if (mCount > 0) {
+			mData.flip();
+			GLES30.glBufferSubData(GLES30.GL_ARRAY_BUFFER, 0,
+					mCount * INSTANCE_SIZE * 4, mData);
+			mData.position(mData.limit()).limit(mData.capacity());
+		}
+	}
+
+	private int getHandle() {
+		if (mBufferHandle == 0) {
+			int[] handle = { 0 };
+			GLES30.glGenBuffers(1, handle, 0);
+			mBufferHandle = handle[0];
+		}
+		return mBufferHandle;
+	}
+
+}
@@ -0,0 +1,291 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.graphics;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.opengl.GLES30;
+
+/**
+ * Helper class for handling geometry stored in vertex and index buffer
+ * objects. Interleaved vertex data is uploaded once on first use and a vertex
+ * array object is created lazily for every shader the mesh is drawn with.
+ * Optional instance buffer is bound into the same vertex array objects.
+ * Client side copies are kept so that buffers can be rebuilt after the OpenGL
+ * context has been lost.
+ */
+public final class Mesh {
+
+	// Index buffer handle, 0 if not uploaded.
+	private int mIndexBufferHandle = 0;
+	// Optional per-instance attributes.
+	private InstanceBuffer mInstanceBuffer;
+	// Number of indices, 0 for non-indexed meshes.
+	private final int mIndexCount;
+	// Client side index data, unsigned shorts.
+	private final ByteBuffer mIndices;
+	// Shaders for which a vertex array object has been created.
+	private Shader[] mVaoShaders = {};
+	// Shader programs vertex array objects were created for, as attribute
+	// locations may change once shader is linked again.
+	private int[] mVaoPrograms = {};
+	// Vertex array object handles, parallel to mVaoShaders.
+	private int[] mVaoHandles = {};
+	// Vertex attributes found from interleaved vertex data.
+	private final List<Attribute> mAttributes = new ArrayList<Attribute>();
+	// Vertex buffer handle, 0 if not uploaded.
+	private int mVertexBufferHandle = 0;
+	// Number of vertices.
+	private final int mVertexCount;
+	// Client side interleaved vertex data.
+	private final ByteBuffer mVertices;
+	// Size of one vertex in bytes.
+	private final int mStride;
+
+	/**
+	 * Creates new mesh out of interleaved vertex data and optional indices.
+	 *
+	 * @param vertices
+	 *            Interleaved vertex data
+	 * @param stride
+	 *            Size of one vertex in bytes
+	 * @param indices
+	 *            Triangle indices or null for non-indexed mesh
+	 */
+	public Mesh(byte[] vertices, int stride, short[] indices) {
+		mStride = stride;
+		mVertexCount = vertices.length / stride;
+		mVertices = ByteBuffer.allocateDirect(vertices.length);
+		mVertices.put(vertices).position(0);
+
+		if (indices != null) {
+			mIndexCount = indices.length;
+			mIndices = ByteBuffer.allocateDirect(indices.length * 2).order(
+					ByteOrder.nativeOrder());
+			mIndices.asShortBuffer().put(indices);
+		} else {
+			mIndexCount = 0;
+			mIndices = null;
+		}
+	}
+
+	/**
+	 * Adds new attribute description. Attributes are looked up by name from
+	 * shaders this mesh is bound with, and ones not used by a shader are
+	 * simply ignored.
+	 *
+	 * @param name
+	 *            Attribute name in shader source
+	 * @param size
+	 *            Number of components
+	 * @param type
+	 *            Component type, e.g GL_BYTE
+	 * @param offset
+	 *            Offset from vertex start in bytes
+	 */
+	public void addAttribute(String name, int size, int type, int offset) {
+		mAttributes.add(new Attribute(name, size, type, offset));
+	}
+
+	/**
+	 * Binds vertex array object for given shader. Buffers are uploaded and
+	 * vertex array object is created if they do not exist yet.
+	 *
+	 * @param shader
+	 *            Shader used for drawing this mesh
+	 */
+	public void bind(Shader shader) {
+		if (mVertexBufferHandle == 0) {
+			upload();
+		}
+
+		int index = mVaoShaders.length;
+		for (int i = 0; i < mVaoShaders.length; ++i) {
+			if (mVaoShaders[i] == shader) {
+				if (mVaoPrograms[i] == shader.getProgram()) {
+					GLState.bindVertexArray(mVaoHandles[i]);
+					return;
+				}
+				GLState.deleteVertexArrays(1, mVaoHandles, i);
+				index = i;
+			}
+		}
+
+		int handle[] = { 0 };
+		GLES30.glGenVertexArrays(1, handle, 0);
+		GLState.bindVertexArray(handle[0]);
+		GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, mVertexBufferHandle);
+		for (Attribute attribute : mAttributes) {
+			int location = shader.findAttribute(attribute.mName);
+			if (location != -1) {
+				GLES30.glVertexAttribPointer(location, attribute.mSize,
+						attribute.mType, false, mStride, attribute.mOffset);
+				GLES30.glEnableVertexAttribArray(location);
+			}
+		}
+		if (mInstanceBuffer != null) {
+			mInstanceBuffer.setupAttributes(shader);
+		}
+		if (mIndices != null) {
+			GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER,
+					mIndexBufferHandle);
+		}
+
+		if (index == mVaoShaders.length) {
+			Shader[] shaders = new Shader[index + 1];
+			int[] programs = new int[index + 1];
+			int[] handles = new int[index + 1];
+			System.arraycopy(mVaoShaders, 0, shaders, 0, index);
+			System.arraycopy(mVaoPrograms, 0, programs, 0, index);
+			System.arraycopy(mVaoHandles, 0, handles, 0, index);
+			mVaoShaders = shaders;
+			mVaoPrograms = programs;
+			mVaoHandles = handles;
+		}
+		mVaoShaders[index] = shader;
+		mVaoPrograms[index] = shader.getProgram();
+		mVaoHandles[index] = handle[0];
+	}
+
+	/**
+	 * Draws this mesh using currently bound vertex array object. One should
+	 * call bind before calling this method.
+	 *
+	 * @param mode
+	 *            Primitive type, e.g GL_TRIANGLES
+	 */
+	public void draw(int mode) {
+		GLState.countDraw();
+		if (mIndices != null) {
+			GLES30.glDrawElements(mode, mIndexCount,
+					GLES30.GL_UNSIGNED_SHORT, 0);
+		} else {
+			GLES30.glDrawArrays(mode, 0, mVertexCount);
+		}
+	}
+
+	/**
+	 * Draws given number of instances of this mesh using currently bound
+	 * vertex array object. Instance attributes are read from instance buffer
+	 * set for this mesh.
+	 *
+	 * @param mode
+	 *            Primitive type, e.g GL_TRIANGLES
+	 * @param instanceCount
+	 *            Number of instances to draw
+	 */
+	public void drawInstanced(int mode, int instanceCount) {
+		GLState.countDraw();
+		if (mIndices != null) {
+			GLES30.glDrawElementsInstanced(mode, mIndexCount,
+					GLES30.GL_UNSIGNED_SHORT, 0, instanceCount);
+		} else {
+			GLES30.glDrawArraysInstanced(mode, 0, mVertexCount, instanceCount);
+		}
+	}
+
+	/**
+	 * Returns true if buffers have been uploaded and not released or
+	 * forgotten since.
+	 */
+	public boolean isUploaded() {
+		return mVertexBufferHandle != 0;
+	}
+
+	/**
+	 * Forgets all buffer and vertex array handles without deleting them. This
+	 * should be called once the OpenGL context has been lost as handles are
+	 * released with the context. Buffers are uploaded again on next bind.
+	 */
+	public void invalidate() {
+		mVertexBufferHandle = mIndexBufferHandle = 0;
+		mVaoShaders = new Shader[0];
+		mVaoPrograms = new int[0];
+		mVaoHandles = new int[0];
+	}
+
+	/**
+	 * Releases all buffer and vertex array objects allocated by this mesh.
+	 */
+	public void reset() {
+		int[] handle = { mVertexBufferHandle, mIndexBufferHandle };
+		GLES30.glDeleteBuffers(2, handle, 0);
+		GLState.deleteVertexArrays(mVaoHandles.length, mVaoHandles, 0);
+		invalidate();
+	}
+
+	/**
+	 * Sets buffer per-instance attributes are read from. Existing vertex array
+	 * objects are released as they refer to previous instance buffer.
+	 *
+	 * @param instanceBuffer
+	 *            Instance buffer or null
+	 */
+	public void setInstanceBuffer(InstanceBuffer instanceBuffer) {
+		if (mVaoHandles.length > 0) {
+			GLState.deleteVertexArrays(mVaoHandles.length, mVaoHandles, 0);
+		}
+		mVaoShaders = new Shader[0];
+		mVaoPrograms = new int[0];
+		mVaoHandles = new int[0];
+		mInstanceBuffer = instanceBuffer;
+	}
+
+	/**
+	 * Uploads client side data into buffer objects.
+	 */
+	private void upload() {
+		int handle[] = { 0, 0 };
+		GLES30.glGenBuffers(mIndices != null ? 2 : 1, handle, 0);
+
+		mVertexBufferHandle = handle[0];
+		GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, mVertexBufferHandle);
+		GLES30.glBufferData(GLES30.GL_ARRAY_BUFFER, mVertices.capacity(),
+				mVertices, GLES30.GL_STATIC_DRAW);
+
+		if (mIndices != null) {
+			// Element buffer binding is part of vertex array state.
+			GLState.bindVertexArray(0);
+			mIndexBufferHandle = handle[1];
+			GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER,
+					mIndexBufferHandle);
+			GLES30.glBufferData(GLES30.GL_ELEMENT_ARRAY_BUFFER,
+					mIndices.capacity(), mIndices, GLES30.GL_STATIC_DRAW);
+		}
+	}
+
+	/**
+	 * Description of one interleaved vertex attribute.
+	 */
+	private static final class Attribute {
+		final String mName;
+		final int mOffset;
+		final int mSize;
+		final int mType;
+
+		Attribute(String name, int size, int type, int offset) {
+			mName = name;
+			mSize = size;
+			mType = type;
+			mOffset = offset;
+		}
+	}
+
+}
@@ -0,0 +1,234 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.graphics;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.security.MessageDigest;
+
+import android.opengl.GLES30;
+import android.util.Log;
+
+/**
+ * Persistent cache for linked shader program binaries. Binaries are stored
+ * one per file, named by a hash of shader sources together with GL renderer
+ * and version strings, so that driver updates never load stale binaries.
+ * All methods must be called from GL thread.
+ */
+public final class ProgramCache {
+
+	private static final String TAG = "ProgramCache";
+
+	// Directory binaries are stored in.
+	private final File mDirectory;
+	// GL renderer and version, read once context is available.
+	private String mDriverKey;
+	// Programs loaded from cache since last resetStatistics.
+	private int mHitCount;
+	// Programs compiled from source since last resetStatistics.
+	private int mMissCount;
+
+	/**
+	 * Creates new cache storing binaries under given directory.
+	 *
+	 * @param directory
+	 *            Cache directory, e.g Context.getCacheDir()
+	 */
+	public ProgramCache(File directory) {
+		mDirectory = new File(directory, "programs");
+	}
+
+	/**
+	 * Getter for number of programs loaded from cache.
+	 */
+	public int getHitCount() {
+		return mHitCount;
+	}
+
+	/**
+	 * Getter for number of programs compiled from source.
+	 */
+	public int getMissCount() {
+		return mMissCount;
+	}
+
+	/**
+	 * Forgets GL driver strings, e.g once OpenGL context has been recreated.
+	 */
+	public void invalidate() {
+		mDriverKey = null;
+	}
+
+	/**
+	 * Tries to create program from cached binary. Cache entries rejected by
+	 * driver are removed.
+	 *
+	 * @param vertexSource
+	 *            Vertex shader source
+	 * @param fragmentSource
+	 *            Fragment shader source
+	 * @return Linked program id or 0 if there was no usable binary.
+	 */
+	public int load(String vertexSource, String fragmentSource) {
+		File file = getFile(vertexSource, fragmentSource);
+		if (!file.exists()) {
+			++mMissCount;
+			return 0;
+		}
+
+		int program = 0;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(file));
+			int format = in.readInt();
+			int length = in.readInt();
+			byte[] data = new byte[length];
+			in.readFully(data);
+
+			ByteBuffer binary = ByteBuffer.allocateDirect(length).order(
+					ByteOrder.nativeOrder());
+			binary.put(data).position(0);
+
+			program = GLES30.glCreateProgram();
+			GLES30.glProgramBinary(program, format, binary, length);
+			int[] linkStatus = new int[1];
+			GLES30.glGetProgramiv(program, GLES30.GL_LINK_STATUS, linkStatus, 0);
+			if (linkStatus[0] != GLES30.GL_TRUE) {
+				Log.d(TAG, "Driver rejected " + file.getName());
+				GLES30.glDeleteProgram(program);
+				program = 0;
+			}
+		} catch (IOException ex) {
+			Log.w(TAG, "Could not read " + file.getName(), ex);
+			if (program != 0) {
+				GLES30.glDeleteProgram(program);
+				program = 0;
+			}
+		} finally {
+			close(in);
+		}
+
+		if (program == 0) {
+			file.delete();
+			++mMissCount;
+		} else {
+			++mHitCount;
+		}
+		return program;
+	}
+
+	/**
+	 * Resets hit and miss counters.
+	 */
+	public void resetStatistics() {
+		mHitCount = mMissCount = 0;
+	}
+
+	/**
+	 * Stores binary of given linked program. Program should have been linked
+	 * with GL_PROGRAM_BINARY_RETRIEVABLE_HINT set.
+	 *
+	 * @param program
+	 *            Linked program id
+	 * @param vertexSource
+	 *            Vertex shader source program was compiled from
+	 * @param fragmentSource
+	 *            Fragment shader source program was compiled from
+	 */
+	public void save(int program, String vertexSource, String fragmentSource) {
+		int[] length = new int[1];
+		GLES30.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH,
+				length, 0);
+		if (length[0] <= 0) {
+			return;
+		}
+
+		ByteBuffer binary = ByteBuffer.allocateDirect(length[0]).order(
+				ByteOrder.nativeOrder());
+		IntBuffer binaryLength = IntBuffer.allocate(1);
+		IntBuffer binaryFormat = IntBuffer.allocate(1);
+		GLES30.glGetProgramBinary(program, length[0], binaryLength,
+				binaryFormat, binary);
+		if (binaryLength.get(0) <= 0) {
+			return;
+		}
+		byte[] data = new byte[binaryLength.get(0)];
+		binary.get(data);
+
+		File file = getFile(vertexSource, fragmentSource);
+		DataOutputStream out = null;
+		try {
+			mDirectory.mkdirs();
+			out = new DataOutputStream(new FileOutputStream(file));
+			out.writeInt(binaryFormat.get(0));
+			out.writeInt(data.length);
+			out.write(data);
+			out.close();
+		} catch (IOException ex) {
+			Log.w(TAG, "Could not write " + file.getName(), ex);
+			close(out);
+			file.delete();
+		}
+	}
+
+	private static void close(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException ex) {
+				// Nothing to do.
+			}
+		}
+	}
+
+	/**
+	 * Returns cache file for given sources and current GL driver.
+	 */
+	private File getFile(String vertexSource, String fragmentSource) {
+		if (mDriverKey == null) {
+			mDriverKey = GLES30.glGetString(GLES30.GL_RENDERER) + '\0'
+					+ GLES30.glGetString(GLES30.GL_VERSION);
+		}
+
+		StringBuilder name = new StringBuilder();
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(vertexSource.getBytes("UTF-8"));
+			digest.update((byte) 0);
+			digest.update(fragmentSource.getBytes("UTF-8"));
+			digest.update((byte) 0);
+			digest.update(mDriverKey.getBytes("UTF-8"));
+			for (byte b : digest.digest()) {
+				name.append(Character.forDigit((b >> 4) & 0xF, 16));
+				name.append(Character.forDigit(b & 0xF, 16));
+			}
+		} catch (Exception ex) {
+			// SHA-1 and UTF-8 are always available.
+			throw new RuntimeException(ex);
+		}
+		return new File(mDirectory, name.append(".bin").toString());
+	}
+
+}
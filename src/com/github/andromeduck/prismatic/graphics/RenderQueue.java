@@ -0,0 +1,205 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.graphics;
+
+/**
+ * Queue of recorded draw commands. Every command is a single long holding,
+ * from most to least significant bits, pass, shader, state, quantized depth
+ * and payload index. Commands are sorted as unsigned values with an LSD
+ * radix sort, so that executing them in order runs passes one after another,
+ * groups draws sharing shader and state, and draws front to back within
+ * each group.
+ */
+public final class RenderQueue {
+
+	public static final int PASS_BITS = 4;
+	public static final int SHADER_BITS = 6;
+	public static final int STATE_BITS = 6;
+	public static final int DEPTH_BITS = 24;
+	public static final int PAYLOAD_BITS = 24;
+
+	private static final int PAYLOAD_SHIFT = 0;
+	private static final int DEPTH_SHIFT = PAYLOAD_SHIFT + PAYLOAD_BITS;
+	private static final int STATE_SHIFT = DEPTH_SHIFT + DEPTH_BITS;
+	private static final int SHADER_SHIFT = STATE_SHIFT + STATE_BITS;
+	private static final int PASS_SHIFT = SHADER_SHIFT + SHADER_BITS;
+
+	// Largest quantized depth.
+	private static final int DEPTH_MAX = (1 << DEPTH_BITS) - 1;
+	// Bits of key preceding payload, commands having same group are drawn
+	// with same pass, shader and state.
+	private static final long GROUP_MASK = -1L << (DEPTH_SHIFT + DEPTH_BITS);
+
+	// Number of commands recorded since last clear.
+	private int mCount = 0;
+	// Per digit bucket offsets for sort.
+	private final int[] mHistogram = new int[256];
+	// Recorded commands.
+	private long[] mKeys;
+	// Scratch space for sort.
+	private long[] mScratch;
+
+	/**
+	 * Creates new queue.
+	 *
+	 * @param capacity
+	 *            Initial number of commands
+	 */
+	public RenderQueue(int capacity) {
+		mKeys = new long[Math.max(capacity, 16)];
+		mScratch = new long[mKeys.length];
+	}
+
+	/**
+	 * Returns pass of given command.
+	 */
+	public static int getPass(long key) {
+		return (int) (key >>> PASS_SHIFT) & ((1 << PASS_BITS) - 1);
+	}
+
+	/**
+	 * Returns payload index of given command.
+	 */
+	public static int getPayload(long key) {
+		return (int) (key >>> PAYLOAD_SHIFT) & ((1 << PAYLOAD_BITS) - 1);
+	}
+
+	/**
+	 * Returns shader of given command.
+	 */
+	public static int getShader(long key) {
+		return (int) (key >>> SHADER_SHIFT) & ((1 << SHADER_BITS) - 1);
+	}
+
+	/**
+	 * Returns state of given command.
+	 */
+	public static int getState(long key) {
+		return (int) (key >>> STATE_SHIFT) & ((1 << STATE_BITS) - 1);
+	}
+
+	/**
+	 * Returns true if given commands differ in pass, shader or state.
+	 */
+	public static boolean isNewGroup(long key, long previousKey) {
+		return ((key ^ previousKey) & GROUP_MASK) != 0;
+	}
+
+	/**
+	 * Records new command.
+	 *
+	 * @param pass
+	 *            Pass, executed in ascending order
+	 * @param shader
+	 *            Shader identifier
+	 * @param state
+	 *            Render state identifier, meaning is up to pass
+	 * @param depth
+	 *            Depth from 0 to 1, nearer commands are executed first
+	 * @param payload
+	 *            Index of data to draw, meaning is up to pass
+	 * @throws IllegalArgumentException
+	 *             If pass, shader, state or payload do not fit their bits.
+	 */
+	public void add(int pass, int shader, int state, float depth, int payload) {
+		// Negative values have high bits set as well.
+		if ((pass >>> PASS_BITS | shader >>> SHADER_BITS
+				| state >>> STATE_BITS | payload >>> PAYLOAD_BITS) != 0) {
+			throw new IllegalArgumentException("Command out of range, pass "
+					+ pass + " shader " + shader + " state " + state
+					+ " payload " + payload);
+		}
+		if (mCount == mKeys.length) {
+			long[] keys = new long[mCount * 2];
+			System.arraycopy(mKeys, 0, keys, 0, mCount);
+			mKeys = keys;
+			mScratch = new long[keys.length];
+		}
+		int quantized = (int) (Math.max(0f, Math.min(depth, 1f)) * DEPTH_MAX);
+		mKeys[mCount++] = (long) pass << PASS_SHIFT
+				| (long) shader << SHADER_SHIFT | (long) state << STATE_SHIFT
+				| (long) quantized << DEPTH_SHIFT
+				| (long) payload << PAYLOAD_SHIFT;
+	}
+
+	/**
+	 * Removes all commands.
+	 */
+	public void clear() {
+		mCount = 0;
+	}
+
+	/**
+	 * Getter for command at given index.
+	 */
+	public long get(int index) {
+		return mKeys[index];
+	}
+
+	/**
+	 * Getter for number of recorded commands.
+	 */
+	public int size() {
+		return mCount;
+	}
+
+	/**
+	 * Sorts recorded commands into execution order. Runs one counting pass
+	 * per byte of key, skipping bytes all commands share.
+	 */
+	public void sort() {
+		final int count = mCount;
+		final int[] histogram = mHistogram;
+		long[] keys = mKeys;
+		long[] scratch = mScratch;
+
+		// Bits differing between any two keys, bytes outside of it are
+		// already in order.
+		long first = count > 0 ? keys[0] : 0;
+		long differing = 0;
+		for (int i = 1; i < count; ++i) {
+			differing |= keys[i] ^ first;
+		}
+
+		for (int shift = 0; shift < 64; shift += 8) {
+			if (((differing >>> shift) & 0xFF) == 0) {
+				continue;
+			}
+			for (int i = 0; i < 256; ++i) {
+				histogram[i] = 0;
+			}
+			for (int i = 0; i < count; ++i) {
+				++histogram[(int) (keys[i] >>> shift) & 0xFF];
+			}
+			for (int i = 0, offset = 0; i < 256; ++i) {
+				int bucketCount = histogram[i];
+				histogram[i] = offset;
+				offset += bucketCount;
+			}
+			for (int i = 0; i < count; ++i) {
+				long key = keys[i];
+				scratch[histogram[(int) (key >>> shift) & 0xFF]++] = key;
+			}
+			long[] swap = keys;
+			keys = scratch;
+			scratch = swap;
+		}
+		mKeys = keys;
+		mScratch = scratch;
+	}
+
+}
@@ -0,0 +1,149 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.graphics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Everything GL thread needs for rendering one simulation step, copied out
+ * of level by simulation thread. Instances are stored as records in
+ * InstanceBuffer layout, both at start and at end of step, so that
+ * rendering can interpolate between them. Snapshots are exchanged through
+ * SnapshotBuffer and are not modified once published.
+ */
+public final class RenderSnapshot {
+
+	private static final int SIZE = InstanceBuffer.INSTANCE_SIZE;
+
+	// Camera at start and end of step.
+	final float[] mCameraPositionFrom = new float[3];
+	final float[] mCameraPositionTo = new float[3];
+	final float[] mCameraTargetFrom = new float[3];
+	final float[] mCameraTargetTo = new float[3];
+	final float[] mCameraUp = new float[3];
+	// Meshes of visible static chunks and their centers.
+	int mChunkCount;
+	float[] mChunkCenters = new float[16 * 3];
+	Mesh[] mChunkMeshes = new Mesh[16];
+	// Records of shadow casters per cube map face, at end of step.
+	final int[] mCasterCounts = new int[ShadowCache.FACE_COUNT];
+	final float[][] mCasters = new float[ShadowCache.FACE_COUNT][16 * SIZE];
+	// Shadow cube map faces whose casters have changed.
+	int mDirtyFaces;
+	final float[] mForegroundColor = new float[4];
+	final float[] mLightPosition = new float[3];
+	// Chunk meshes no longer drawn by this or later snapshots, released by
+	// GL thread once acquired.
+	final List<Mesh> mReleasedMeshes = new ArrayList<Mesh>();
+	// Level.MODE_SHADOWMAP or Level.MODE_SHADOWVOLUME.
+	int mRenderMode;
+	// Visible records at start and end of step.
+	int mSceneCount;
+	float[] mSceneFrom = new float[64 * SIZE];
+	float[] mSceneTo = new float[64 * SIZE];
+	// Shadow volume vertices per volume type, built at end of step.
+	final int[] mShadowVolumeCounts = new int[2];
+	final float[][] mShadowVolumes = {
+			new float[256 * ShadowVolumeBuilder.VERTEX_SIZE],
+			new float[256 * ShadowVolumeBuilder.VERTEX_SIZE] };
+	// Length of step, 0 for snapshots never written.
+	long mStepNanos = 0;
+	// Time snapshot was published, from System.nanoTime().
+	long mTime;
+
+	/**
+	 * Returns interpolation factor between start and end of step at given
+	 * time, from 0 to 1.
+	 */
+	public float getAlpha(long now) {
+		float alpha = (float) (now - mTime) / mStepNanos;
+		return Math.max(0f, Math.min(alpha, 1f));
+	}
+
+	/**
+	 * Returns true if snapshot has never been written.
+	 */
+	public boolean isEmpty() {
+		return mStepNanos == 0;
+	}
+
+	void addCaster(int face, float[] records, int offset) {
+		int count = mCasterCounts[face];
+		if ((count + 1) * SIZE > mCasters[face].length) {
+			mCasters[face] = grow(mCasters[face], count);
+		}
+		System.arraycopy(records, offset, mCasters[face], count * SIZE, SIZE);
+		mCasterCounts[face] = count + 1;
+	}
+
+	void addChunk(StaticChunk chunk) {
+		if (mChunkCount == mChunkMeshes.length) {
+			Mesh[] meshes = new Mesh[mChunkCount * 2];
+			System.arraycopy(mChunkMeshes, 0, meshes, 0, mChunkCount);
+			mChunkMeshes = meshes;
+			float[] centers = new float[mChunkCount * 2 * 3];
+			System.arraycopy(mChunkCenters, 0, centers, 0, mChunkCount * 3);
+			mChunkCenters = centers;
+		}
+		mChunkMeshes[mChunkCount] = chunk.mMesh;
+		System.arraycopy(chunk.mBounds, 0, mChunkCenters, mChunkCount * 3, 3);
+		++mChunkCount;
+	}
+
+	void addScene(float[] from, float[] to, int offset) {
+		if ((mSceneCount + 1) * SIZE > mSceneTo.length) {
+			mSceneFrom = grow(mSceneFrom, mSceneCount);
+			mSceneTo = grow(mSceneTo, mSceneCount);
+		}
+		System.arraycopy(from, offset, mSceneFrom, mSceneCount * SIZE, SIZE);
+		System.arraycopy(to, offset, mSceneTo, mSceneCount * SIZE, SIZE);
+		++mSceneCount;
+	}
+
+	void setShadowVolumes(int type, float[] vertices, int vertexCount) {
+		int length = vertexCount * ShadowVolumeBuilder.VERTEX_SIZE;
+		if (length > mShadowVolumes[type].length) {
+			mShadowVolumes[type] = new float[Math.max(length,
+					mShadowVolumes[type].length * 2)];
+		}
+		System.arraycopy(vertices, 0, mShadowVolumes[type], 0, length);
+		mShadowVolumeCounts[type] = vertexCount;
+	}
+
+	void clear() {
+		for (int face = 0; face < ShadowCache.FACE_COUNT; ++face) {
+			mCasterCounts[face] = 0;
+		}
+		for (int i = 0; i < mChunkCount; ++i) {
+			mChunkMeshes[i] = null;
+		}
+		mChunkCount = 0;
+		mDirtyFaces = 0;
+		mReleasedMeshes.clear();
+		mSceneCount = 0;
+		mShadowVolumeCounts[ShadowVolumeBuilder.DEPTH_PASS] = 0;
+		mShadowVolumeCounts[ShadowVolumeBuilder.DEPTH_FAIL] = 0;
+	}
+
+	private static float[] grow(float[] records, int count) {
+		float[] grown = new float[records.length * 2];
+		System.arraycopy(records, 0, grown, 0, count * SIZE);
+		return grown;
+	}
+
+}
@@ -16,18 +16,17 @@
 
 package com.github.andromeduck.prismatic.graphics;
 
-import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
 import com.github.andromeduck.prismatic.R;
 import com.github.andromeduck.prismatic.graphics.blocks.BasicBlock;
-import com.github.andromeduck.prismatic.graphics.blocks.Drawable;
 import com.github.andromeduck.prismatic.levels.Level;
 import com.github.andromeduck.prismatic.levels.BasicLevel;
+import com.github.andromeduck.prismatic.physics.SimulationClock;
 
 import android.content.Context;
 import android.media.MediaPlayer;
@@ -36,25 +35,119 @@ import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
 import android.os.Handler;
 import android.os.Looper;
+import android.util.Log;
 import android.widget.Toast;
 
 public final class SceneManager extends GLSurfaceView implements GLSurfaceView.Renderer {
 
-    private ByteBuffer mBufferQuad;
+    // Shadow cube map faces and view rotations used for rendering them, in
+    // CubeFaceClassifier face order.
+    private static final int[] CUBE_FACE_TARGETS = {
+            GLES30.GL_TEXTURE_CUBE_MAP_NEGATIVE_Z,
+            GLES30.GL_TEXTURE_CUBE_MAP_POSITIVE_X,
+            GLES30.GL_TEXTURE_CUBE_MAP_POSITIVE_Z,
+            GLES30.GL_TEXTURE_CUBE_MAP_NEGATIVE_X,
+            GLES30.GL_TEXTURE_CUBE_MAP_POSITIVE_Y,
+            GLES30.GL_TEXTURE_CUBE_MAP_NEGATIVE_Y};
+    private static final float[][] CUBE_FACE_ROTATIONS = {
+            {0f, 0f, 180f}, // forward
+            {0f, 90f, 180f}, // right
+            {0f, 180f, 180f}, // back
+            {0f, -90f, 180f}, // left
+            {-90f, 0f, 0f}, // down
+            {90f, 0f, 0f}}; // up
+
+    // Uniform block binding points.
+    private static final int BINDING_FRAME = 0;
+    private static final int BINDING_LIGHT_FACE = 1;
+    // std140 byte offsets of FrameConstants block members.
+    private static final int FRAME_VIEW_M = 0;
+    private static final int FRAME_PROJ_M = 64;
+    private static final int FRAME_VIEW_PROJECTION_M = 128;
+    private static final int FRAME_VIEW_EXTRUDE_M = 192;
+    private static final int FRAME_LIGHT_POS = 256;
+    private static final int FRAME_FOREGROUND_COLOR = 272;
+    private static final int FRAME_SIZE = 288;
+
+    // Draw command passes, in execution order.
+    private static final int PASS_DEPTH_MAP = 0;
+    private static final int PASS_SCENE = 1;
+    private static final int PASS_SHADOW_VOLUME = 2;
+    private static final int PASS_COUNT = 3;
+    // Scene pass states, instanced blocks and merged static chunks.
+    private static final int STATE_INSTANCES = 0;
+    private static final int STATE_CHUNKS = 1;
+    // Draw command shaders, indices to mCommandShaders.
+    private static final int SHADER_DEPTH = 0;
+    private static final int SHADER_DEPTH_MAP = 1;
+    private static final int SHADER_DEFAULT = 2;
+    private static final int SHADER_STENCIL = 3;
+
+    // Camera projection, shared with culling on simulation thread.
+    static final float FIELD_OF_VIEW = 45f;
+    static final float NEAR = .1f;
+    static final float FAR = 40f;
+
+    // Time per frame spent uploading loaded assets.
+    private static final long UPLOAD_BUDGET_NANOS = 4000000L;
+
+    // Reads and decodes assets off GL thread.
+    private final AssetLoader mAssets = new AssetLoader(2);
     private Context mContext;
     private int mInitCounter;
+    // Time shader initialization started, 0 when not initializing.
+    private long mInitStart;
+    // GL objects rebuilt from recorded parameters after context loss.
+    private final GpuResources mResources = new GpuResources();
+    // Programs being loaded, null when not loading. Kept across context
+    // loss, as pending uploads simply link into the new context.
+    private AssetFuture<?>[] mShaderLoads;
+    // True once all programs have been loaded from sources.
+    private boolean mShadersLoaded;
 
 
-    private long PrevTime;
     public static final float[] inputDir = new float[3];
 
+    // Interpolation factor between start and end of snapshot step.
+    private float mAlpha;
+    // Interpolated camera.
+    private final float[] mCameraPosition = new float[3];
+    private final float[] mCameraTarget = new float[3];
+    // Light position shadow face matrices were calculated for.
+    private final float[] mLightFacePosition = new float[3];
+    // True if shadow cube map contents were lost and all faces need to be
+    // rendered.
+    private boolean mShadowFacesLost = true;
+    // Level simulation, running on its own thread 60 steps per second and
+    // catching up at most 5 steps at once.
+    private final SimulationThread mSimulation;
+    // Render snapshots published by simulation thread.
+    private final SnapshotBuffer mSnapshots = new SnapshotBuffer();
+    // Snapshot rendered in current frame.
+    private RenderSnapshot mSnapshot;
+
 
     private final FBO mFboCubeMap = new FBO();
     private final FBO mFboFull = new FBO();
-    private final FBO mFboQuarter = new FBO();
+
+    private final BloomStage mBloom = new BloomStage(4);
+
+    private final InstanceBuffer mInstances = new InstanceBuffer();
+    // Static chunk meshes uploaded in current context.
+    private final List<Mesh> mChunkMeshes = new ArrayList<Mesh>();
+
+    // Buffer shadow volumes of snapshot are streamed through.
+    private final VertexStream mShadowVolumeStream = new VertexStream();
+
+    // Camera and light constants, written once per frame.
+    private final UniformBuffer mFrameUniforms = new UniformBuffer(FRAME_SIZE);
+    // Light view projection per cube map face, mLightFaceStride apart.
+    private UniformBuffer mLightFaceUniforms;
+    private int mLightFaceStride;
 
 
     private final float[] mMatrixExtrude = new float[16];
+    private final float[] mMatrixFaceView = new float[16 * ShadowCache.FACE_COUNT];
     private final float[] mMatrixProjection = new float[16];
     private final float[] mMatrixProjectionDepth = new float[16];
     private final float[] mMatrixRotate = new float[16];
@@ -63,18 +156,35 @@ public final class SceneManager extends GLSurfaceView implements GLSurfaceView.R
     private final float[] mMatrixViewLight = new float[16];
     private final float[] mMatrixViewProjection = new float[16];
     private MediaPlayer mMediaPlayer;
+    private final Mesh mMeshQuad;
 
-    private final float[] mPlanes = new float[24];
+    private final ProgramCache mProgramCache;
     private final boolean[] mShaderCompilerSupport = new boolean[1];
 
-    private final Shader mShaderBloom1 = new Shader();
-    private final Shader mShaderBloom2 = new Shader();
     private final Shader mShaderBloom3 = new Shader();
     private final Shader mShaderDefault = new Shader();
     private final Shader mShaderDepth = new Shader();
     private final Shader mShaderDepthMap = new Shader();
     private final Shader mShaderStencil = new Shader();
     private final Shader mShaderStencilMask = new Shader();
+    // Shaders by draw command shader identifier.
+    private final Shader[] mCommandShaders = {mShaderDepth, mShaderDepthMap,
+            mShaderDefault, mShaderStencil};
+    // Draw commands of current frame.
+    private final RenderQueue mCommands = new RenderQueue(256);
+    // Mesh and shader of current command group.
+    private Mesh mCommandMesh;
+    private Shader mCommandShader;
+    // Shadow cube map faces redrawn in current frame.
+    private int mDirtyFaces;
+
+    // Attribute and uniform locations, resolved once programs are loaded.
+    // Model matrix location per command shader, -1 if shader has none.
+    private final int[] mAttributeModel = new int[mCommandShaders.length];
+    private int mAttributeStencilPosition;
+    private int mUniformBloomScale;
+    private int mUniformBloomTexture;
+    private int mUniformBloomSourceTexture;
 
     // code for drawing inverted skybox
     //private final Drawable mSkybox = new BasicBlock();
@@ -82,23 +192,76 @@ public final class SceneManager extends GLSurfaceView implements GLSurfaceView.R
     private int viewportWidth, viewportHeight;
 
     // TODO: Level manager
-    private final Level currentLevel = new BasicLevel();
+    private final Level currentLevel;
+    // True if rendered offscreen by caller instead of by GLSurfaceView.
+    private final boolean mHeadless;
+    // Time offscreen frames are rendered at, set by advanceTo.
+    private long mHeadlessTime;
 
     public SceneManager(Context context, MediaPlayer mediaPlayer) {
+        this(context, mediaPlayer, new BasicLevel(), false);
+    }
+
+    /**
+     * Creates scene manager for offscreen rendering, e.g benchmarks. Nothing
+     * runs on its own, caller makes a GL context current on one thread and
+     * drives Renderer methods and advanceTo from it.
+     *
+     * @param context Context for resources and program cache
+     * @param level   Level to render
+     */
+    public SceneManager(Context context, Level level) {
+        this(context, null, level, true);
+    }
+
+    private SceneManager(Context context, MediaPlayer mediaPlayer, Level level,
+                         boolean headless) {
         super(context);
 
         mContext = context;
 
         mMediaPlayer = mediaPlayer;
 
+        mProgramCache = new ProgramCache(context.getCacheDir());
+
+        // Level is owned by simulation thread from now on, offscreen it is
+        // stepped by caller instead.
+        currentLevel = level;
+        mHeadless = headless;
+        mSimulation = new SimulationThread(currentLevel, inputDir,
+                new SimulationClock(1000000000L / 60, 5), mSnapshots);
+        if (!headless) {
+            mSimulation.start();
+        }
+
+        // Programs, render targets and buffers are kept while paused if the
+        // device allows, otherwise they are rebuilt from recorded state.
+        mResources.register(mShaderDefault);
+        mResources.register(mShaderDepthMap);
+        mResources.register(mShaderDepth);
+        mResources.register(mShaderStencil);
+        mResources.register(mShaderStencilMask);
+        mResources.register(mShaderBloom3);
+        mResources.register(mBloom);
+        mResources.register(mFboCubeMap);
+        mResources.register(mFboFull);
+
         setEGLContextClientVersion(3);
-        setRenderer(this);
-        setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
+        setPreserveEGLContextOnPause(true);
+        if (!headless) {
+            setRenderer(this);
+            setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
+        }
+
+        // Create full scene quad mesh, vertex layout is {x, y, pad, pad}.
+        final byte FULL_QUAD_COORDS[] = {-1, 1, 0, 0, -1, -1, 0, 0, 1, 1, 0, 0,
+                1, -1, 0, 0};
+        mMeshQuad = new Mesh(FULL_QUAD_COORDS, 4, null);
+        mMeshQuad.addAttribute("aPosition", 2, GLES30.GL_BYTE, 0);
 
-        // Create full scene quad buffer.
-        final byte FULL_QUAD_COORDS[] = {-1, 1, -1, -1, 1, 1, 1, -1};
-        mBufferQuad = ByteBuffer.allocateDirect(4 * 2);
-        mBufferQuad.put(FULL_QUAD_COORDS).position(0);
+        // Blocks are drawn instanced, one draw call per pass.
+        BasicBlock.getMesh().setInstanceBuffer(mInstances);
+        BasicBlock.getMeshInv().setInstanceBuffer(mInstances);
 
         // code for drawing inverted skybox
         // negative scaling makes cube draw on inside instead of outside
@@ -113,22 +276,12 @@ public final class SceneManager extends GLSurfaceView implements GLSurfaceView.R
         Matrix.setIdentityM(mMatrixViewLight, 0);
     }
 
-    /**
-     * Loads String from raw resources with given id.
-     */
-    private String loadRawString(int rawId) throws Exception {
-        InputStream is = mContext.getResources().openRawResource(rawId);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte[] buf = new byte[1024];
-        int len;
-        while ((len = is.read(buf)) != -1) {
-            baos.write(buf, 0, len);
-        }
-        return baos.toString();
-    }
-
     @Override
     public void onDrawFrame(GL10 unused) {
+        // Per frame GL call counters are read by benchmarks.
+        GLState.beginFrame();
+        mAssets.upload(UPLOAD_BUDGET_NANOS);
+
         /**
          * Initialize OpenGL context.
          */
@@ -155,49 +308,90 @@ public final class SceneManager extends GLSurfaceView implements GLSurfaceView.R
                 return;
             }
             case 2: {
+                if (mInitStart == 0) {
+                    mInitStart = System.nanoTime();
+                    mProgramCache.resetStatistics();
+                }
 
-                // Load vertex and fragment shaders.
+                // Objects lost along with previous context are rebuilt from
+                // recorded sources and parameters, a few per frame.
                 try {
-                    String vertexSource, fragmentSource;
-                    vertexSource = loadRawString(R.raw.default_vs);
-                    fragmentSource = loadRawString(R.raw.default_fs);
-                    mShaderDefault.setProgram(vertexSource, fragmentSource);
-                    vertexSource = loadRawString(R.raw.depthmap_vs);
-                    fragmentSource = loadRawString(R.raw.depthmap_fs);
-                    mShaderDepthMap.setProgram(vertexSource, fragmentSource);
-                    vertexSource = loadRawString(R.raw.depth_vs);
-                    fragmentSource = loadRawString(R.raw.depth_fs);
-                    mShaderDepth.setProgram(vertexSource, fragmentSource);
-                    vertexSource = loadRawString(R.raw.stencil_vs);
-                    fragmentSource = loadRawString(R.raw.stencil_fs);
-                    mShaderStencil.setProgram(vertexSource, fragmentSource);
-                    vertexSource = loadRawString(R.raw.stencil_mask_vs);
-                    fragmentSource = loadRawString(R.raw.stencil_mask_fs);
-                    mShaderStencilMask.setProgram(vertexSource, fragmentSource);
-                    vertexSource = loadRawString(R.raw.bloom_vs);
-                    fragmentSource = loadRawString(R.raw.bloom_pass1_fs);
-                    mShaderBloom1.setProgram(vertexSource, fragmentSource);
-                    vertexSource = loadRawString(R.raw.bloom_vs);
-                    fragmentSource = loadRawString(R.raw.bloom_pass2_fs);
-                    mShaderBloom2.setProgram(vertexSource, fragmentSource);
-                    vertexSource = loadRawString(R.raw.bloom_vs);
-                    fragmentSource = loadRawString(R.raw.bloom_pass3_fs);
-                    mShaderBloom3.setProgram(vertexSource, fragmentSource);
+                    if (!mResources.restore(UPLOAD_BUDGET_NANOS)) {
+                        GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT);
+                        return;
+                    }
                 } catch (Exception ex) {
                     showError(ex.getMessage());
+                    return;
+                }
+
+                // First time around shader sources are read on loader
+                // threads and programs are linked a few per frame, linked
+                // programs are cached between runs to keep startup short.
+                if (!mShadersLoaded) {
+                    if (mShaderLoads == null) {
+                        if (mAssets.isIdle()) {
+                            mAssets.resetProgress();
+                        }
+                        mShaderLoads = loadShaders();
+                    }
+                    for (AssetFuture<?> load : mShaderLoads) {
+                        if (!load.isDone()) {
+                            GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT);
+                            return;
+                        }
+                    }
+                    for (AssetFuture<?> load : mShaderLoads) {
+                        if (load.getError() != null) {
+                            showError(load.getError().getMessage());
+                        }
+                    }
+                    mShaderLoads = null;
+                    mShadersLoaded = true;
                 }
+
+                // Uniform block bindings are program state, so they are set
+                // again for restored programs too.
+                try {
+                    resolveUniforms();
+                } catch (Exception ex) {
+                    showError(ex.getMessage());
+                }
+                long elapsed = (System.nanoTime() - mInitStart) / 1000000;
+                mInitStart = 0;
+                Log.i("SceneManager", (mProgramCache.getMissCount() == 0 ? "Warm" : "Cold")
+                        + " shader startup took " + elapsed + " ms, "
+                        + mProgramCache.getHitCount() + " cached, "
+                        + mProgramCache.getMissCount() + " compiled");
             }
             case 3: {
                 float aspectR = (float) viewportWidth / viewportHeight;
-                MathUtils.setPerspectiveM(mMatrixProjection, 45f, aspectR, .1f,
-                        40f);
-                MathUtils.setPerspectiveM(mMatrixProjectionDepth, 90f, 1f, .1f,
-                        40f);
-                MathUtils.setExtrudeM(mMatrixExtrude, 45f, aspectR, .1f);
+                MathUtils.setPerspectiveM(mMatrixProjection, FIELD_OF_VIEW,
+                        aspectR, NEAR, FAR);
+                MathUtils.setPerspectiveM(mMatrixProjectionDepth, 90f, 1f, NEAR,
+                        FAR);
+                MathUtils.setExtrudeM(mMatrixExtrude, FIELD_OF_VIEW, aspectR, NEAR);
+                mSimulation.setAspectRatio(aspectR);
+
+                if (mLightFaceUniforms == null) {
+                    mLightFaceStride = UniformBuffer.align(64,
+                            UniformBuffer.getOffsetAlignment());
+                    mLightFaceUniforms = new UniformBuffer(mLightFaceStride
+                            * ShadowCache.FACE_COUNT);
+                }
 
-                mFboCubeMap.init(512, 512, GLES30.GL_TEXTURE_CUBE_MAP, 1, true);
-                mFboQuarter.init(viewportWidth / 4, viewportHeight / 4, 2);
-                mFboFull.init(viewportWidth, viewportHeight, GLES30.GL_TEXTURE_2D, 1, true);
+                // Cube map size does not depend on surface, only screen
+                // sized targets are reallocated on resize.
+                if (mFboCubeMap.getWidth() == 0) {
+                    mFboCubeMap.initDepth(512, 512, GLES30.GL_TEXTURE_CUBE_MAP, 1);
+                    mShadowFacesLost = true;
+                }
+                if (mFboFull.getWidth() != viewportWidth
+                        || mFboFull.getHeight() != viewportHeight) {
+                    mFboFull.init(viewportWidth, viewportHeight, GLES30.GL_TEXTURE_2D, 1, true);
+                    mFboFull.setFilter(GLES30.GL_LINEAR, GLES30.GL_LINEAR);
+                    mBloom.init(viewportWidth, viewportHeight);
+                }
 
                 mInitCounter = 4;
             }
@@ -205,61 +399,114 @@ public final class SceneManager extends GLSurfaceView implements GLSurfaceView.R
 
 
         // TODO figure out how to change draw distance, stencil/depth buffer values.
-        float deltaTime = (float) (System.currentTimeMillis() - PrevTime);
-        PrevTime += deltaTime;
-        currentLevel.update(deltaTime, inputDir);
-
+        // Render latest simulated step, interpolating from its start to its
+        // end while simulation thread works on the next one.
+        mSnapshot = mSnapshots.acquire();
+        releaseChunkMeshes();
+        if (mSnapshot.isEmpty()) {
+            GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT);
+            return;
+        }
+        RenderSnapshot snapshot = mSnapshot;
+        mAlpha = snapshot.getAlpha(mHeadless ? mHeadlessTime : System.nanoTime());
 
+        MathUtils.interpolateV(mCameraPosition, snapshot.mCameraPositionFrom, snapshot.mCameraPositionTo, mAlpha);
+        MathUtils.interpolateV(mCameraTarget, snapshot.mCameraTargetFrom, snapshot.mCameraTargetTo, mAlpha);
         Matrix.setLookAtM(mMatrixView, 0,
-                currentLevel.cameraPosition[0], currentLevel.cameraPosition[1], currentLevel.cameraPosition[2], // position
-                currentLevel.cameraTarget[0], currentLevel.cameraTarget[1], currentLevel.cameraTarget[2], // target
-                currentLevel.cameraUp[0], currentLevel.cameraUp[1], currentLevel.cameraUp[2]); // up
+                mCameraPosition[0], mCameraPosition[1], mCameraPosition[2], // position
+                mCameraTarget[0], mCameraTarget[1], mCameraTarget[2], // target
+                snapshot.mCameraUp[0], snapshot.mCameraUp[1], snapshot.mCameraUp[2]); // up
+        updateFrameConstants();
 
         /**
-         * Actual scene rendering.
+         * Actual scene rendering. Draws of all passes are recorded as
+         * commands and sorted, so that every pass is drawn front to back
+         * and state is changed once per group of draws.
          */
 
-        int renderMode = currentLevel.getRenderMode();
-        switch (renderMode) {
-            case Level.MODE_SHADOWMAP: {
-                renderDepthMap();
+        recordCommands();
+        mCommands.sort();
+        executeCommands();
 
-                mFboFull.bindTexture(GLES30.GL_TEXTURE_2D, 0);
-                GLES30.glClear(GLES30.GL_DEPTH_BUFFER_BIT);
+        if (snapshot.mRenderMode == Level.MODE_SHADOWVOLUME) {
+            GLState.enable(GLES30.GL_STENCIL_TEST);
+            GLState.enable(GLES30.GL_BLEND);
+            GLES30.glStencilFunc(GLES30.GL_NOTEQUAL, 0x00, 0xFF);
+            GLState.blendFunc(GLES30.GL_SRC_ALPHA,
+                    GLES30.GL_ONE_MINUS_SRC_ALPHA);
 
-                renderScene(renderMode);
-                renderBloom();
-                break;
-            }
-            case Level.MODE_SHADOWVOLUME: {
-                mFboFull.bindTexture(GLES30.GL_TEXTURE_2D, 0);
-                GLES30.glClear(GLES30.GL_DEPTH_BUFFER_BIT
-                        | GLES30.GL_STENCIL_BUFFER_BIT);
-
-                renderScene(renderMode);
-                renderShadowStencil();
+            mShaderStencilMask.useProgram();
+            mMeshQuad.bind(mShaderStencilMask);
+            mMeshQuad.draw(GLES30.GL_TRIANGLE_STRIP);
 
-                GLES30.glEnable(GLES30.GL_STENCIL_TEST);
-                GLES30.glEnable(GLES30.GL_BLEND);
-                GLES30.glStencilFunc(GLES30.GL_NOTEQUAL, 0x00, 0xFF);
-                GLES30.glBlendFunc(GLES30.GL_SRC_ALPHA,
-                        GLES30.GL_ONE_MINUS_SRC_ALPHA);
+            GLState.disable(GLES30.GL_STENCIL_TEST);
+            GLState.disable(GLES30.GL_BLEND);
+        }
+        renderBloom();
+    }
 
-                mShaderStencilMask.useProgram();
-                GLES30.glVertexAttribPointer(
-                        mShaderStencilMask.getHandle("aPosition"), 2,
-                        GLES30.GL_BYTE, false, 0, mBufferQuad);
-                GLES30.glEnableVertexAttribArray(mShaderStencilMask
-                        .getHandle("aPosition"));
-                GLES30.glDrawArrays(GLES30.GL_TRIANGLE_STRIP, 0, 4);
+    /**
+     * Simulates offscreen scene up to given time, next frame is rendered as
+     * of that time. To be called from thread rendering offscreen.
+     *
+     * @param now Time in nanoseconds, advanced by caller at its own pace
+     */
+    public void advanceTo(long now) {
+        if (!mHeadless) {
+            throw new IllegalStateException("Scene is not rendered offscreen");
+        }
+        mSimulation.simulate(now);
+        mHeadlessTime = now;
+    }
 
-                GLES30.glDisable(GLES30.GL_STENCIL_TEST);
-                GLES30.glDisable(GLES30.GL_BLEND);
+    /**
+     * Returns true once programs and render targets are ready and frames
+     * draw the scene.
+     */
+    public boolean isInitialized() {
+        return mInitCounter == 4;
+    }
 
-                renderBloom();
-                break;
+    /**
+     * Sets number of texture fetches per bloom blur pass.
+     *
+     * @param tapCount Odd tap count, e.g BloomStage.QUALITY_MEDIUM.
+     */
+    public void setBloomQuality(final int tapCount) {
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                mBloom.setTapCount(tapCount);
             }
-        }
+        });
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        mSimulation.setPaused(true);
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        mSimulation.setPaused(false);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        release();
+    }
+
+    /**
+     * Stops simulation and asset loader threads and releases level. Called
+     * once view has been detached, offscreen scenes are released by their
+     * owner. Scene can not be used afterwards.
+     */
+    public void release() {
+        mSimulation.shutdown();
+        mAssets.shutdown();
     }
 
     @Override
@@ -274,305 +521,492 @@ public final class SceneManager extends GLSurfaceView implements GLSurfaceView.R
 
     @Override
     public void onSurfaceCreated(GL10 unused, EGLConfig config) {
+        // Called only for new contexts, everything created in the old one
+        // is gone. Objects already created are restored from recorded state
+        // and shadow cube map contents are rendered again. Programs still
+        // loading are left to their pending uploads, restoring skips them.
         mInitCounter = 0;
+        mInitStart = 0;
+        mResources.invalidate();
+        mShadowFacesLost = true;
+
+        // Buffer objects were released along with the old context.
+        mMeshQuad.invalidate();
+        mInstances.invalidate();
+        mShadowVolumeStream.invalidate();
+        BasicBlock.invalidateMeshes();
+        for (int i = 0; i < mChunkMeshes.size(); ++i) {
+            mChunkMeshes.get(i).invalidate();
+        }
+        mChunkMeshes.clear();
+        mProgramCache.invalidate();
+        GLState.invalidate();
+        mFrameUniforms.invalidate();
+        if (mLightFaceUniforms != null) {
+            mLightFaceUniforms.invalidate();
+        }
     }
 
     private void renderBloom() {
-        /**
-         * Instantiate variables for bloom filter.
-         */
-
-        // Pixel sizes.
-        float blurSizeH = 1f / mFboQuarter.getWidth();
-        float blurSizeV = 1f / mFboQuarter.getHeight();
-
-        // Calculate number of pixels from relative size.
-        int numBlurPixelsPerSide = (int) (0.05f * Math.min(
-                mFboQuarter.getWidth(), mFboQuarter.getHeight()));
-        if (numBlurPixelsPerSide < 1)
-            numBlurPixelsPerSide = 1;
-        double sigma = 1.0 + numBlurPixelsPerSide * 0.5;
-
-        // Values needed for incremental gaussian blur.
-        double incrementalGaussian1 = 1.0 / (Math.sqrt(2.0 * Math.PI) * sigma);
-        double incrementalGaussian2 = Math.exp(-0.5 / (sigma * sigma));
-        double incrementalGaussian3 = incrementalGaussian2
-                * incrementalGaussian2;
-
-        GLES30.glDisable(GLES30.GL_DEPTH_TEST);
+        GLState.disable(GLES30.GL_DEPTH_TEST);
 
         /**
-         * First pass, blur texture horizontally.
+         * Extract, downsample and blur bright areas.
          */
-
-        mFboQuarter.bindTexture(GLES30.GL_TEXTURE_2D, 0);
-        mShaderBloom1.useProgram();
-
-        GLES30.glActiveTexture(GLES30.GL_TEXTURE0);
-        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, mFboFull.getTexture(0));
-        GLES30.glUniform3f(mShaderBloom1.getHandle("uIncrementalGaussian"),
-                (float) incrementalGaussian1, (float) incrementalGaussian2,
-                (float) incrementalGaussian3);
-        GLES30.glUniform1f(mShaderBloom1.getHandle("uNumBlurPixelsPerSide"),
-                numBlurPixelsPerSide);
-        GLES30.glUniform2f(mShaderBloom1.getHandle("uBlurOffset"), blurSizeH,
-                0f);
-
-        GLES30.glVertexAttribPointer(mShaderBloom1.getHandle("aPosition"), 2,
-                GLES30.GL_BYTE, false, 0, mBufferQuad);
-        GLES30.glEnableVertexAttribArray(mShaderBloom1.getHandle("aPosition"));
-        GLES30.glDrawArrays(GLES30.GL_TRIANGLE_STRIP, 0, 4);
-
-        /**
-         * Second pass, blur texture vertically.
-         */
-        mFboQuarter.bindTexture(GLES30.GL_TEXTURE_2D, 1);
-        mShaderBloom2.useProgram();
-
-        GLES30.glActiveTexture(GLES30.GL_TEXTURE0);
-        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, mFboQuarter.getTexture(0));
-        GLES30.glUniform3f(mShaderBloom2.getHandle("uIncrementalGaussian"),
-                (float) incrementalGaussian1, (float) incrementalGaussian2,
-                (float) incrementalGaussian3);
-        GLES30.glUniform1f(mShaderBloom2.getHandle("uNumBlurPixelsPerSide"),
-                numBlurPixelsPerSide);
-        GLES30.glUniform2f(mShaderBloom2.getHandle("uBlurOffset"), 0f,
-                blurSizeV);
-
-        GLES30.glVertexAttribPointer(mShaderBloom2.getHandle("aPosition"), 2,
-                GLES30.GL_BYTE, false, 0, mBufferQuad);
-        GLES30.glEnableVertexAttribArray(mShaderBloom2.getHandle("aPosition"));
-        GLES30.glDrawArrays(GLES30.GL_TRIANGLE_STRIP, 0, 4);
+        try {
+            mBloom.render(mFboFull.getTexture(0), mMeshQuad);
+        } catch (Exception ex) {
+            showError(ex.getMessage());
+        }
 
         /**
-         * Third pass, combine source texture and calculated bloom texture into
-         * output texture.
+         * Combine source texture and calculated bloom texture into output
+         * texture.
          */
 
-        GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, 0);
-        GLES30.glViewport(0, 0, viewportWidth, viewportHeight);
+        GLState.bindFramebuffer(0);
+        GLState.viewport(0, 0, viewportWidth, viewportHeight);
 
         mShaderBloom3.useProgram();
 
-        GLES30.glActiveTexture(GLES30.GL_TEXTURE0);
-        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, mFboQuarter.getTexture(1));
-        GLES30.glUniform1i(mShaderBloom3.getHandle("sTextureBloom"), 0);
-        GLES30.glActiveTexture(GLES30.GL_TEXTURE1);
-        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, mFboFull.getTexture(0));
-        GLES30.glUniform1i(mShaderBloom3.getHandle("sTextureSource"), 1);
-        GLES30.glUniform4fv(mShaderBloom3.getHandle("uForegroundColor"), 1,
-                currentLevel.foregroundColor, 0);
-
-        GLES30.glVertexAttribPointer(mShaderBloom3.getHandle("aPosition"), 2,
-                GLES30.GL_BYTE, false, 0, mBufferQuad);
-        GLES30.glEnableVertexAttribArray(mShaderBloom3.getHandle("aPosition"));
-        GLES30.glDrawArrays(GLES30.GL_TRIANGLE_STRIP, 0, 4);
-    }
+        GLState.bindTexture(0, GLES30.GL_TEXTURE_2D, mBloom.getTexture());
+        GLES30.glUniform1i(mUniformBloomTexture, 0);
+        GLState.bindTexture(1, GLES30.GL_TEXTURE_2D, mFboFull.getTexture(0));
+        GLES30.glUniform1i(mUniformBloomSourceTexture, 1);
+        GLES30.glUniform1f(mUniformBloomScale, 1.5f * mBloom.getScale());
 
-    public void renderDepthMap() {
-        // Render shadow map forward.
-        mFboCubeMap.bindTexture(GLES30.GL_TEXTURE_CUBE_MAP_NEGATIVE_Z, 0);
-        GLES30.glClear(GLES30.GL_DEPTH_BUFFER_BIT);
-        MathUtils.setRotateM(mMatrixRotate, 0f, 0f, 180f);
-        renderDepthMapFace(mMatrixRotate);
-
-        // Render shadow map right.
-        mFboCubeMap.bindTexture(GLES30.GL_TEXTURE_CUBE_MAP_POSITIVE_X, 0);
-        GLES30.glClear(GLES30.GL_DEPTH_BUFFER_BIT);
-        MathUtils.setRotateM(mMatrixRotate, 0f, 90f, 180f);
-        renderDepthMapFace(mMatrixRotate);
-
-        // Render shadow map back.
-        mFboCubeMap.bindTexture(GLES30.GL_TEXTURE_CUBE_MAP_POSITIVE_Z, 0);
-        GLES30.glClear(GLES30.GL_DEPTH_BUFFER_BIT);
-        MathUtils.setRotateM(mMatrixRotate, 0f, 180f, 180f);
-        renderDepthMapFace(mMatrixRotate);
-
-        // Render shadow map left.
-        mFboCubeMap.bindTexture(GLES30.GL_TEXTURE_CUBE_MAP_NEGATIVE_X, 0);
-        GLES30.glClear(GLES30.GL_DEPTH_BUFFER_BIT);
-        MathUtils.setRotateM(mMatrixRotate, 0f, -90f, 180f);
-        renderDepthMapFace(mMatrixRotate);
-
-        // Render shadow map down.
-        mFboCubeMap.bindTexture(GLES30.GL_TEXTURE_CUBE_MAP_POSITIVE_Y, 0);
-        GLES30.glClear(GLES30.GL_DEPTH_BUFFER_BIT);
-        MathUtils.setRotateM(mMatrixRotate, -90f, 0f, 0f);
-        renderDepthMapFace(mMatrixRotate);
-
-        // Render shadow map up.
-        mFboCubeMap.bindTexture(GLES30.GL_TEXTURE_CUBE_MAP_NEGATIVE_Y, 0);
-        GLES30.glClear(GLES30.GL_DEPTH_BUFFER_BIT);
-        MathUtils.setRotateM(mMatrixRotate, 90f, 0f, 0f);
-        renderDepthMapFace(mMatrixRotate);
+        mMeshQuad.bind(mShaderBloom3);
+        mMeshQuad.draw(GLES30.GL_TRIANGLE_STRIP);
     }
 
-    public void renderDepthMapFace(float[] viewRotateM) {
-        // Render filled cube.
-        mShaderDepth.useProgram();
+    /**
+     * Sets up given pass. Passes not used by current render mode are left
+     * empty.
+     */
+    private void beginPass(int pass) {
+        int renderMode = mSnapshot.mRenderMode;
+        switch (pass) {
+            case PASS_DEPTH_MAP: {
+                if (renderMode != Level.MODE_SHADOWMAP || mDirtyFaces == 0) {
+                    break;
+                }
+                GLState.enable(GLES30.GL_CULL_FACE);
+                GLState.enable(GLES30.GL_DEPTH_TEST);
+
+                // Slope scaled bias against self shadowing, as hardware
+                // depth is compared without any bias in depthmap_fs.
+                GLState.enable(GLES30.GL_POLYGON_OFFSET_FILL);
+                GLES30.glPolygonOffset(2f, 4f);
+
+                // Faces are cleared up front, as faces left without casters
+                // have no commands.
+                for (int face = 0; face < ShadowCache.FACE_COUNT; ++face) {
+                    if ((mDirtyFaces & (1 << face)) != 0) {
+                        mFboCubeMap.bindTexture(CUBE_FACE_TARGETS[face], 0);
+                        GLES30.glClear(GLES30.GL_DEPTH_BUFFER_BIT);
+                    }
+                }
+                break;
+            }
+            case PASS_SCENE: {
+                mFboFull.bindTexture(GLES30.GL_TEXTURE_2D, 0);
+                if (renderMode == Level.MODE_SHADOWMAP) {
+                    GLState.bindTexture(0, GLES30.GL_TEXTURE_CUBE_MAP,
+                            mFboCubeMap.getTexture(0));
+                }
+                GLState.enable(GLES30.GL_CULL_FACE);
+                GLState.enable(GLES30.GL_DEPTH_TEST);
+                GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT
+                        | GLES30.GL_DEPTH_BUFFER_BIT
+                        | GLES30.GL_STENCIL_BUFFER_BIT);
+                break;
+            }
+            case PASS_SHADOW_VOLUME: {
+                if (renderMode != Level.MODE_SHADOWVOLUME) {
+                    break;
+                }
+                GLState.disable(GLES30.GL_CULL_FACE);
+                GLState.enable(GLES30.GL_DEPTH_TEST);
+                GLState.enable(GLES30.GL_STENCIL_TEST);
+
+                GLState.depthMask(false);
+                GLState.colorMask(false, false, false, false);
 
-        int uModelM = mShaderDepth.getHandle("uModelM");
-        int uViewM = mShaderDepth.getHandle("uViewM");
-        int uProjM = mShaderDepth.getHandle("uProjM");
-        int aPosition = mShaderDepth.getHandle("aPosition");
+                GLES30.glStencilFunc(GLES30.GL_ALWAYS, 0x00, 0xFF);
+                break;
+            }
+        }
+    }
 
-        Matrix.multiplyMM(mMatrixViewProjection, 0, viewRotateM, 0,
-                mMatrixViewLight, 0);
+    /**
+     * Switches shader, mesh and pass specific state for group of commands
+     * starting with given one.
+     */
+    private void beginGroup(long key) {
+        int pass = RenderQueue.getPass(key);
+        Shader shader = mCommandShaders[RenderQueue.getShader(key)];
+        shader.useProgram();
+        mCommandShader = shader;
+
+        if (pass == PASS_SHADOW_VOLUME) {
+            // Open volumes count front and back faces in front of scene,
+            // capped volumes the camera may be inside of count faces behind
+            // it instead. Both leave non-zero stencil for shadowed pixels.
+            if (RenderQueue.getState(key) == ShadowVolumeBuilder.DEPTH_PASS) {
+                GLES30.glStencilOpSeparate(GLES30.GL_FRONT, GLES30.GL_KEEP,
+                        GLES30.GL_KEEP, GLES30.GL_INCR_WRAP);
+                GLES30.glStencilOpSeparate(GLES30.GL_BACK, GLES30.GL_KEEP,
+                        GLES30.GL_KEEP, GLES30.GL_DECR_WRAP);
+            } else {
+                GLES30.glStencilOpSeparate(GLES30.GL_FRONT, GLES30.GL_KEEP,
+                        GLES30.GL_DECR_WRAP, GLES30.GL_KEEP);
+                GLES30.glStencilOpSeparate(GLES30.GL_BACK, GLES30.GL_KEEP,
+                        GLES30.GL_INCR_WRAP, GLES30.GL_KEEP);
+            }
+            return;
+        }
 
-        GLES30.glUniformMatrix4fv(uViewM, 1, false, mMatrixViewProjection, 0);
-        GLES30.glUniformMatrix4fv(uProjM, 1, false, mMatrixProjectionDepth, 0);
+        if (pass == PASS_SCENE && RenderQueue.getState(key) == STATE_CHUNKS) {
+            // Chunk vertices are in world space, model matrix attribute is
+            // left disabled and read as identity.
+            int aModelM = mAttributeModel[RenderQueue.getShader(key)];
+            if (aModelM != -1) {
+                for (int i = 0; i < 4; ++i) {
+                    GLES30.glVertexAttrib4f(aModelM + i, i == 0 ? 1f : 0f,
+                            i == 1 ? 1f : 0f, i == 2 ? 1f : 0f, i == 3 ? 1f : 0f);
+                }
+            }
+            return;
+        }
 
-        GLES30.glVertexAttribPointer(aPosition, 3, GLES30.GL_BYTE, false, 0,
-                BasicBlock.getVertices());
-        GLES30.glEnableVertexAttribArray(aPosition);
+        mCommandMesh = BasicBlock.getMesh();
+        mCommandMesh.bind(shader);
 
-        GLES30.glEnable(GLES30.GL_CULL_FACE);
-        GLES30.glEnable(GLES30.GL_DEPTH_TEST);
+        if (pass == PASS_DEPTH_MAP) {
+            int face = RenderQueue.getState(key);
+            mFboCubeMap.bindTexture(CUBE_FACE_TARGETS[face], 0);
+            mLightFaceUniforms.bindRange(BINDING_LIGHT_FACE,
+                    face * mLightFaceStride, 64);
+        }
+    }
 
-        Matrix.multiplyMM(mMatrixViewProjection, 0, mMatrixProjectionDepth, 0,
-                mMatrixViewProjection, 0);
-        Visibility.extractPlanes(mMatrixViewProjection, mPlanes);
+    /**
+     * Restores state changed by given pass.
+     */
+    private void endPass(int pass) {
+        switch (pass) {
+            case PASS_DEPTH_MAP: {
+                GLState.disable(GLES30.GL_POLYGON_OFFSET_FILL);
+                break;
+            }
+            case PASS_SHADOW_VOLUME: {
+                GLState.depthMask(true);
+                GLState.colorMask(true, true, true, true);
 
-        for (Drawable cube : currentLevel.getDrawables()) {
-            if (Visibility.intersects(mPlanes, cube.getBoundingSphere())) {
-                GLES30.glUniformMatrix4fv(uModelM, 1, false, cube.getModelM(), 0);
-                GLES30.glDrawArrays(GLES30.GL_TRIANGLES, 0, 6 * 6);
+                GLState.disable(GLES30.GL_CULL_FACE);
+                GLState.disable(GLES30.GL_DEPTH_TEST);
+                GLState.disable(GLES30.GL_STENCIL_TEST);
+                break;
             }
         }
+    }
 
-        //code for drawing inverted skybox
-        /*GLES30.glUniformMatrix4fv(uModelM, 1, false, mSkybox.getModelM(), 0);
+    /**
+     * Executes sorted draw commands in one loop. Instances are collected
+     * until pass, shader or state changes and drawn with one instanced draw
+     * call per group.
+     */
+    private void executeCommands() {
+        RenderQueue commands = mCommands;
+        RenderSnapshot snapshot = mSnapshot;
+        final int size = InstanceBuffer.INSTANCE_SIZE;
+        int pass = -1;
+        long groupKey = 0;
+
+        mInstances.clear();
+        for (int i = 0; i < commands.size(); ++i) {
+            long key = commands.get(i);
+            if (i == 0 || RenderQueue.isNewGroup(key, groupKey)) {
+                flushCommands();
+                int keyPass = RenderQueue.getPass(key);
+                while (pass < keyPass) {
+                    endPass(pass);
+                    beginPass(++pass);
+                }
+                beginGroup(key);
+                groupKey = key;
+            }
 
-        GLES30.glDrawArrays(GLES30.GL_TRIANGLES, 0, 6 * 6);
+            int offset = RenderQueue.getPayload(key) * size;
+            switch (pass) {
+                case PASS_DEPTH_MAP: {
+                    // Casters are drawn at end of step, as cached faces
+                    // are only redrawn once casters have been simulated
+                    // further.
+                    mInstances.add(snapshot.mCasters[RenderQueue.getState(key)],
+                            offset);
+                    break;
+                }
+                case PASS_SCENE: {
+                    if (RenderQueue.getState(key) == STATE_CHUNKS) {
+                        Mesh mesh = snapshot.mChunkMeshes[RenderQueue.getPayload(key)];
+                        if (!mesh.isUploaded()) {
+                            mChunkMeshes.add(mesh);
+                        }
+                        mesh.bind(mCommandShader);
+                        mesh.draw(GLES30.GL_TRIANGLES);
+                    } else {
+                        mInstances.add(snapshot.mSceneFrom, snapshot.mSceneTo,
+                                offset, mAlpha);
+                    }
+                    break;
+                }
+                case PASS_SHADOW_VOLUME: {
+                    // Payload is volume type, drawn all at once.
+                    int type = RenderQueue.getPayload(key);
+                    mShadowVolumeStream.draw(mAttributeStencilPosition,
+                            snapshot.mShadowVolumes[type],
+                            snapshot.mShadowVolumeCounts[type]);
+                    break;
+                }
+            }
+        }
+        flushCommands();
 
-        GLES30.glDisable(GLES30.GL_CULL_FACE);*/
+        // Passes without any commands still need to be set up, e.g for
+        // clearing.
+        while (pass < PASS_COUNT - 1) {
+            endPass(pass);
+            beginPass(++pass);
+        }
+        endPass(pass);
     }
 
-    public void renderScene(int renderMode) {
-        Shader shader;
-        if (renderMode == Level.MODE_SHADOWMAP) {
-            shader = mShaderDepthMap;
-        } else {
-            shader = mShaderDefault;
+    /**
+     * Draws instances collected for current command group.
+     */
+    private void flushCommands() {
+        if (mInstances.getCount() > 0) {
+            mInstances.upload();
+            mCommandMesh.drawInstanced(GLES30.GL_TRIANGLES,
+                    mInstances.getCount());
+            mInstances.clear();
         }
+    }
 
-        shader.useProgram();
-        int uModelM = shader.getHandle("uModelM");
-        int uViewM = shader.getHandle("uViewM");
-        int uProjM = shader.getHandle("uProjM");
-        int uLightPos = shader.getHandle("uLightPos");
-        int uColor = shader.getHandle("uColor");
-        int aPosition = shader.getHandle("aPosition");
-        int aNormal = shader.getHandle("aNormal");
-
-        GLES30.glUniform3fv(uLightPos, 1, currentLevel.lightPosition, 0);
-
-        GLES30.glVertexAttribPointer(aPosition, 3, GLES30.GL_BYTE, false, 0,
-                BasicBlock.getVertices());
-        GLES30.glEnableVertexAttribArray(aPosition);
-
-        GLES30.glVertexAttribPointer(aNormal, 3, GLES30.GL_BYTE, false, 0,
-                BasicBlock.getNormals());
-        GLES30.glEnableVertexAttribArray(aNormal);
-
-        if (renderMode == Level.MODE_SHADOWMAP) {
-            GLES30.glActiveTexture(GLES30.GL_TEXTURE0);
-            GLES30.glBindTexture(GLES30.GL_TEXTURE_CUBE_MAP,
-                    mFboCubeMap.getTexture(0));
+    /**
+     * Records draw commands for current snapshot. Scene depth is view space
+     * depth and shadow caster depth is distance from light.
+     */
+    private void recordCommands() {
+        RenderSnapshot snapshot = mSnapshot;
+        RenderQueue commands = mCommands;
+        final int size = InstanceBuffer.INSTANCE_SIZE;
+        final float[] view = mMatrixView;
+        commands.clear();
+
+        int sceneShader = SHADER_DEFAULT;
+        if (snapshot.mRenderMode == Level.MODE_SHADOWMAP) {
+            sceneShader = SHADER_DEPTH_MAP;
+            mDirtyFaces = updateLightFaces();
+            float[] lightPos = snapshot.mLightPosition;
+            for (int face = 0; face < ShadowCache.FACE_COUNT; ++face) {
+                if ((mDirtyFaces & (1 << face)) == 0) {
+                    continue;
+                }
+                float[] casters = snapshot.mCasters[face];
+                for (int i = 0; i < snapshot.mCasterCounts[face]; ++i) {
+                    int offset = i * size;
+                    float dx = casters[offset + 12] - lightPos[0];
+                    float dy = casters[offset + 13] - lightPos[1];
+                    float dz = casters[offset + 14] - lightPos[2];
+                    float depth = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+                    commands.add(PASS_DEPTH_MAP, SHADER_DEPTH, face, depth / FAR, i);
+                }
+            }
         }
 
-        GLES30.glEnable(GLES30.GL_CULL_FACE);
-        GLES30.glEnable(GLES30.GL_DEPTH_TEST);
-
-        GLES30.glUniformMatrix4fv(uViewM, 1, false, mMatrixView, 0);
-        GLES30.glUniformMatrix4fv(uProjM, 1, false, mMatrixProjection, 0);
-        GLES30.glUniform3f(uColor, .4f, .6f, 1f);
-
-        Matrix.multiplyMM(mMatrixViewProjection, 0, mMatrixProjection, 0,
-                mMatrixView, 0);
-        Visibility.extractPlanes(mMatrixViewProjection, mPlanes);
+        float[] scene = snapshot.mSceneTo;
+        for (int i = 0; i < snapshot.mSceneCount; ++i) {
+            int offset = i * size;
+            float depth = -(view[2] * scene[offset + 12] + view[6]
+                    * scene[offset + 13] + view[10] * scene[offset + 14] + view[14]);
+            commands.add(PASS_SCENE, sceneShader, STATE_INSTANCES, depth / FAR, i);
+        }
+        float[] chunks = snapshot.mChunkCenters;
+        for (int i = 0; i < snapshot.mChunkCount; ++i) {
+            int offset = i * 3;
+            float depth = -(view[2] * chunks[offset] + view[6] * chunks[offset + 1]
+                    + view[10] * chunks[offset + 2] + view[14]);
+            commands.add(PASS_SCENE, sceneShader, STATE_CHUNKS, depth / FAR, i);
+        }
 
-        // TODO: figure out why this works
-        GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT);
+        if (snapshot.mRenderMode == Level.MODE_SHADOWVOLUME) {
+            // Volumes come built from simulation thread, one command per
+            // volume type.
+            for (int type = ShadowVolumeBuilder.DEPTH_PASS; type <= ShadowVolumeBuilder.DEPTH_FAIL; ++type) {
+                if (snapshot.mShadowVolumeCounts[type] > 0) {
+                    commands.add(PASS_SHADOW_VOLUME, SHADER_STENCIL, type, 0f, type);
+                }
+            }
+        }
+    }
 
-        for (Drawable cube : currentLevel.getDrawables()) {
-            if (Visibility.intersects(mPlanes, cube.getBoundingSphere())) {
-                GLES30.glUniformMatrix4fv(uModelM, 1, false, cube.getModelM(), 0);
-                GLES30.glUniform3f(uColor, cube.getColor()[0], cube.getColor()[1], cube.getColor()[2]);
-                GLES30.glDrawArrays(GLES30.GL_TRIANGLES, 0, 6 * 6);
+    /**
+     * Releases chunk meshes current snapshot no longer draws. Older
+     * snapshots, the only ones drawing them, are not rendered again.
+     */
+    private void releaseChunkMeshes() {
+        List<Mesh> released = mSnapshot.mReleasedMeshes;
+        for (int i = 0; i < released.size(); ++i) {
+            Mesh mesh = released.get(i);
+            if (mChunkMeshes.remove(mesh)) {
+                mesh.reset();
             }
         }
+        released.clear();
+    }
 
-        //code hacks for drawing inverted skybox
-        /*GLES30.glUniformMatrix4fv(uModelM, 1, false, mSkybox.getModelM(), 0);
-        GLES30.glUniform3f(uColor, .5f, .5f, .5f);
+    /**
+     * Updates light face matrices if light has moved and returns shadow cube
+     * map faces to redraw. Dirty faces are consumed so that snapshot rendered
+     * again redraws none.
+     */
+    private int updateLightFaces() {
+        // Face view matrices only change along with light position.
+        RenderSnapshot snapshot = mSnapshot;
+        float[] lightPos = snapshot.mLightPosition;
+        if (mShadowFacesLost || lightPos[0] != mLightFacePosition[0]
+                || lightPos[1] != mLightFacePosition[1]
+                || lightPos[2] != mLightFacePosition[2]) {
+            System.arraycopy(lightPos, 0, mLightFacePosition, 0, 3);
+            Matrix.setIdentityM(mMatrixViewLight, 0);
+            Matrix.translateM(mMatrixViewLight, 0, -lightPos[0], -lightPos[1],
+                    -lightPos[2]);
+
+            for (int face = 0; face < ShadowCache.FACE_COUNT; ++face) {
+                MathUtils.setRotateM(mMatrixRotate, CUBE_FACE_ROTATIONS[face][0],
+                        CUBE_FACE_ROTATIONS[face][1], CUBE_FACE_ROTATIONS[face][2]);
+                Matrix.multiplyMM(mMatrixFaceView, face * 16, mMatrixRotate, 0,
+                        mMatrixViewLight, 0);
+                Matrix.multiplyMM(mMatrixRotate, 0, mMatrixProjectionDepth, 0,
+                        mMatrixFaceView, face * 16);
+                mLightFaceUniforms.put(face * mLightFaceStride, mMatrixRotate,
+                        0, 16);
+            }
+            mLightFaceUniforms.upload();
+        }
 
-        GLES30.glVertexAttribPointer(aNormal, 3, GLES30.GL_BYTE, false, 0,
-                BasicBlock.getNormalsInv());
-        GLES30.glEnableVertexAttribArray(aNormal);
+        // Skip faces no changed caster is seen from.
+        int dirtyFaces = snapshot.mDirtyFaces;
+        if (mShadowFacesLost) {
+            dirtyFaces = ShadowCache.ALL_FACES;
+            mShadowFacesLost = false;
+        }
+        snapshot.mDirtyFaces = 0;
+        return dirtyFaces;
+    }
 
-        GLES30.glDrawArrays(GLES30.GL_TRIANGLES, 0, 6 * 6);
+    /**
+     * Submits loading of all shader programs, sources are read on loader
+     * threads and programs linked on GL thread.
+     */
+    private AssetFuture<?>[] loadShaders() {
+        return new AssetFuture<?>[] {
+                mAssets.submit(new SourceTask(R.raw.default_vs, R.raw.default_fs) {
+                    @Override
+                    public void upload(String[] sources) throws Exception {
+                        mShaderDefault.setProgram(sources[0], sources[1], mProgramCache);
+                    }
+                }),
+                mAssets.submit(new SourceTask(R.raw.depthmap_vs, R.raw.depthmap_fs) {
+                    @Override
+                    public void upload(String[] sources) throws Exception {
+                        mShaderDepthMap.setProgram(sources[0], sources[1], mProgramCache);
+                    }
+                }),
+                mAssets.submit(new SourceTask(R.raw.depth_vs, R.raw.depth_fs) {
+                    @Override
+                    public void upload(String[] sources) throws Exception {
+                        mShaderDepth.setProgram(sources[0], sources[1], mProgramCache);
+                    }
+                }),
+                mAssets.submit(new SourceTask(R.raw.stencil_vs, R.raw.stencil_fs) {
+                    @Override
+                    public void upload(String[] sources) throws Exception {
+                        mShaderStencil.setProgram(sources[0], sources[1], mProgramCache);
+                    }
+                }),
+                mAssets.submit(new SourceTask(R.raw.stencil_mask_vs, R.raw.stencil_mask_fs) {
+                    @Override
+                    public void upload(String[] sources) throws Exception {
+                        mShaderStencilMask.setProgram(sources[0], sources[1], mProgramCache);
+                    }
+                }),
+                mAssets.submit(new SourceTask(R.raw.bloom_vs, R.raw.bloom_pass1_fs,
+                        R.raw.bloom_pass2_fs) {
+                    @Override
+                    public void upload(String[] sources) throws Exception {
+                        mBloom.setPrograms(sources[0], sources[1], sources[2],
+                                mProgramCache);
+                    }
+                }),
+                mAssets.submit(new SourceTask(R.raw.bloom_vs, R.raw.bloom_pass3_fs) {
+                    @Override
+                    public void upload(String[] sources) throws Exception {
+                        mShaderBloom3.setProgram(sources[0], sources[1], mProgramCache);
+                    }
+                })};
+    }
 
-        GLES30.glDisable(GLES30.GL_CULL_FACE);*/
+    /**
+     * Looks up uniform locations of all programs. Missing uniforms are
+     * reported right away instead of silently being ignored on rendering.
+     */
+    private void resolveUniforms() throws Exception {
+        mShaderDefault.bindUniformBlock("FrameConstants", BINDING_FRAME);
+        mShaderDepthMap.bindUniformBlock("FrameConstants", BINDING_FRAME);
+        mShaderStencil.bindUniformBlock("FrameConstants", BINDING_FRAME);
+        mShaderBloom3.bindUniformBlock("FrameConstants", BINDING_FRAME);
+        mShaderDepth.bindUniformBlock("LightFace", BINDING_LIGHT_FACE);
+
+        for (int i = 0; i < mCommandShaders.length; ++i) {
+            mAttributeModel[i] = mCommandShaders[i].findAttribute("aModelM");
+        }
+        mAttributeStencilPosition = mShaderStencil.getAttribute("aPosition",
+                GLES30.GL_FLOAT_VEC4);
+        mUniformBloomScale = mShaderBloom3.getUniform("uBloomScale",
+                GLES30.GL_FLOAT);
+        mUniformBloomTexture = mShaderBloom3.getUniform("sTextureBloom",
+                GLES30.GL_SAMPLER_2D);
+        mUniformBloomSourceTexture = mShaderBloom3.getUniform(
+                "sTextureSource", GLES30.GL_SAMPLER_2D);
     }
 
-    public void renderShadowStencil() {
-        Matrix.multiplyMM(mMatrixViewProjection, 0, mMatrixProjection, 0,
+    /**
+     * Writes camera and light constants shared by all passes into frame
+     * uniform buffer and binds it.
+     */
+    private void updateFrameConstants() {
+        // Capped shadow volumes reach infinity, so scene depth has to come
+        // from the same infinite projection they are drawn with.
+        float[] projection = mMatrixProjection;
+        if (mSnapshot.mRenderMode == Level.MODE_SHADOWVOLUME) {
+            projection = mMatrixExtrude;
+        }
+        Matrix.multiplyMM(mMatrixViewProjection, 0, projection, 0,
                 mMatrixView, 0);
         Matrix.multiplyMM(mMatrixViewExtrude, 0, mMatrixExtrude, 0,
                 mMatrixView, 0);
 
-        mShaderStencil.useProgram();
-        int uModelM = mShaderStencil.getHandle("uModelM");
-        int uViewProjectionM = mShaderStencil.getHandle("uViewProjectionM");
-        int uViewExtrudeM = mShaderStencil.getHandle("uViewExtrudeM");
-        int uLightPosition = mShaderStencil.getHandle("uLightPosition");
-        int aPosition = mShaderStencil.getHandle("aPosition");
-        int aNormal = mShaderStencil.getHandle("aNormal");
-
-        GLES30.glUniform3fv(uLightPosition, 1, currentLevel.lightPosition, 0);
-
-        GLES30.glVertexAttribPointer(aPosition, 4, GLES30.GL_BYTE, false, 0,
-                BasicBlock.getVerticesShadow());
-        GLES30.glEnableVertexAttribArray(aPosition);
-
-        GLES30.glVertexAttribPointer(aNormal, 3, GLES30.GL_BYTE, false, 0,
-                BasicBlock.getNormalsShadow());
-        GLES30.glEnableVertexAttribArray(aNormal);
-
-        GLES30.glDisable(GLES30.GL_CULL_FACE);
-        GLES30.glEnable(GLES30.GL_DEPTH_TEST);
-        GLES30.glEnable(GLES30.GL_STENCIL_TEST);
-        // GLES30.glEnable(GLES30.GL_BLEND);
-
-        GLES30.glUniformMatrix4fv(uViewProjectionM, 1, false,
-                mMatrixViewProjection, 0);
-        GLES30.glUniformMatrix4fv(uViewExtrudeM, 1, false, mMatrixViewExtrude,
-                0);
-
-        GLES30.glDepthMask(false);
-        GLES30.glColorMask(false, false, false, false);
-        // GLES30.glBlendFunc(GLES30.GL_SRC_ALPHA,
-        // GLES30.GL_ONE_MINUS_SRC_ALPHA);
-
-        GLES30.glStencilFunc(GLES30.GL_ALWAYS, 0x00, 0xFF);
-        GLES30.glStencilOpSeparate(GLES30.GL_FRONT, GLES30.GL_KEEP,
-                GLES30.GL_KEEP, GLES30.GL_INCR_WRAP);
-        GLES30.glStencilOpSeparate(GLES30.GL_BACK, GLES30.GL_KEEP,
-                GLES30.GL_KEEP, GLES30.GL_DECR_WRAP);
-
-        for (Drawable cube : currentLevel.getDrawables()) {
-            GLES30.glUniformMatrix4fv(uModelM, 1, false, cube.getModelM(), 0);
-            GLES30.glDrawArrays(GLES30.GL_TRIANGLES, 0, 6 * 24);
-        }
-
-        GLES30.glDepthMask(true);
-        GLES30.glColorMask(true, true, true, true);
-
-        GLES30.glDisable(GLES30.GL_CULL_FACE);
-        GLES30.glDisable(GLES30.GL_DEPTH_TEST);
-        GLES30.glDisable(GLES30.GL_STENCIL_TEST);
-        // GLES30.glDisable(GLES30.GL_BLEND);
+        mFrameUniforms.put(FRAME_VIEW_M, mMatrixView, 0, 16);
+        mFrameUniforms.put(FRAME_PROJ_M, projection, 0, 16);
+        mFrameUniforms.put(FRAME_VIEW_PROJECTION_M, mMatrixViewProjection, 0, 16);
+        mFrameUniforms.put(FRAME_VIEW_EXTRUDE_M, mMatrixViewExtrude, 0, 16);
+        mFrameUniforms.put(FRAME_LIGHT_POS, mSnapshot.mLightPosition, 0, 3);
+        mFrameUniforms.put(FRAME_FOREGROUND_COLOR, mSnapshot.mForegroundColor, 0, 4);
+        mFrameUniforms.upload();
+        mFrameUniforms.bindBase(BINDING_FRAME);
     }
 
     /**
@@ -587,5 +1021,27 @@ public final class SceneManager extends GLSurfaceView implements GLSurfaceView.R
         });
     }
 
+    /**
+     * Task reading raw text resources, e.g shader sources, on loader thread.
+     */
+    private abstract class SourceTask implements AssetLoader.Task<String[]> {
+
+        private final int[] rawIds;
+
+        SourceTask(int... rawIds) {
+            this.rawIds = rawIds;
+        }
+
+        @Override
+        public String[] decode() throws Exception {
+            String[] sources = new String[rawIds.length];
+            for (int i = 0; i < rawIds.length; ++i) {
+                sources[i] = AssetLoader.decodeString(mContext.getResources()
+                        .openRawResource(rawIds[i]));
+            }
+            return sources;
+        }
+    }
+
 
 }
@@ -0,0 +1,155 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.graphics;
+
+import java.util.IdentityHashMap;
+
+import com.github.andromeduck.prismatic.graphics.blocks.BoundsListener;
+import com.github.andromeduck.prismatic.graphics.blocks.Drawable;
+
+/**
+ * Persistent list of all drawables in a scene. Drawables are added and
+ * removed as platforms come and go, and are traversed by index, so that
+ * iterating the scene every frame allocates nothing. Removal moves last
+ * drawable into the freed slot, hence indices are stable only as long as
+ * no drawables are removed. All drawables are also kept in a bounding volume
+ * tree for culling, which is kept up to date through bounds listeners.
+ * Bounds changes are forwarded to an optional listener as well.
+ */
+public final class SceneRegistry implements BoundsListener {
+
+	// Number of registered drawables.
+	private int mCount = 0;
+	// Registered drawables, valid up to mCount.
+	private Drawable[] mDrawables = new Drawable[64];
+	// Index of every registered drawable.
+	private final IdentityHashMap<Drawable, Integer> mIndices = new IdentityHashMap<Drawable, Integer>();
+	// Listener bounds changes are forwarded to, null for none.
+	private BoundsListener mListener;
+	// Incremented every time drawables are added or removed.
+	private int mRevision = 0;
+	// Hierarchy of drawable bounds.
+	private final BoundingVolumeTree mTree = new BoundingVolumeTree();
+
+	/**
+	 * Adds drawable to scene. Drawables already registered are ignored.
+	 *
+	 * @param drawable
+	 *            Drawable to add
+	 */
+	public void add(Drawable drawable) {
+		if (mIndices.containsKey(drawable)) {
+			return;
+		}
+		if (mCount == mDrawables.length) {
+			Drawable[] drawables = new Drawable[mCount * 2];
+			System.arraycopy(mDrawables, 0, drawables, 0, mCount);
+			mDrawables = drawables;
+		}
+		mDrawables[mCount] = drawable;
+		mIndices.put(drawable, mCount);
+		++mCount;
+		++mRevision;
+		drawable.setBoundsListener(this);
+		mTree.insert(drawable);
+	}
+
+	@Override
+	public void boundsChanged(Drawable drawable) {
+		mTree.boundsChanged(drawable);
+		if (mListener != null) {
+			mListener.boundsChanged(drawable);
+		}
+	}
+
+	/**
+	 * Returns true if given drawable is registered.
+	 */
+	public boolean contains(Drawable drawable) {
+		return mIndices.containsKey(drawable);
+	}
+
+	/**
+	 * Getter for drawable at given index.
+	 *
+	 * @param index
+	 *            Index from 0 to size() - 1
+	 * @return Drawable at given index.
+	 */
+	public Drawable get(int index) {
+		return mDrawables[index];
+	}
+
+	/**
+	 * Getter for bounding volume tree holding all registered drawables.
+	 */
+	public BoundingVolumeTree getTree() {
+		return mTree;
+	}
+
+	/**
+	 * Getter for registry revision, which changes every time drawables are
+	 * added or removed.
+	 */
+	public int getRevision() {
+		return mRevision;
+	}
+
+	/**
+	 * Removes drawable from scene.
+	 *
+	 * @param drawable
+	 *            Drawable to remove
+	 * @return true if drawable was registered.
+	 */
+	public boolean remove(Drawable drawable) {
+		Integer index = mIndices.remove(drawable);
+		if (index == null) {
+			return false;
+		}
+		drawable.setBoundsListener(null);
+		mTree.remove(drawable);
+		--mCount;
+		if (index != mCount) {
+			Drawable last = mDrawables[mCount];
+			mDrawables[index] = last;
+			mIndices.put(last, index);
+		}
+		mDrawables[mCount] = null;
+		++mRevision;
+		return true;
+	}
+
+	/**
+	 * Sets listener notified whenever bounds of registered drawable change,
+	 * in addition to bounding volume tree.
+	 *
+	 * @param listener
+	 *            Listener, null for none
+	 */
+	public void setBoundsListener(BoundsListener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Getter for number of registered drawables.
+	 */
+	public int size() {
+		return mCount;
+	}
+
+}
@@ -19,72 +19,167 @@ package com.github.andromeduck.prismatic.graphics;
 import java.util.HashMap;
 
 import android.opengl.GLES30;
-import android.util.Log;
 
 /**
- * Helper class for handling shaders.
+ * Helper class for handling shaders. Active uniforms and attributes are
+ * enumerated once program has been linked, and callers are expected to
+ * resolve locations they need at load time using getUniform and getAttribute,
+ * so that rendering does no name lookups. Sources are kept so that program
+ * can be restored after context loss, preferably from program cache.
  */
-public final class Shader {
+public final class Shader implements GpuResource {
 
+	// Program binary cache program was set with, or null.
+	private ProgramCache mCache;
+	// Sources of current program, null if program has not been set.
+	private String mFragmentSource;
+	private String mVertexSource;
 	// Shader program handles.
 	private int mIdProgram = 0;
 	private int mIdShaderFragment = 0;
 	private int mIdShaderVertex = 0;
-	// HashMap for storing uniform/attribute handles.
-	private final HashMap<String, Integer> mShaderHandleMap = new HashMap<String, Integer>();
+	// Active uniforms and attributes of linked program, by name.
+	private final HashMap<String, Variable> mVariables = new HashMap<String, Variable>();
 
 	/**
-	 * Deletes program and shaders associated with it.
+	 * Assigns uniform block of this program to given binding point.
+	 * 
+	 * @param name
+	 *            Uniform block name
+	 * @param binding
+	 *            Binding point index uniform buffer is bound to
+	 * @throws Exception
+	 *             If program has no such active uniform block.
+	 */
+	public void bindUniformBlock(String name, int binding) throws Exception {
+		int index = GLES30.glGetUniformBlockIndex(mIdProgram, name);
+		if (index == GLES30.GL_INVALID_INDEX) {
+			throw new Exception("Uniform block " + name + " not found");
+		}
+		GLES30.glUniformBlockBinding(mIdProgram, index, binding);
+	}
+
+	/**
+	 * Deletes program and shaders associated with it. Deleted program is not
+	 * restored.
 	 */
 	public void deleteProgram() {
 		GLES30.glDeleteShader(mIdShaderFragment);
 		GLES30.glDeleteShader(mIdShaderVertex);
-		GLES30.glDeleteProgram(mIdProgram);
+		GLState.deleteProgram(mIdProgram);
 		mIdProgram = mIdShaderVertex = mIdShaderFragment = 0;
+		mVariables.clear();
+		mVertexSource = mFragmentSource = null;
+		mCache = null;
 	}
 
 	/**
-	 * Get id for given handle name. This method checks for both attribute and
-	 * uniform handles.
+	 * Get location of an optional attribute.
 	 * 
 	 * @param name
-	 *            Name of handle.
-	 * @return Id for given handle or -1 if none found.
+	 *            Attribute name
+	 * @return Attribute location or -1 if program has no such active
+	 *         attribute.
 	 */
-	public int getHandle(String name) {
-		if (mShaderHandleMap.containsKey(name)) {
-			return mShaderHandleMap.get(name);
-		}
-		int handle = GLES30.glGetAttribLocation(mIdProgram, name);
-		if (handle == -1) {
-			handle = GLES30.glGetUniformLocation(mIdProgram, name);
-		}
-		if (handle == -1) {
-			// One should never leave log messages but am not going to follow
-			// this rule. This line comes handy if you see repeating 'not found'
-			// messages on LogCat - usually for typos otherwise annoying to
-			// spot from shader code.
-			Log.d("GlslShader", "Could not get attrib location for " + name);
-		} else {
-			mShaderHandleMap.put(name, handle);
-		}
-		return handle;
+	public int findAttribute(String name) {
+		Variable variable = mVariables.get(name);
+		return variable != null && !variable.mUniform ? variable.mLocation
+				: -1;
+	}
+
+	/**
+	 * Get location of an attribute program is expected to have.
+	 * 
+	 * @param name
+	 *            Attribute name
+	 * @param type
+	 *            Expected attribute type, e.g GL_FLOAT_VEC3
+	 * @return Attribute location.
+	 * @throws Exception
+	 *             If attribute is not active or has different type.
+	 */
+	public int getAttribute(String name, int type) throws Exception {
+		return getVariable(name, type, false);
 	}
 
 	/**
-	 * Get array of ids with given names. Returned array is sized to given
-	 * amount name elements.
+	 * Get location of a uniform program is expected to have. Arrays are
+	 * looked up without index suffix.
 	 * 
-	 * @param names
-	 *            List of handle names.
-	 * @return array of handle ids.
+	 * @param name
+	 *            Uniform name
+	 * @param type
+	 *            Expected uniform type, e.g GL_FLOAT_MAT4
+	 * @return Uniform location.
+	 * @throws Exception
+	 *             If uniform is not active or has different type.
+	 */
+	public int getUniform(String name, int type) throws Exception {
+		return getVariable(name, type, true);
+	}
+
+	/**
+	 * Getter for program id.
+	 * 
+	 * @return Program id or 0 if program has not been set.
+	 */
+	public int getProgram() {
+		return mIdProgram;
+	}
+
+	@Override
+	public void invalidate() {
+		mIdProgram = mIdShaderVertex = mIdShaderFragment = 0;
+		mVariables.clear();
+	}
+
+	@Override
+	public void restore() throws Exception {
+		if (mIdProgram == 0 && mVertexSource != null) {
+			setProgram(mVertexSource, mFragmentSource, mCache);
+		}
+	}
+
+	/**
+	 * Reads active uniforms and attributes of current program.
 	 */
-	public int[] getHandles(String... names) {
-		int[] res = new int[names.length];
-		for (int i = 0; i < names.length; ++i) {
-			res[i] = getHandle(names[i]);
+	private void enumerateVariables() {
+		mVariables.clear();
+		int[] count = new int[1];
+		int[] size = new int[1];
+		int[] type = new int[1];
+
+		GLES30.glGetProgramiv(mIdProgram, GLES30.GL_ACTIVE_UNIFORMS, count, 0);
+		for (int i = 0; i < count[0]; ++i) {
+			String name = GLES30.glGetActiveUniform(mIdProgram, i, size, 0,
+					type, 0);
+			int location = GLES30.glGetUniformLocation(mIdProgram, name);
+			putVariable(name, location, type[0], true);
+		}
+
+		GLES30.glGetProgramiv(mIdProgram, GLES30.GL_ACTIVE_ATTRIBUTES, count,
+				0);
+		for (int i = 0; i < count[0]; ++i) {
+			String name = GLES30.glGetActiveAttrib(mIdProgram, i, size, 0,
+					type, 0);
+			int location = GLES30.glGetAttribLocation(mIdProgram, name);
+			putVariable(name, location, type[0], false);
+		}
+	}
+
+	private int getVariable(String name, int type, boolean uniform)
+			throws Exception {
+		String kind = uniform ? "Uniform " : "Attribute ";
+		Variable variable = mVariables.get(name);
+		if (variable == null || variable.mUniform != uniform) {
+			throw new Exception(kind + name + " not found");
+		}
+		if (variable.mType != type) {
+			throw new Exception(kind + name + " has type 0x"
+					+ Integer.toHexString(variable.mType) + ", expected 0x"
+					+ Integer.toHexString(type));
 		}
-		return res;
+		return variable.mLocation;
 	}
 
 	/**
@@ -125,6 +220,37 @@ public final class Shader {
 	 */
 	public void setProgram(String vertexSource, String fragmentSource)
 			throws Exception {
+		setProgram(vertexSource, fragmentSource, null);
+	}
+
+	/**
+	 * Same as setProgram(String, String) but tries to load linked program
+	 * binary from given cache first. Shaders are compiled only if cache has
+	 * no binary for given sources or driver rejects it, in which case newly
+	 * linked program is stored into cache.
+	 * 
+	 * @param vertexSource
+	 *            String presentation for vertex shader
+	 * @param fragmentSource
+	 *            String presentation for fragment shader
+	 * @param cache
+	 *            Program binary cache or null
+	 */
+	public void setProgram(String vertexSource, String fragmentSource,
+			ProgramCache cache) throws Exception {
+		mVertexSource = vertexSource;
+		mFragmentSource = fragmentSource;
+		mCache = cache;
+		if (cache != null) {
+			int program = cache.load(vertexSource, fragmentSource);
+			if (program != 0) {
+				mIdShaderVertex = mIdShaderFragment = 0;
+				mIdProgram = program;
+				enumerateVariables();
+				return;
+			}
+		}
+
 		mIdShaderVertex = loadShader(GLES30.GL_VERTEX_SHADER, vertexSource);
 		mIdShaderFragment = loadShader(GLES30.GL_FRAGMENT_SHADER,
 				fragmentSource);
@@ -132,6 +258,11 @@ public final class Shader {
 		if (program != 0) {
 			GLES30.glAttachShader(program, mIdShaderVertex);
 			GLES30.glAttachShader(program, mIdShaderFragment);
+			if (cache != null) {
+				GLES30.glProgramParameteri(program,
+						GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT,
+						GLES30.GL_TRUE);
+			}
 			GLES30.glLinkProgram(program);
 			int[] linkStatus = new int[1];
 			GLES30.glGetProgramiv(program, GLES30.GL_LINK_STATUS, linkStatus, 0);
@@ -140,16 +271,45 @@ public final class Shader {
 				deleteProgram();
 				throw new Exception(error);
 			}
+			if (cache != null) {
+				cache.save(program, vertexSource, fragmentSource);
+			}
 		}
 		mIdProgram = program;
-		mShaderHandleMap.clear();
+		enumerateVariables();
 	}
 
 	/**
 	 * Activates this shader program.
 	 */
 	public void useProgram() {
-		GLES30.glUseProgram(mIdProgram);
+		GLState.useProgram(mIdProgram);
+	}
+
+	private void putVariable(String name, int location, int type,
+			boolean uniform) {
+		// Arrays are reported as name[0], built-ins have no location.
+		if (name.endsWith("[0]")) {
+			name = name.substring(0, name.length() - 3);
+		}
+		if (location != -1) {
+			mVariables.put(name, new Variable(location, type, uniform));
+		}
+	}
+
+	/**
+	 * Active uniform or attribute of linked program.
+	 */
+	private static final class Variable {
+		final int mLocation;
+		final int mType;
+		final boolean mUniform;
+
+		Variable(int location, int type, boolean uniform) {
+			mLocation = location;
+			mType = type;
+			mUniform = uniform;
+		}
 	}
 
 }
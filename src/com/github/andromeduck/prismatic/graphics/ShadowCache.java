@@ -0,0 +1,120 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.graphics;
+
+import com.github.andromeduck.prismatic.graphics.blocks.Drawable;
+
+/**
+ * Keeps track of which shadow cube map faces are out of date. Light position
+ * and caster revisions are compared against the ones last rendered, and only
+ * faces whose frusta contain a changed caster, either at its old or new
+ * position, are reported dirty. Faces are found using masks from
+ * CubeFaceClassifier.
+ */
+public final class ShadowCache {
+
+	public static final int FACE_COUNT = 6;
+	public static final int ALL_FACES = (1 << FACE_COUNT) - 1;
+
+	// Casters as seen on last update.
+	private Drawable[] mCasters = {};
+	// Number of casters seen on last update.
+	private int mCasterCount = 0;
+	// Bit mask of faces needing re-rendering.
+	private int mDirtyFaces = ALL_FACES;
+	// Light position faces were last rendered with.
+	private final float[] mLightPosition = new float[3];
+	// True once light position has been set.
+	private boolean mLightPositionSet = false;
+	// Caster face masks faces were last rendered with.
+	private int[] mMasks = {};
+	// Caster revisions faces were last rendered with.
+	private int[] mRevisions = {};
+
+	/**
+	 * Marks all faces dirty, e.g once cube map has been reallocated.
+	 */
+	public void invalidate() {
+		mDirtyFaces = ALL_FACES;
+	}
+
+	/**
+	 * Stores new light position. If light has moved all faces are marked
+	 * dirty and caller should recalculate face frusta.
+	 *
+	 * @param lightPosition
+	 *            Current light position
+	 * @return true if light has moved since last call.
+	 */
+	public boolean setLightPosition(float[] lightPosition) {
+		if (mLightPositionSet && mLightPosition[0] == lightPosition[0]
+				&& mLightPosition[1] == lightPosition[1]
+				&& mLightPosition[2] == lightPosition[2]) {
+			return false;
+		}
+		System.arraycopy(lightPosition, 0, mLightPosition, 0, 3);
+		mLightPositionSet = true;
+		mDirtyFaces = ALL_FACES;
+		return true;
+	}
+
+	/**
+	 * Compares casters against the ones faces were last rendered with and
+	 * returns faces which need to be rendered again. Dirty state is cleared,
+	 * so caller is expected to render all returned faces.
+	 *
+	 * @param casters
+	 *            Shadow casting drawables
+	 * @param masks
+	 *            Current face mask for every caster
+	 * @return Bit mask of faces to render, bit index being face index.
+	 */
+	public int update(SceneRegistry casters, int[] masks) {
+		int count = casters.size();
+		if (count != mCasterCount) {
+			mDirtyFaces = ALL_FACES;
+		}
+		if (mCasters.length < count) {
+			int capacity = Math.max(count, mCasters.length * 2);
+			mCasters = new Drawable[capacity];
+			mMasks = new int[capacity];
+			mRevisions = new int[capacity];
+			mDirtyFaces = ALL_FACES;
+		}
+
+		for (int i = 0; i < count; ++i) {
+			Drawable caster = casters.get(i);
+			if (mCasters[i] != caster) {
+				mDirtyFaces = ALL_FACES;
+			} else if (mRevisions[i] != caster.getRevision()) {
+				mDirtyFaces |= mMasks[i] | masks[i];
+			}
+			mCasters[i] = caster;
+			mMasks[i] = masks[i];
+			mRevisions[i] = caster.getRevision();
+		}
+		for (int i = count; i < mCasterCount; ++i) {
+			mCasters[i] = null;
+		}
+		mCasterCount = count;
+
+		int dirtyFaces = mDirtyFaces;
+		mDirtyFaces = 0;
+		return dirtyFaces;
+	}
+
+}
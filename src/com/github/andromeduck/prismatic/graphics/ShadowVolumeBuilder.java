@@ -0,0 +1,298 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.graphics;
+
+/**
+ * Builds shadow volumes of box shaped casters lit by a point light. Only
+ * edges between faces facing towards and away from the light are extruded,
+ * and volumes which cannot intersect the view frustum are skipped. Volumes
+ * the camera may be inside of are closed with caps and meant for depth-fail
+ * stencil counting, others are left open for cheaper depth-pass counting.
+ * Vertices are written as world space {x, y, z, w} triangles, w = 0 for
+ * vertices extruded to infinity.
+ */
+public final class ShadowVolumeBuilder {
+
+	// Volume types, also indices of vertex lists.
+	public static final int DEPTH_PASS = 0;
+	public static final int DEPTH_FAIL = 1;
+
+	// Floats per vertex.
+	public static final int VERTEX_SIZE = 4;
+
+	// Face corners wound counter-clockwise seen from outside, corner bits
+	// {x, y, z} set for +1. Faces are in order +x, -x, +y, -y, +z, -z.
+	static final int[][] FACES = { { 1, 3, 7, 5 }, { 0, 4, 6, 2 },
+			{ 2, 6, 7, 3 }, { 0, 1, 5, 4 }, { 4, 5, 7, 6 }, { 0, 2, 3, 1 } };
+	// Face sharing edge from corner i to corner i + 1 of each face.
+	private static final int[][] NEIGHBORS = new int[6][4];
+
+	static {
+		for (int face = 0; face < 6; ++face) {
+			for (int i = 0; i < 4; ++i) {
+				int a = FACES[face][i];
+				int b = FACES[face][(i + 1) % 4];
+				for (int other = 0; other < 6; ++other) {
+					for (int j = 0; j < 4; ++j) {
+						if (FACES[other][j] == b
+								&& FACES[other][(j + 1) % 4] == a) {
+							NEIGHBORS[face][i] = other;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	// Box corners in world space.
+	private final float[] mCorners = new float[8 * 3];
+	// Number of casters culled since begin.
+	private int mCulledCount;
+	// Camera position and radius of sphere around it containing near plane.
+	private final float[] mEye = new float[3];
+	private float mEyeRadius;
+	private final float[] mLight = new float[3];
+	// Frustum planes volumes are culled against.
+	private final float[] mPlanes = new float[24];
+	// Vertex lists and their vertex counts per volume type.
+	private final int[] mVertexCounts = new int[2];
+	private final float[][] mVertices = { new float[256 * VERTEX_SIZE],
+			new float[256 * VERTEX_SIZE] };
+
+	/**
+	 * Removes all vertices and sets up light and camera for following casters.
+	 *
+	 * @param light
+	 *            Light position
+	 * @param eye
+	 *            Camera position
+	 * @param eyeRadius
+	 *            Radius around camera containing whole near plane
+	 * @param planes
+	 *            Normalized view frustum planes as given by
+	 *            Visibility.extractPlanes, far plane is ignored as volumes
+	 *            extend to infinity
+	 */
+	public void begin(float[] light, float[] eye, float eyeRadius,
+			float[] planes) {
+		System.arraycopy(light, 0, mLight, 0, 3);
+		System.arraycopy(eye, 0, mEye, 0, 3);
+		mEyeRadius = eyeRadius;
+		System.arraycopy(planes, 0, mPlanes, 0, 24);
+		mVertexCounts[DEPTH_PASS] = mVertexCounts[DEPTH_FAIL] = 0;
+		mCulledCount = 0;
+	}
+
+	/**
+	 * Adds shadow volume of unit cube transformed by given matrix, e.g an
+	 * instance record.
+	 *
+	 * @param m
+	 *            Array holding affine model matrix
+	 * @param offset
+	 *            Offset of matrix
+	 * @return Volume type or -1 if caster has no visible volume.
+	 */
+	public int add(float[] m, int offset) {
+		final float[] light = mLight;
+		final float[] corners = mCorners;
+		float ax = m[offset], ay = m[offset + 1], az = m[offset + 2];
+		float bx = m[offset + 4], by = m[offset + 5], bz = m[offset + 6];
+		float cx = m[offset + 8], cy = m[offset + 9], cz = m[offset + 10];
+		float px = m[offset + 12], py = m[offset + 13], pz = m[offset + 14];
+
+		float radius = 0f;
+		for (int corner = 0; corner < 8; ++corner) {
+			float sx = (corner & 1) != 0 ? 1f : -1f;
+			float sy = (corner & 2) != 0 ? 1f : -1f;
+			float sz = (corner & 4) != 0 ? 1f : -1f;
+			float dx = sx * ax + sy * bx + sz * cx;
+			float dy = sx * ay + sy * by + sz * cy;
+			float dz = sx * az + sy * bz + sz * cz;
+			corners[corner * 3] = px + dx;
+			corners[corner * 3 + 1] = py + dy;
+			corners[corner * 3 + 2] = pz + dz;
+			radius = Math.max(radius, dx * dx + dy * dy + dz * dz);
+		}
+		radius = (float) Math.sqrt(radius);
+
+		// Volume lies outside of a plane if bounding sphere is outside of it
+		// and rays from light through sphere do not head back towards it.
+		final float[] planes = mPlanes;
+		for (int i = 0; i < 24; i += 4) {
+			if (i == 16) {
+				continue;
+			}
+			float sphere = planes[i] * px + planes[i + 1] * py
+					+ planes[i + 2] * pz + planes[i + 3] + radius;
+			float lightDist = planes[i] * light[0] + planes[i + 1] * light[1]
+					+ planes[i + 2] * light[2] + planes[i + 3];
+			if (sphere < 0f && lightDist >= sphere) {
+				++mCulledCount;
+				return -1;
+			}
+		}
+
+		// Face normals, flipped for mirroring transforms whose corners are
+		// wound the other way around.
+		float nx0 = by * cz - bz * cy, ny0 = bz * cx - bx * cz, nz0 = bx * cy - by * cx;
+		float nx1 = cy * az - cz * ay, ny1 = cz * ax - cx * az, nz1 = cx * ay - cy * ax;
+		float nx2 = ay * bz - az * by, ny2 = az * bx - ax * bz, nz2 = ax * by - ay * bx;
+		float det = ax * nx0 + ay * ny0 + az * nz0;
+		boolean mirrored = det < 0f;
+		float sign = mirrored ? -1f : 1f;
+		det *= sign;
+
+		// Face is lit if light is outside of its plane.
+		float lx = light[0] - px, ly = light[1] - py, lz = light[2] - pz;
+		float d0 = sign * (lx * nx0 + ly * ny0 + lz * nz0);
+		float d1 = sign * (lx * nx1 + ly * ny1 + lz * nz1);
+		float d2 = sign * (lx * nx2 + ly * ny2 + lz * nz2);
+		int litFaces = (d0 > det ? 1 : 0) | (-d0 > det ? 2 : 0)
+				| (d1 > det ? 4 : 0) | (-d1 > det ? 8 : 0)
+				| (d2 > det ? 16 : 0) | (-d2 > det ? 32 : 0);
+		if (litFaces == 0) {
+			// Light is inside of caster.
+			++mCulledCount;
+			return -1;
+		}
+
+		int type = isEyeInside(px, py, pz, radius) ? DEPTH_FAIL : DEPTH_PASS;
+		for (int face = 0; face < 6; ++face) {
+			int[] faceCorners = FACES[face];
+			if ((litFaces & (1 << face)) == 0) {
+				if (type == DEPTH_FAIL) {
+					// Far cap out of faces facing away from light.
+					putTriangle(type, faceCorners[0], faceCorners[1],
+							faceCorners[2], 0f, mirrored);
+					putTriangle(type, faceCorners[0], faceCorners[2],
+							faceCorners[3], 0f, mirrored);
+				}
+				continue;
+			}
+			if (type == DEPTH_FAIL) {
+				// Near cap out of faces facing light.
+				putTriangle(type, faceCorners[0], faceCorners[1],
+						faceCorners[2], 1f, mirrored);
+				putTriangle(type, faceCorners[0], faceCorners[2],
+						faceCorners[3], 1f, mirrored);
+			}
+			for (int i = 0; i < 4; ++i) {
+				if ((litFaces & (1 << NEIGHBORS[face][i])) != 0) {
+					continue;
+				}
+				// Silhouette edge, quad from edge out to infinity.
+				int a = faceCorners[i];
+				int b = faceCorners[(i + 1) % 4];
+				if (mirrored) {
+					int swap = a;
+					a = b;
+					b = swap;
+				}
+				putVertex(type, b, 1f);
+				putVertex(type, a, 1f);
+				putVertex(type, a, 0f);
+				putVertex(type, b, 1f);
+				putVertex(type, a, 0f);
+				putVertex(type, b, 0f);
+			}
+		}
+		return type;
+	}
+
+	/**
+	 * Getter for number of casters culled or not casting any shadow since
+	 * begin.
+	 */
+	public int getCulledCount() {
+		return mCulledCount;
+	}
+
+	/**
+	 * Getter for number of vertices of given volume type.
+	 */
+	public int getVertexCount(int type) {
+		return mVertexCounts[type];
+	}
+
+	/**
+	 * Getter for vertices of given volume type.
+	 */
+	public float[] getVertices(int type) {
+		return mVertices[type];
+	}
+
+	/**
+	 * Returns true if sphere around camera may intersect shadow of sphere of
+	 * given center and radius. Shadow is bounded by cone from light
+	 * tangential to the sphere, starting at the sphere.
+	 */
+	private boolean isEyeInside(float px, float py, float pz, float radius) {
+		final float[] light = mLight;
+		final float[] eye = mEye;
+		float ax = px - light[0], ay = py - light[1], az = pz - light[2];
+		float dist = (float) Math.sqrt(ax * ax + ay * ay + az * az);
+		if (dist <= radius) {
+			return true;
+		}
+		ax /= dist;
+		ay /= dist;
+		az /= dist;
+
+		float vx = eye[0] - light[0], vy = eye[1] - light[1], vz = eye[2]
+				- light[2];
+		float t = vx * ax + vy * ay + vz * az;
+		if (t < dist - radius - mEyeRadius) {
+			return false;
+		}
+		float hx = vx - t * ax, hy = vy - t * ay, hz = vz - t * az;
+		float h = (float) Math.sqrt(hx * hx + hy * hy + hz * hz);
+		float cos = (float) Math.sqrt(dist * dist - radius * radius) / dist;
+		float tan = radius / (dist * cos);
+		return h <= Math.max(t, 0f) * tan + mEyeRadius / cos;
+	}
+
+	private void putTriangle(int type, int c0, int c1, int c2, float w,
+			boolean mirrored) {
+		putVertex(type, c0, w);
+		putVertex(type, mirrored ? c2 : c1, w);
+		putVertex(type, mirrored ? c1 : c2, w);
+	}
+
+	private void putVertex(int type, int corner, float w) {
+		int count = mVertexCounts[type];
+		float[] vertices = mVertices[type];
+		if ((count + 1) * VERTEX_SIZE > vertices.length) {
+			float[] grown = new float[vertices.length * 2];
+			System.arraycopy(vertices, 0, grown, 0, count * VERTEX_SIZE);
+			mVertices[type] = vertices = grown;
+		}
+		int index = count * VERTEX_SIZE;
+		if (w > 0f) {
+			vertices[index] = mCorners[corner * 3];
+			vertices[index + 1] = mCorners[corner * 3 + 1];
+			vertices[index + 2] = mCorners[corner * 3 + 2];
+		} else {
+			vertices[index] = mCorners[corner * 3] - mLight[0];
+			vertices[index + 1] = mCorners[corner * 3 + 1] - mLight[1];
+			vertices[index + 2] = mCorners[corner * 3 + 2] - mLight[2];
+		}
+		vertices[index + 3] = w;
+		mVertexCounts[type] = count + 1;
+	}
+
+}
@@ -0,0 +1,316 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.graphics;
+
+import android.opengl.Matrix;
+
+import com.github.andromeduck.prismatic.graphics.blocks.Drawable;
+import com.github.andromeduck.prismatic.levels.Level;
+import com.github.andromeduck.prismatic.physics.SimulationClock;
+
+/**
+ * Thread running level simulation in fixed steps. After every batch of
+ * steps visible drawables are culled and a render snapshot holding their
+ * records, shadow caster lists or shadow volumes, camera and light is
+ * published, so that GL thread only issues draw calls while next steps are
+ * being simulated. Level,
+ * its drawables and the transform pool are owned by this thread once it has
+ * been started. Thread can also be left unstarted and stepped through
+ * simulate by its owner.
+ */
+final class SimulationThread extends Thread {
+
+	// Margin added to view frustum, as rendering interpolates camera towards
+	// state culling was done with.
+	private static final float CULL_MARGIN = 1f;
+
+	// Aspect ratio of viewport, 0 until known.
+	private volatile float mAspectRatio = 0f;
+	// Camera at start of last step.
+	private final float[] mCameraPositionFrom = new float[3];
+	private final float[] mCameraTargetFrom = new float[3];
+	// Fixed step clock.
+	private final SimulationClock mClock;
+	// True while run loop is taking steps, guarded by this.
+	private boolean mBusy = false;
+	// Batch culler for static chunks.
+	private final FrustumCuller mCuller = new FrustumCuller(256);
+	// Input direction, written by UI thread.
+	private final float[] mInputDir;
+	// Simulated level.
+	private final Level mLevel;
+	private final float[] mMatrixProjection = new float[16];
+	private final float[] mMatrixView = new float[16];
+	private final float[] mMatrixViewProjection = new float[16];
+	// True while simulation is paused.
+	private boolean mPaused = false;
+	private final float[] mPlanes = new float[24];
+	// Shadow cube map bookkeeping.
+	private final ShadowCache mShadowCache = new ShadowCache();
+	private final CubeFaceClassifier mShadowClassifier;
+	// Snapshots handed over to GL thread.
+	private final SnapshotBuffer mSnapshots;
+	// Silhouette shadow volumes of last step.
+	private final ShadowVolumeBuilder mShadowVolumes = new ShadowVolumeBuilder();
+
+	/**
+	 * Creates new simulation thread.
+	 *
+	 * @param level
+	 *            Level to simulate
+	 * @param inputDir
+	 *            Player input direction, read every step
+	 * @param clock
+	 *            Fixed step clock
+	 * @param snapshots
+	 *            Buffer render snapshots are published into
+	 */
+	SimulationThread(Level level, float[] inputDir, SimulationClock clock,
+			SnapshotBuffer snapshots) {
+		super("Simulation");
+		mLevel = level;
+		mInputDir = inputDir;
+		mClock = clock;
+		mSnapshots = snapshots;
+		mShadowClassifier = new CubeFaceClassifier(SceneManager.FAR);
+		setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				synchronized (this) {
+					while (mPaused) {
+						wait();
+					}
+					mBusy = true;
+				}
+
+				try {
+					simulate(System.nanoTime());
+				} finally {
+					synchronized (this) {
+						mBusy = false;
+						notifyAll();
+					}
+				}
+
+				long sleepNanos = mClock.getNanosToNextStep();
+				Thread.sleep(sleepNanos / 1000000, (int) (sleepNanos % 1000000));
+			}
+		} catch (InterruptedException ex) {
+			// Thread is being shut down.
+		}
+	}
+
+	/**
+	 * Takes simulation steps due by given time and publishes a snapshot of
+	 * the last one. Called by run loop, or by owner of a thread that is
+	 * never started, e.g an offscreen benchmark stepping time by itself.
+	 *
+	 * @param now
+	 *            Current time in nanoseconds, snapshots are stamped with it
+	 */
+	void simulate(long now) {
+		TransformPool transforms = mLevel.getTransforms();
+		int steps = mClock.advance(now);
+		for (int i = 0; i < steps; ++i) {
+			transforms.beginStep();
+			System.arraycopy(mLevel.cameraPosition, 0, mCameraPositionFrom, 0,
+					3);
+			System.arraycopy(mLevel.cameraTarget, 0, mCameraTargetFrom, 0, 3);
+			mLevel.update(mClock.getStepMillis(), mInputDir);
+		}
+		if (steps > 0 && mAspectRatio > 0f) {
+			transforms.update();
+			RenderSnapshot snapshot = mSnapshots.getWriteSnapshot();
+			snapshot.clear();
+			System.arraycopy(mCameraPositionFrom, 0,
+					snapshot.mCameraPositionFrom, 0, 3);
+			System.arraycopy(mCameraTargetFrom, 0, snapshot.mCameraTargetFrom,
+					0, 3);
+			writeSnapshot(snapshot, transforms);
+			snapshot.mStepNanos = mClock.getStepNanos();
+			snapshot.mTime = now;
+			mSnapshots.publish();
+		}
+	}
+
+	/**
+	 * Sets aspect ratio of viewport culling is done for. To be called from
+	 * GL thread once surface size is known.
+	 */
+	void setAspectRatio(float aspectRatio) {
+		mAspectRatio = aspectRatio;
+	}
+
+	/**
+	 * Pauses or resumes simulation. Time spent paused is not simulated.
+	 * Pausing returns once steps in progress have been taken.
+	 */
+	synchronized void setPaused(boolean paused) {
+		if (mPaused && !paused) {
+			mClock.reset();
+		}
+		mPaused = paused;
+		notifyAll();
+		boolean interrupted = false;
+		while (paused && mBusy) {
+			try {
+				wait();
+			} catch (InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stops thread, waits for it to finish and releases transform slots of
+	 * level. Thread can not be used afterwards. Threads never started only
+	 * have their level released.
+	 */
+	void shutdown() {
+		interrupt();
+		boolean interrupted = false;
+		while (true) {
+			try {
+				join();
+				break;
+			} catch (InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		mLevel.release();
+	}
+
+	/**
+	 * Culls drawables and copies everything needed for rendering current
+	 * step into given snapshot.
+	 */
+	private void writeSnapshot(RenderSnapshot snapshot,
+			TransformPool transforms) {
+		Level level = mLevel;
+		System.arraycopy(level.cameraPosition, 0, snapshot.mCameraPositionTo,
+				0, 3);
+		System.arraycopy(level.cameraTarget, 0, snapshot.mCameraTargetTo, 0, 3);
+		System.arraycopy(level.cameraUp, 0, snapshot.mCameraUp, 0, 3);
+		System.arraycopy(level.lightPosition, 0, snapshot.mLightPosition, 0, 3);
+		System.arraycopy(level.foregroundColor, 0, snapshot.mForegroundColor,
+				0, 4);
+		snapshot.mRenderMode = level.getRenderMode();
+
+		float[] previous = transforms.getPrevious();
+		float[] world = transforms.getWorld();
+		SceneRegistry registry = level.getRegistry();
+		StaticGeometry statics = level.getStaticGeometry();
+		statics.update();
+
+		// Whole subtrees of the bounding volume tree are accepted or
+		// rejected at once. Its leaf boxes are only slightly larger than
+		// bounding spheres, so results are drawn without another test.
+		MathUtils.setPerspectiveM(mMatrixProjection, SceneManager.FIELD_OF_VIEW,
+				mAspectRatio, SceneManager.NEAR, SceneManager.FAR);
+		Matrix.setLookAtM(mMatrixView, 0, level.cameraPosition[0],
+				level.cameraPosition[1], level.cameraPosition[2],
+				level.cameraTarget[0], level.cameraTarget[1],
+				level.cameraTarget[2], level.cameraUp[0], level.cameraUp[1],
+				level.cameraUp[2]);
+		Matrix.multiplyMM(mMatrixViewProjection, 0, mMatrixProjection, 0,
+				mMatrixView, 0);
+		Visibility.extractPlanes(mMatrixViewProjection, mPlanes);
+		for (int i = 3; i < mPlanes.length; i += 4) {
+			mPlanes[i] += CULL_MARGIN;
+		}
+		BoundingVolumeTree tree = registry.getTree();
+		int candidateCount = tree.query(mPlanes);
+		Drawable[] candidates = tree.getResult();
+		for (int i = 0; i < candidateCount; ++i) {
+			Drawable cube = candidates[i];
+			if (!statics.isBaked(cube)) {
+				snapshot.addScene(previous, world,
+						transforms.getWorldOffset(cube.getTransform()));
+			}
+		}
+
+		// Baked drawables are drawn chunk by chunk instead, chunks are not
+		// in the tree and are culled in one batch.
+		mCuller.clear();
+		for (int i = 0; i < statics.getChunkCount(); ++i) {
+			mCuller.add(statics.getChunk(i).mBounds);
+		}
+		int visibleCount = mCuller.cull(mPlanes);
+		int[] visible = mCuller.getVisibleIndices();
+		for (int i = 0; i < visibleCount; ++i) {
+			StaticChunk chunk = statics.getChunk(visible[i]);
+			if (chunk.mMesh != null) {
+				snapshot.addChunk(chunk);
+			}
+		}
+		// Meshes replaced so far are drawn by no snapshot from this one on.
+		snapshot.mReleasedMeshes.addAll(statics.getReleasedMeshes());
+		statics.getReleasedMeshes().clear();
+
+		if (snapshot.mRenderMode == Level.MODE_SHADOWMAP) {
+			// Sort casters into faces in one pass and find faces some
+			// changed caster is seen from.
+			mShadowCache.setLightPosition(level.lightPosition);
+			mShadowClassifier.classify(level.lightPosition, registry);
+			snapshot.mDirtyFaces = mShadowCache.update(registry,
+					mShadowClassifier.getMasks());
+			for (int face = 0; face < ShadowCache.FACE_COUNT; ++face) {
+				Drawable[] casters = mShadowClassifier.getFaceList(face);
+				int casterCount = mShadowClassifier.getFaceCount(face);
+				for (int i = 0; i < casterCount; ++i) {
+					snapshot.addCaster(face, world,
+							transforms.getWorldOffset(casters[i].getTransform()));
+				}
+			}
+		} else {
+			// Volumes are built out of casters at end of step. Rendered
+			// camera lies anywhere between start and end of step, so sphere
+			// around it is widened by distance moved.
+			float nearHeight = SceneManager.NEAR
+					* (float) Math.tan(SceneManager.FIELD_OF_VIEW * Math.PI / 360);
+			float nearRadius = (float) Math.sqrt(SceneManager.NEAR
+					* SceneManager.NEAR + nearHeight * nearHeight
+					* (1 + mAspectRatio * mAspectRatio));
+			float dx = level.cameraPosition[0] - mCameraPositionFrom[0];
+			float dy = level.cameraPosition[1] - mCameraPositionFrom[1];
+			float dz = level.cameraPosition[2] - mCameraPositionFrom[2];
+			mShadowVolumes.begin(level.lightPosition, level.cameraPosition,
+					nearRadius + (float) Math.sqrt(dx * dx + dy * dy + dz * dz),
+					mPlanes);
+			for (int i = 0; i < registry.size(); ++i) {
+				Drawable cube = registry.get(i);
+				mShadowVolumes.add(world,
+						transforms.getWorldOffset(cube.getTransform()));
+			}
+			for (int type = ShadowVolumeBuilder.DEPTH_PASS; type <= ShadowVolumeBuilder.DEPTH_FAIL; ++type) {
+				snapshot.setShadowVolumes(type, mShadowVolumes.getVertices(type),
+						mShadowVolumes.getVertexCount(type));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,75 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.graphics;
+
+/**
+ * Triple buffer of render snapshots between one writing and one reading
+ * thread. Writer fills its own snapshot and publishes it, reader acquires
+ * the latest published one. Neither side ever waits for the other to finish
+ * with a snapshot, and snapshots the reader skipped pass their dirty shadow
+ * faces and meshes to release on to the next one published.
+ */
+public final class SnapshotBuffer {
+
+	// True if mReady has been published but not acquired yet.
+	private boolean mFresh = false;
+	// Snapshot owned by reader.
+	private RenderSnapshot mRead = new RenderSnapshot();
+	// Latest published snapshot.
+	private RenderSnapshot mReady = new RenderSnapshot();
+	// Snapshot owned by writer.
+	private RenderSnapshot mWrite = new RenderSnapshot();
+
+	/**
+	 * Returns latest published snapshot, or the one returned last time if
+	 * nothing new has been published. To be called from reading thread.
+	 */
+	public synchronized RenderSnapshot acquire() {
+		if (mFresh) {
+			RenderSnapshot snapshot = mRead;
+			mRead = mReady;
+			mReady = snapshot;
+			mFresh = false;
+		}
+		return mRead;
+	}
+
+	/**
+	 * Getter for snapshot to be filled by writing thread.
+	 */
+	public RenderSnapshot getWriteSnapshot() {
+		return mWrite;
+	}
+
+	/**
+	 * Publishes snapshot returned by getWriteSnapshot. To be called from
+	 * writing thread.
+	 */
+	public synchronized void publish() {
+		if (mFresh) {
+			// Replaced snapshot was never rendered.
+			mWrite.mDirtyFaces |= mReady.mDirtyFaces;
+			mWrite.mReleasedMeshes.addAll(mReady.mReleasedMeshes);
+			mReady.mReleasedMeshes.clear();
+		}
+		RenderSnapshot snapshot = mReady;
+		mReady = mWrite;
+		mWrite = snapshot;
+		mFresh = true;
+	}
+
+}
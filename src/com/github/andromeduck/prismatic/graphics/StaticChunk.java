@@ -0,0 +1,45 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.github.andromeduck.prismatic.graphics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.andromeduck.prismatic.graphics.blocks.Drawable;
+
+/**
+ * Merged geometry of static drawables whose centers lie within one cell of
+ * StaticGeometry grid. Owned by simulation thread, meshes are handed over to
+ * GL thread through render snapshots, replaced ones included for release.
+ */
+final class StaticChunk {
+
+	// Bounding sphere of all drawables, {x, y, z, radius}.
+	final float[] mBounds = new float[4];
+	// Packed cell coordinates, key of chunk in StaticGeometry.
+	final long mCell;
+	// True if chunk has to be rebuilt.
+	boolean mDirty = false;
+	// Drawables baked into this chunk.
+	final List<Drawable> mDrawables = new ArrayList<Drawable>();
+	// Latest mesh, null if chunk has no visible faces.
+	Mesh mMesh;
+
+	StaticChunk(long cell) {
+		mCell = cell;
+	}
+
+}
@@ -0,0 +1,449 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.github.andromeduck.prismatic.graphics;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import android.opengl.GLES30;
+import android.util.Log;
+
+import com.github.andromeduck.prismatic.graphics.blocks.Drawable;
+import com.github.andromeduck.prismatic.physics.CollisionWorld;
+
+/**
+ * Bakes drawables that do not move into merged meshes, one per cell of a
+ * coarse grid. Faces of axis aligned blocks covered by a neighboring block
+ * are dropped, and colors are stored per vertex so that a whole chunk is
+ * drawn at once. Drawables are watched for changes and only chunks
+ * affected by a change are rebuilt, chunks left without drawables are
+ * dropped. Baked drawables stay registered for shadows and collisions, but
+ * are not meant to be drawn one by one.
+ */
+public final class StaticGeometry {
+
+	// Edge length of chunk cell.
+	public static final float CHUNK_SIZE = 8f;
+
+	private static final String TAG = "StaticGeometry";
+
+	// Tolerance for faces touching each other.
+	private static final float EPSILON = 1e-4f;
+	// Vertex layout is {x, y, z, nx, ny, nz, r, g, b} floats.
+	private static final int STRIDE = 9 * 4;
+	// Indices are unsigned shorts.
+	private static final int MAX_VERTICES = 65536;
+
+	// Chunks by packed cell coordinates.
+	private final HashMap<Long, StaticChunk> mChunks = new HashMap<Long, StaticChunk>();
+	private final List<StaticChunk> mChunkList = new ArrayList<StaticChunk>();
+	// Chunks to rebuild on next update.
+	private final List<StaticChunk> mDirty = new ArrayList<StaticChunk>();
+	// Meshes replaced or dropped since last snapshot, GL thread releases
+	// them once it stops drawing older snapshots.
+	private final List<Mesh> mReleased = new ArrayList<Mesh>();
+	// Baked state per drawable.
+	private final IdentityHashMap<Drawable, Entry> mEntries = new IdentityHashMap<Drawable, Entry>();
+	private final List<Entry> mEntryList = new ArrayList<Entry>();
+	// Baked flag per transform slot.
+	private boolean[] mBaked = new boolean[64];
+	// Broad phase for finding neighboring faces.
+	private final CollisionWorld mNeighbors;
+	private final float[] mSphere = new float[4];
+	// Pool holding transforms of baked drawables.
+	private final TransformPool mTransforms;
+	// Vertex and index data of chunk being built.
+	private ByteBuffer mVertices = ByteBuffer.allocate(1024 * STRIDE).order(
+			ByteOrder.nativeOrder());
+	private short[] mIndices = new short[1536];
+
+	/**
+	 * Creates new static geometry.
+	 *
+	 * @param transforms
+	 *            Pool holding transforms of drawables to be baked
+	 * @param neighbors
+	 *            Collision world holding all drawables to be baked, used for
+	 *            finding faces hidden by neighbors
+	 */
+	public StaticGeometry(TransformPool transforms, CollisionWorld neighbors) {
+		mTransforms = transforms;
+		mNeighbors = neighbors;
+	}
+
+	/**
+	 * Adds drawable to be baked on next update.
+	 *
+	 * @param drawable
+	 *            Drawable which is not expected to move
+	 */
+	public void add(Drawable drawable) {
+		if (mEntries.containsKey(drawable)) {
+			return;
+		}
+		Entry entry = new Entry(drawable);
+		mEntries.put(drawable, entry);
+		mEntryList.add(entry);
+
+		int slot = drawable.getTransform();
+		if (slot >= mBaked.length) {
+			mBaked = Arrays.copyOf(mBaked, Math.max(slot + 1, mBaked.length * 2));
+		}
+		mBaked[slot] = true;
+	}
+
+	/**
+	 * Returns true if given drawable is drawn as part of a chunk.
+	 */
+	public boolean isBaked(Drawable drawable) {
+		int slot = drawable.getTransform();
+		return slot < mBaked.length && mBaked[slot];
+	}
+
+	/**
+	 * Removes drawable, chunks it affected are rebuilt on next update.
+	 *
+	 * @param drawable
+	 *            Drawable to remove
+	 * @return true if drawable was added before.
+	 */
+	public boolean remove(Drawable drawable) {
+		Entry entry = mEntries.remove(drawable);
+		if (entry == null) {
+			return false;
+		}
+		mEntryList.remove(entry);
+		mBaked[drawable.getTransform()] = false;
+		if (entry.mChunk != null) {
+			entry.mChunk.mDrawables.remove(drawable);
+			markDirty(entry.mChunk);
+			markNeighborsDirty(entry.mSphere);
+		}
+		return true;
+	}
+
+	/**
+	 * Finds drawables whose transform or color has changed since they were
+	 * baked and rebuilds affected chunks. Transform pool should be up to date.
+	 */
+	public void update() {
+		TransformPool transforms = mTransforms;
+		float[] world = transforms.getWorld();
+		for (int i = 0; i < mEntryList.size(); ++i) {
+			Entry entry = mEntryList.get(i);
+			Drawable drawable = entry.mDrawable;
+			int offset = transforms.getWorldOffset(drawable.getTransform());
+			if (entry.mRevision == drawable.getRevision()
+					&& entry.mColor[0] == world[offset + 16]
+					&& entry.mColor[1] == world[offset + 17]
+					&& entry.mColor[2] == world[offset + 18]) {
+				continue;
+			}
+
+			// Neighbors may have had faces hidden by old bounds or get them
+			// hidden by new ones.
+			if (entry.mChunk != null) {
+				markNeighborsDirty(entry.mSphere);
+				entry.mChunk.mDrawables.remove(drawable);
+				markDirty(entry.mChunk);
+			}
+			System.arraycopy(drawable.getBoundingSphere(), 0, entry.mSphere, 0, 4);
+			System.arraycopy(world, offset + 16, entry.mColor, 0, 3);
+			entry.mRevision = drawable.getRevision();
+			entry.mChunk = getChunk(entry.mSphere);
+			entry.mChunk.mDrawables.add(drawable);
+			markDirty(entry.mChunk);
+			markNeighborsDirty(entry.mSphere);
+		}
+
+		for (int i = 0; i < mDirty.size(); ++i) {
+			build(mDirty.get(i));
+		}
+		mDirty.clear();
+	}
+
+	/**
+	 * Getter for chunk at given index.
+	 */
+	StaticChunk getChunk(int index) {
+		return mChunkList.get(index);
+	}
+
+	/**
+	 * Getter for number of chunks, ones without visible faces included.
+	 */
+	int getChunkCount() {
+		return mChunkList.size();
+	}
+
+	/**
+	 * Getter for meshes replaced or dropped by updates since list was last
+	 * cleared. Caller hands them over to GL thread and clears the list.
+	 */
+	List<Mesh> getReleasedMeshes() {
+		return mReleased;
+	}
+
+	/**
+	 * Builds mesh out of all faces of chunk drawables not hidden by
+	 * neighbors.
+	 */
+	private void build(StaticChunk chunk) {
+		chunk.mDirty = false;
+		if (chunk.mMesh != null) {
+			mReleased.add(chunk.mMesh);
+			chunk.mMesh = null;
+		}
+		if (chunk.mDrawables.isEmpty()) {
+			mChunks.remove(chunk.mCell);
+			mChunkList.remove(chunk);
+			return;
+		}
+		TransformPool transforms = mTransforms;
+		float[] world = transforms.getWorld();
+		mVertices.clear();
+		int vertexCount = 0;
+		int indexCount = 0;
+
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+		int overflowCount = 0;
+		for (int i = 0; i < chunk.mDrawables.size(); ++i) {
+			Drawable drawable = chunk.mDrawables.get(i);
+			// Drawables past vertex limit are left unbaked and drawn one by
+			// one, until a rebuild of chunk finds room for them.
+			boolean fits = vertexCount + 24 <= MAX_VERTICES;
+			mBaked[drawable.getTransform()] = fits;
+			if (!fits) {
+				++overflowCount;
+				continue;
+			}
+			int m = transforms.getWorldOffset(drawable.getTransform());
+			float[] sphere = mEntries.get(drawable).mSphere;
+			minX = Math.min(minX, sphere[0] - sphere[3]);
+			minY = Math.min(minY, sphere[1] - sphere[3]);
+			minZ = Math.min(minZ, sphere[2] - sphere[3]);
+			maxX = Math.max(maxX, sphere[0] + sphere[3]);
+			maxY = Math.max(maxY, sphere[1] + sphere[3]);
+			maxZ = Math.max(maxZ, sphere[2] + sphere[3]);
+
+			boolean axisAligned = isAxisAligned(world, m);
+			for (int face = 0; face < 6; ++face) {
+				if (axisAligned && isHidden(drawable, world, m, face)) {
+					continue;
+				}
+				putFace(world, m, face, vertexCount);
+				if (indexCount + 6 > mIndices.length) {
+					mIndices = Arrays.copyOf(mIndices, mIndices.length * 2);
+				}
+				mIndices[indexCount++] = (short) vertexCount;
+				mIndices[indexCount++] = (short) (vertexCount + 1);
+				mIndices[indexCount++] = (short) (vertexCount + 2);
+				mIndices[indexCount++] = (short) vertexCount;
+				mIndices[indexCount++] = (short) (vertexCount + 2);
+				mIndices[indexCount++] = (short) (vertexCount + 3);
+				vertexCount += 4;
+			}
+		}
+
+		if (overflowCount > 0) {
+			Log.w(TAG, "Chunk vertex limit reached, " + overflowCount
+					+ " drawables left unbaked");
+		}
+
+		float[] bounds = chunk.mBounds;
+		bounds[0] = (minX + maxX) * 0.5f;
+		bounds[1] = (minY + maxY) * 0.5f;
+		bounds[2] = (minZ + maxZ) * 0.5f;
+		bounds[3] = 0.5f * (float) Math.sqrt((maxX - minX) * (maxX - minX)
+				+ (maxY - minY) * (maxY - minY) + (maxZ - minZ) * (maxZ - minZ));
+
+		if (indexCount == 0) {
+			// Nothing to draw, keep chunk out of view.
+			bounds[3] = -1f;
+			return;
+		}
+		byte[] vertices = new byte[vertexCount * STRIDE];
+		mVertices.flip();
+		mVertices.get(vertices);
+		Mesh mesh = new Mesh(vertices, STRIDE, Arrays.copyOf(mIndices, indexCount));
+		mesh.addAttribute("aPosition", 3, GLES30.GL_FLOAT, 0);
+		mesh.addAttribute("aNormal", 3, GLES30.GL_FLOAT, 12);
+		mesh.addAttribute("aColor", 3, GLES30.GL_FLOAT, 24);
+		chunk.mMesh = mesh;
+	}
+
+	/**
+	 * Returns chunk whose cell contains center of given sphere, creating it
+	 * if needed.
+	 */
+	private StaticChunk getChunk(float[] sphere) {
+		long cx = (long) Math.floor(sphere[0] / CHUNK_SIZE) & 0x1FFFFF;
+		long cy = (long) Math.floor(sphere[1] / CHUNK_SIZE) & 0x1FFFFF;
+		long cz = (long) Math.floor(sphere[2] / CHUNK_SIZE) & 0x1FFFFF;
+		long key = (cx << 42) | (cy << 21) | cz;
+		StaticChunk chunk = mChunks.get(key);
+		if (chunk == null) {
+			chunk = new StaticChunk(key);
+			mChunks.put(key, chunk);
+			mChunkList.add(chunk);
+		}
+		return chunk;
+	}
+
+	/**
+	 * Returns true if model matrix at given offset has no rotation.
+	 */
+	private static boolean isAxisAligned(float[] m, int offset) {
+		return m[offset + 1] == 0f && m[offset + 2] == 0f
+				&& m[offset + 4] == 0f && m[offset + 6] == 0f
+				&& m[offset + 8] == 0f && m[offset + 9] == 0f;
+	}
+
+	/**
+	 * Returns true if given face of axis aligned block is covered by a
+	 * single baked axis aligned neighbor extending beyond it.
+	 */
+	private boolean isHidden(Drawable drawable, float[] world, int m, int face) {
+		int axis = face / 2;
+		float sign = (face & 1) == 0 ? 1f : -1f;
+		int u = (axis + 1) % 3, v = (axis + 2) % 3;
+		float plane = world[m + 12 + axis] + sign * Math.abs(world[m + axis * 5]);
+		float cu = world[m + 12 + u], hu = Math.abs(world[m + u * 5]);
+		float cv = world[m + 12 + v], hv = Math.abs(world[m + v * 5]);
+
+		float[] sphere = mSphere;
+		sphere[axis] = plane;
+		sphere[u] = cu;
+		sphere[v] = cv;
+		sphere[3] = (float) Math.sqrt(hu * hu + hv * hv) + EPSILON;
+		int count = mNeighbors.query(sphere, CollisionWorld.LAYER_BLOCK
+				| CollisionWorld.LAYER_DECORATION);
+		Drawable[] neighbors = mNeighbors.getResult();
+		TransformPool transforms = mTransforms;
+		for (int i = 0; i < count; ++i) {
+			Drawable neighbor = neighbors[i];
+			if (neighbor == drawable || !isBaked(neighbor)) {
+				continue;
+			}
+			int n = transforms.getWorldOffset(neighbor.getTransform());
+			if (!isAxisAligned(world, n)) {
+				continue;
+			}
+			float c = world[n + 12 + axis], h = Math.abs(world[n + axis * 5]);
+			boolean beyond = sign > 0f ? c - h <= plane + EPSILON
+					&& c + h > plane + EPSILON : c + h >= plane - EPSILON
+					&& c - h < plane - EPSILON;
+			if (beyond
+					&& Math.abs(world[n + 12 + u] - cu) + hu <= Math.abs(world[n + u * 5]) + EPSILON
+					&& Math.abs(world[n + 12 + v] - cv) + hv <= Math.abs(world[n + v * 5]) + EPSILON) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void markDirty(StaticChunk chunk) {
+		if (!chunk.mDirty) {
+			chunk.mDirty = true;
+			mDirty.add(chunk);
+		}
+	}
+
+	/**
+	 * Marks chunks of all baked drawables touching given bounds dirty.
+	 */
+	private void markNeighborsDirty(float[] sphere) {
+		System.arraycopy(sphere, 0, mSphere, 0, 4);
+		mSphere[3] += EPSILON;
+		int count = mNeighbors.query(mSphere, CollisionWorld.LAYER_BLOCK
+				| CollisionWorld.LAYER_DECORATION);
+		Drawable[] neighbors = mNeighbors.getResult();
+		for (int i = 0; i < count; ++i) {
+			Entry entry = mEntries.get(neighbors[i]);
+			if (entry != null && entry.mChunk != null) {
+				markDirty(entry.mChunk);
+			}
+		}
+	}
+
+	/**
+	 * Writes four corners of given face of unit cube transformed by model
+	 * matrix, wound counter-clockwise seen from outside.
+	 */
+	private void putFace(float[] world, int m, int face, int vertexCount) {
+		// Face normal is cross product of the other two axes, flipped for
+		// negative faces and mirroring transforms.
+		int axis = face / 2;
+		int u = (axis + 1) % 3, v = (axis + 2) % 3;
+		float nx = world[m + u * 4 + 1] * world[m + v * 4 + 2] - world[m + u * 4 + 2] * world[m + v * 4 + 1];
+		float ny = world[m + u * 4 + 2] * world[m + v * 4] - world[m + u * 4] * world[m + v * 4 + 2];
+		float nz = world[m + u * 4] * world[m + v * 4 + 1] - world[m + u * 4 + 1] * world[m + v * 4];
+		float det = world[m + axis * 4] * nx + world[m + axis * 4 + 1] * ny
+				+ world[m + axis * 4 + 2] * nz;
+		boolean mirrored = det < 0f;
+		float scale = ((face & 1) == 0) != mirrored ? 1f : -1f;
+		scale /= (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+		nx *= scale;
+		ny *= scale;
+		nz *= scale;
+
+		if (mVertices.remaining() < 4 * STRIDE) {
+			ByteBuffer vertices = ByteBuffer.allocate(mVertices.capacity() * 2)
+					.order(ByteOrder.nativeOrder());
+			mVertices.flip();
+			vertices.put(mVertices);
+			mVertices = vertices;
+		}
+		int[] corners = ShadowVolumeBuilder.FACES[face];
+		for (int i = 0; i < 4; ++i) {
+			int corner = corners[mirrored ? 3 - i : i];
+			float sx = (corner & 1) != 0 ? 1f : -1f;
+			float sy = (corner & 2) != 0 ? 1f : -1f;
+			float sz = (corner & 4) != 0 ? 1f : -1f;
+			for (int j = 0; j < 3; ++j) {
+				mVertices.putFloat(world[m + 12 + j] + sx * world[m + j]
+						+ sy * world[m + 4 + j] + sz * world[m + 8 + j]);
+			}
+			mVertices.putFloat(nx).putFloat(ny).putFloat(nz);
+			mVertices.putFloat(world[m + 16]).putFloat(world[m + 17])
+					.putFloat(world[m + 18]);
+		}
+	}
+
+	/**
+	 * Baked state of drawable.
+	 */
+	private static final class Entry {
+		// Chunk drawable is baked into, null until first update.
+		StaticChunk mChunk;
+		final float[] mColor = new float[3];
+		final Drawable mDrawable;
+		// Drawable revision and bounds at time of baking, -1 before first.
+		int mRevision = -1;
+		final float[] mSphere = new float[4];
+
+		Entry(Drawable drawable) {
+			mDrawable = drawable;
+		}
+	}
+
+}
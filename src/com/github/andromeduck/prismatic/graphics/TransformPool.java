@@ -0,0 +1,544 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.graphics;
+
+import com.github.andromeduck.prismatic.graphics.blocks.BoundsListener;
+import com.github.andromeduck.prismatic.graphics.blocks.Drawable;
+
+/**
+ * Pool of transforms stored in flat primitive arrays. Every transform is a
+ * slot holding position, rotation and scale relative to an optional parent
+ * slot, plus resulting world space record. Setters only mark slots dirty,
+ * and update recalculates all dirty slots and their descendants in one pass
+ * ordered parents first. World records use the layout of InstanceBuffer, a
+ * model matrix followed by a color, so that they can be copied into
+ * instance buffers as is. World records as of start of current simulation
+ * step are kept as well, so that rendering can interpolate between them.
+ * Methods are to be called from one thread only.
+ */
+public final class TransformPool {
+
+	// Floats per local transform, {x, y, z, sx, sy, sz, rotation 3x3 column
+	// major, radius}.
+	private static final int LOCAL_SIZE = 16;
+	// Floats per world record.
+	public static final int WORLD_SIZE = InstanceBuffer.INSTANCE_SIZE;
+
+	// Slot flags.
+	private static final int FLAG_USED = 1;
+	private static final int FLAG_DIRTY = 2;
+	private static final int FLAG_CHANGED = 4;
+	private static final int FLAG_STEP = 8;
+	private static final int FLAG_NEW = 16;
+
+	// Slots whose world record changed during update.
+	private int[] mChanged;
+	private int mChangedCount = 0;
+	// Number of slots ever allocated, free slots included.
+	private int mCount = 0;
+	// Depth of every slot in hierarchy, 0 for roots.
+	private int[] mDepth;
+	// True if any slot has been marked dirty since last update.
+	private boolean mDirty = false;
+	// First child of every slot, -1 for none. Children of a slot are linked
+	// through mNextSibling and mPrevSibling, so that slots are detached and
+	// freed without scanning the pool.
+	private int[] mFirstChild;
+	// Flags per slot.
+	private int[] mFlags;
+	// Free slots available for reuse.
+	private int[] mFree;
+	private int mFreeCount = 0;
+	// Listeners notified once world bounds of slot have changed.
+	private BoundsListener[] mListeners;
+	// Local transform per slot.
+	private float[] mLocal;
+	// Used slots sorted by depth, valid if mOrderValid is true.
+	private int[] mOrder;
+	private int mOrderCount = 0;
+	private boolean mOrderValid = true;
+	// Next and previous sibling of every slot, -1 for none.
+	private int[] mNextSibling;
+	private int[] mPrevSibling;
+	// Drawables given to listeners.
+	private Drawable[] mOwners;
+	// World record per slot at start of current step.
+	private float[] mPrevious;
+	// Parent slot of every slot, -1 for roots.
+	private int[] mParent;
+	// Incremented every time world record of slot changes.
+	private int[] mRevision;
+	// Temporary rotation matrix.
+	private final float[] mRotation = new float[16];
+	// Slots whose world record changed during current step.
+	private int[] mStepChanged;
+	private int mStepChangedCount = 0;
+	// World record per slot.
+	private float[] mWorld;
+
+	/**
+	 * Creates new pool.
+	 *
+	 * @param capacity
+	 *            Initial number of slots
+	 */
+	public TransformPool(int capacity) {
+		allocateArrays(Math.max(capacity, 16));
+	}
+
+	/**
+	 * Allocates new slot with identity transform and no parent.
+	 *
+	 * @return Slot index.
+	 */
+	public int allocate() {
+		int slot;
+		if (mFreeCount > 0) {
+			slot = mFree[--mFreeCount];
+		} else {
+			if (mCount == mParent.length) {
+				allocateArrays(mCount * 2);
+			}
+			slot = mCount++;
+		}
+
+		float[] local = mLocal;
+		int l = slot * LOCAL_SIZE;
+		for (int i = 0; i < LOCAL_SIZE; ++i) {
+			local[l + i] = 0f;
+		}
+		local[l + 3] = local[l + 4] = local[l + 5] = 1f;
+		local[l + 6] = local[l + 10] = local[l + 14] = 1f;
+		int w = slot * WORLD_SIZE;
+		for (int i = 0; i < WORLD_SIZE; ++i) {
+			mWorld[w + i] = 0f;
+		}
+
+		mParent[slot] = -1;
+		mFirstChild[slot] = mNextSibling[slot] = mPrevSibling[slot] = -1;
+		mDepth[slot] = 0;
+		mListeners[slot] = null;
+		mOwners[slot] = null;
+		mFlags[slot] = FLAG_USED | FLAG_DIRTY | FLAG_NEW;
+		mDirty = true;
+		mOrderValid = false;
+		return slot;
+	}
+
+	/**
+	 * Starts new simulation step. Pending changes are applied, and world
+	 * records are stored as previous ones for interpolation.
+	 */
+	public void beginStep() {
+		update();
+		for (int i = 0; i < mStepChangedCount; ++i) {
+			int slot = mStepChanged[i];
+			mFlags[slot] &= ~FLAG_STEP;
+			System.arraycopy(mWorld, slot * WORLD_SIZE, mPrevious, slot
+					* WORLD_SIZE, WORLD_SIZE);
+		}
+		mStepChangedCount = 0;
+	}
+
+	/**
+	 * Releases slot for reuse. Children of released slot become roots.
+	 *
+	 * @param slot
+	 *            Slot index
+	 */
+	public void free(int slot) {
+		int child = mFirstChild[slot];
+		while (child >= 0) {
+			int next = mNextSibling[child];
+			mParent[child] = -1;
+			mNextSibling[child] = mPrevSibling[child] = -1;
+			markDirty(child);
+			child = next;
+		}
+		mFirstChild[slot] = -1;
+		unlink(slot);
+		mParent[slot] = -1;
+		mFlags[slot] = 0;
+		mListeners[slot] = null;
+		mOwners[slot] = null;
+		mFree[mFreeCount++] = slot;
+		mOrderValid = false;
+	}
+
+	/**
+	 * Copies world space bounding sphere of slot into given array. Sphere
+	 * center is world position of slot and radius the one set with
+	 * setRadius, hence parents are expected not to scale.
+	 *
+	 * @param slot
+	 *            Slot index
+	 * @param sphere
+	 *            Array for writing {x, y, z, radius}
+	 */
+	public void getBounds(int slot, float[] sphere) {
+		int w = slot * WORLD_SIZE;
+		sphere[0] = mWorld[w + 12];
+		sphere[1] = mWorld[w + 13];
+		sphere[2] = mWorld[w + 14];
+		sphere[3] = mLocal[slot * LOCAL_SIZE + 15];
+	}
+
+	/**
+	 * Getter for world records as of start of current simulation step, in
+	 * same layout as getWorld().
+	 */
+	public float[] getPrevious() {
+		return mPrevious;
+	}
+
+	/**
+	 * Getter for revision of slot, which changes every time its world record
+	 * is recalculated.
+	 */
+	public int getRevision(int slot) {
+		return mRevision[slot];
+	}
+
+	/**
+	 * Getter for world records of all slots, WORLD_SIZE floats per slot
+	 * starting from getWorldOffset(slot). Records are valid after update.
+	 */
+	public float[] getWorld() {
+		return mWorld;
+	}
+
+	/**
+	 * Getter for offset of world record of given slot.
+	 */
+	public int getWorldOffset(int slot) {
+		return slot * WORLD_SIZE;
+	}
+
+	/**
+	 * Returns true if local position of slot equals given one.
+	 */
+	public boolean isPosition(int slot, float x, float y, float z) {
+		int l = slot * LOCAL_SIZE;
+		return mLocal[l] == x && mLocal[l + 1] == y && mLocal[l + 2] == z;
+	}
+
+	/**
+	 * Sets color stored in world record of slot. Colors are not
+	 * interpolated, previous record is changed as well.
+	 *
+	 * @param slot
+	 *            Slot index
+	 * @param color
+	 *            RGB color
+	 */
+	public void setColor(int slot, float[] color) {
+		int w = slot * WORLD_SIZE + 16;
+		mWorld[w] = mPrevious[w] = color[0];
+		mWorld[w + 1] = mPrevious[w + 1] = color[1];
+		mWorld[w + 2] = mPrevious[w + 2] = color[2];
+	}
+
+	/**
+	 * Sets listener notified by update once world bounds of slot have
+	 * changed.
+	 *
+	 * @param slot
+	 *            Slot index
+	 * @param owner
+	 *            Drawable passed to listener
+	 * @param listener
+	 *            Listener, null for none
+	 */
+	public void setListener(int slot, Drawable owner, BoundsListener listener) {
+		mOwners[slot] = owner;
+		mListeners[slot] = listener;
+	}
+
+	/**
+	 * Sets parent of slot. World transform of slot will be parent world
+	 * transform multiplied by local one.
+	 *
+	 * @param slot
+	 *            Slot index
+	 * @param parent
+	 *            Parent slot index, -1 for none
+	 */
+	public void setParent(int slot, int parent) {
+		if (mParent[slot] == parent) {
+			return;
+		}
+		unlink(slot);
+		mParent[slot] = parent;
+		if (parent >= 0) {
+			int first = mFirstChild[parent];
+			mNextSibling[slot] = first;
+			if (first >= 0) {
+				mPrevSibling[first] = slot;
+			}
+			mFirstChild[parent] = slot;
+		}
+		mOrderValid = false;
+		markDirty(slot);
+	}
+
+	/**
+	 * Sets local position of slot.
+	 */
+	public void setPosition(int slot, float x, float y, float z) {
+		int l = slot * LOCAL_SIZE;
+		mLocal[l] = x;
+		mLocal[l + 1] = y;
+		mLocal[l + 2] = z;
+		markDirty(slot);
+	}
+
+	/**
+	 * Sets bounding sphere radius of slot.
+	 */
+	public void setRadius(int slot, float radius) {
+		mLocal[slot * LOCAL_SIZE + 15] = radius;
+		markDirty(slot);
+	}
+
+	/**
+	 * Sets local rotation of slot.
+	 *
+	 * @param slot
+	 *            Slot index
+	 * @param rx
+	 *            Rotation around x axis in degrees
+	 * @param ry
+	 *            Rotation around y axis in degrees
+	 * @param rz
+	 *            Rotation around z axis in degrees
+	 */
+	public void setRotation(int slot, float rx, float ry, float rz) {
+		MathUtils.setRotateM(mRotation, rx, ry, rz);
+		int l = slot * LOCAL_SIZE + 6;
+		for (int col = 0; col < 3; ++col) {
+			mLocal[l + col * 3] = mRotation[col * 4];
+			mLocal[l + col * 3 + 1] = mRotation[col * 4 + 1];
+			mLocal[l + col * 3 + 2] = mRotation[col * 4 + 2];
+		}
+		markDirty(slot);
+	}
+
+	/**
+	 * Sets local scale of slot.
+	 */
+	public void setScale(int slot, float x, float y, float z) {
+		int l = slot * LOCAL_SIZE;
+		mLocal[l + 3] = x;
+		mLocal[l + 4] = y;
+		mLocal[l + 5] = z;
+		markDirty(slot);
+	}
+
+	/**
+	 * Recalculates world records of all dirty slots and their descendants,
+	 * then notifies listeners of changed slots. Does nothing if no slot has
+	 * changed since last update.
+	 */
+	public void update() {
+		if (!mDirty) {
+			return;
+		}
+		mDirty = false;
+		if (!mOrderValid) {
+			sortOrder();
+		}
+
+		final int[] flags = mFlags;
+		final int[] parents = mParent;
+		for (int i = 0; i < mOrderCount; ++i) {
+			int slot = mOrder[i];
+			int parent = parents[slot];
+			if ((flags[slot] & FLAG_DIRTY) == 0
+					&& (parent < 0 || (flags[parent] & FLAG_CHANGED) == 0)) {
+				continue;
+			}
+			calculateWorld(slot, parent);
+			if ((flags[slot] & FLAG_NEW) != 0) {
+				// Nothing to interpolate from for new slots.
+				System.arraycopy(mWorld, slot * WORLD_SIZE, mPrevious, slot
+						* WORLD_SIZE, WORLD_SIZE);
+			} else if ((flags[slot] & FLAG_STEP) == 0) {
+				mStepChanged[mStepChangedCount++] = slot;
+			}
+			flags[slot] = (flags[slot] & ~(FLAG_DIRTY | FLAG_NEW))
+					| FLAG_CHANGED | FLAG_STEP;
+			++mRevision[slot];
+			mChanged[mChangedCount++] = slot;
+		}
+
+		// Listeners are notified only once all records are up to date.
+		for (int i = 0; i < mChangedCount; ++i) {
+			int slot = mChanged[i];
+			flags[slot] &= ~FLAG_CHANGED;
+			if (mListeners[slot] != null) {
+				mListeners[slot].boundsChanged(mOwners[slot]);
+			}
+		}
+		mChangedCount = 0;
+	}
+
+	private void allocateArrays(int capacity) {
+		mChanged = new int[capacity];
+		mDepth = grow(mDepth, capacity);
+		mFirstChild = grow(mFirstChild, capacity);
+		mFlags = grow(mFlags, capacity);
+		mFree = grow(mFree, capacity);
+		mNextSibling = grow(mNextSibling, capacity);
+		mOrder = new int[capacity];
+		mOrderValid = false;
+		mParent = grow(mParent, capacity);
+		mPrevSibling = grow(mPrevSibling, capacity);
+		mRevision = grow(mRevision, capacity);
+		mStepChanged = grow(mStepChanged, capacity);
+
+		float[] local = new float[capacity * LOCAL_SIZE];
+		float[] world = new float[capacity * WORLD_SIZE];
+		float[] previous = new float[capacity * WORLD_SIZE];
+		BoundsListener[] listeners = new BoundsListener[capacity];
+		Drawable[] owners = new Drawable[capacity];
+		if (mCount > 0) {
+			System.arraycopy(mLocal, 0, local, 0, mCount * LOCAL_SIZE);
+			System.arraycopy(mWorld, 0, world, 0, mCount * WORLD_SIZE);
+			System.arraycopy(mPrevious, 0, previous, 0, mCount * WORLD_SIZE);
+			System.arraycopy(mListeners, 0, listeners, 0, mCount);
+			System.arraycopy(mOwners, 0, owners, 0, mCount);
+		}
+		mLocal = local;
+		mWorld = world;
+		mPrevious = previous;
+		mListeners = listeners;
+		mOwners = owners;
+	}
+
+	/**
+	 * Calculates world matrix of slot as parent world matrix multiplied by
+	 * translation, rotation and scale, parent matrices being affine.
+	 */
+	private void calculateWorld(int slot, int parent) {
+		final float[] local = mLocal;
+		final float[] world = mWorld;
+		int l = slot * LOCAL_SIZE;
+		int w = slot * WORLD_SIZE;
+
+		// Local matrix columns are rotation columns multiplied by scale.
+		float sx = local[l + 3], sy = local[l + 4], sz = local[l + 5];
+		float m0 = local[l + 6] * sx, m1 = local[l + 7] * sx, m2 = local[l + 8] * sx;
+		float m4 = local[l + 9] * sy, m5 = local[l + 10] * sy, m6 = local[l + 11] * sy;
+		float m8 = local[l + 12] * sz, m9 = local[l + 13] * sz, m10 = local[l + 14] * sz;
+		float m12 = local[l], m13 = local[l + 1], m14 = local[l + 2];
+
+		if (parent < 0) {
+			world[w] = m0;
+			world[w + 1] = m1;
+			world[w + 2] = m2;
+			world[w + 4] = m4;
+			world[w + 5] = m5;
+			world[w + 6] = m6;
+			world[w + 8] = m8;
+			world[w + 9] = m9;
+			world[w + 10] = m10;
+			world[w + 12] = m12;
+			world[w + 13] = m13;
+			world[w + 14] = m14;
+		} else {
+			int p = parent * WORLD_SIZE;
+			float p0 = world[p], p1 = world[p + 1], p2 = world[p + 2];
+			float p4 = world[p + 4], p5 = world[p + 5], p6 = world[p + 6];
+			float p8 = world[p + 8], p9 = world[p + 9], p10 = world[p + 10];
+			float p12 = world[p + 12], p13 = world[p + 13], p14 = world[p + 14];
+			world[w] = p0 * m0 + p4 * m1 + p8 * m2;
+			world[w + 1] = p1 * m0 + p5 * m1 + p9 * m2;
+			world[w + 2] = p2 * m0 + p6 * m1 + p10 * m2;
+			world[w + 4] = p0 * m4 + p4 * m5 + p8 * m6;
+			world[w + 5] = p1 * m4 + p5 * m5 + p9 * m6;
+			world[w + 6] = p2 * m4 + p6 * m5 + p10 * m6;
+			world[w + 8] = p0 * m8 + p4 * m9 + p8 * m10;
+			world[w + 9] = p1 * m8 + p5 * m9 + p9 * m10;
+			world[w + 10] = p2 * m8 + p6 * m9 + p10 * m10;
+			world[w + 12] = p0 * m12 + p4 * m13 + p8 * m14 + p12;
+			world[w + 13] = p1 * m12 + p5 * m13 + p9 * m14 + p13;
+			world[w + 14] = p2 * m12 + p6 * m13 + p10 * m14 + p14;
+		}
+		world[w + 3] = world[w + 7] = world[w + 11] = 0f;
+		world[w + 15] = 1f;
+	}
+
+	private static int[] grow(int[] array, int capacity) {
+		int[] grown = new int[capacity];
+		if (array != null) {
+			System.arraycopy(array, 0, grown, 0, array.length);
+		}
+		return grown;
+	}
+
+	private void markDirty(int slot) {
+		mFlags[slot] |= FLAG_DIRTY;
+		mDirty = true;
+	}
+
+	/**
+	 * Removes slot from child list of its parent.
+	 */
+	private void unlink(int slot) {
+		int parent = mParent[slot];
+		if (parent < 0) {
+			return;
+		}
+		int prev = mPrevSibling[slot], next = mNextSibling[slot];
+		if (prev >= 0) {
+			mNextSibling[prev] = next;
+		} else {
+			mFirstChild[parent] = next;
+		}
+		if (next >= 0) {
+			mPrevSibling[next] = prev;
+		}
+		mNextSibling[slot] = mPrevSibling[slot] = -1;
+	}
+
+	/**
+	 * Sorts used slots by depth so that parents are always updated before
+	 * their children. Slots of equal depth are kept in index order.
+	 */
+	private void sortOrder() {
+		int maxDepth = 0;
+		for (int slot = 0; slot < mCount; ++slot) {
+			int depth = 0;
+			for (int p = mParent[slot]; p >= 0; p = mParent[p]) {
+				++depth;
+			}
+			mDepth[slot] = depth;
+			maxDepth = Math.max(maxDepth, depth);
+		}
+
+		mOrderCount = 0;
+		for (int depth = 0; depth <= maxDepth; ++depth) {
+			for (int slot = 0; slot < mCount; ++slot) {
+				if ((mFlags[slot] & FLAG_USED) != 0 && mDepth[slot] == depth) {
+					mOrder[mOrderCount++] = slot;
+				}
+			}
+		}
+		mOrderValid = true;
+	}
+
+}
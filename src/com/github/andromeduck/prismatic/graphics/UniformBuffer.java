@@ -0,0 +1,179 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.graphics;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import android.opengl.GLES30;
+
+/**
+ * Helper class for uniform buffer objects. Values are written into a client
+ * side copy at std140 byte offsets chosen by caller, and only the range
+ * changed since last upload is sent to the buffer object.
+ */
+public final class UniformBuffer {
+
+	// Buffer object handle, 0 if not created.
+	private int mBufferHandle = 0;
+	// Client side buffer contents.
+	private final ByteBuffer mData;
+	// Byte range changed since last upload, empty if start >= end.
+	private int mDirtyEnd;
+	private int mDirtyStart;
+	// Float view of client side buffer.
+	private final FloatBuffer mFloats;
+
+	/**
+	 * Creates new uniform buffer.
+	 *
+	 * @param size
+	 *            Buffer size in bytes
+	 */
+	public UniformBuffer(int size) {
+		mData = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+		mFloats = mData.asFloatBuffer();
+		mDirtyStart = 0;
+		mDirtyEnd = size;
+	}
+
+	/**
+	 * Rounds offset up to given alignment.
+	 *
+	 * @param offset
+	 *            Offset in bytes
+	 * @param alignment
+	 *            Alignment in bytes
+	 * @return Aligned offset.
+	 */
+	public static int align(int offset, int alignment) {
+		return (offset + alignment - 1) / alignment * alignment;
+	}
+
+	/**
+	 * Queries alignment required for bindRange offsets. Must be called from
+	 * GL thread.
+	 *
+	 * @return Offset alignment in bytes.
+	 */
+	public static int getOffsetAlignment() {
+		int[] alignment = new int[1];
+		GLES30.glGetIntegerv(GLES30.GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT,
+				alignment, 0);
+		return Math.max(1, alignment[0]);
+	}
+
+	/**
+	 * Binds whole buffer to given uniform block binding point.
+	 *
+	 * @param binding
+	 *            Binding point index
+	 */
+	public void bindBase(int binding) {
+		GLES30.glBindBufferBase(GLES30.GL_UNIFORM_BUFFER, binding, getHandle());
+	}
+
+	/**
+	 * Binds part of buffer to given uniform block binding point.
+	 *
+	 * @param binding
+	 *            Binding point index
+	 * @param offset
+	 *            Offset in bytes, multiple of getOffsetAlignment()
+	 * @param size
+	 *            Size in bytes
+	 */
+	public void bindRange(int binding, int offset, int size) {
+		GLES30.glBindBufferRange(GLES30.GL_UNIFORM_BUFFER, binding,
+				getHandle(), offset, size);
+	}
+
+	/**
+	 * Forgets buffer handle without deleting it, e.g once OpenGL context has
+	 * been lost. Whole buffer is uploaded again on next use.
+	 */
+	public void invalidate() {
+		mBufferHandle = 0;
+		mDirtyStart = 0;
+		mDirtyEnd = mData.capacity();
+	}
+
+	/**
+	 * Writes floats into buffer.
+	 *
+	 * @param offset
+	 *            Destination offset in bytes
+	 * @param values
+	 *            Source array
+	 * @param valuesOffset
+	 *            Source array offset
+	 * @param count
+	 *            Number of floats to write
+	 */
+	public void put(int offset, float[] values, int valuesOffset, int count) {
+		mFloats.position(offset / 4);
+		mFloats.put(values, valuesOffset, count);
+		markDirty(offset, offset + count * 4);
+	}
+
+	/**
+	 * Releases buffer object.
+	 */
+	public void reset() {
+		int[] handle = { mBufferHandle };
+		GLES30.glDeleteBuffers(1, handle, 0);
+		invalidate();
+	}
+
+	/**
+	 * Uploads values changed since last call.
+	 */
+	public void upload() {
+		if (mBufferHandle == 0) {
+			int[] handle = { 0 };
+			GLES30.glGenBuffers(1, handle, 0);
+			mBufferHandle = handle[0];
+			GLES30.glBindBuffer(GLES30.GL_UNIFORM_BUFFER, mBufferHandle);
+			GLES30.glBufferData(GLES30.GL_UNIFORM_BUFFER, mData.capacity(),
+					null, GLES30.GL_DYNAMIC_DRAW);
+		} else if (mDirtyStart < mDirtyEnd) {
+			GLES30.glBindBuffer(GLES30.GL_UNIFORM_BUFFER, mBufferHandle);
+		}
+		if (mDirtyStart < mDirtyEnd) {
+			mData.position(mDirtyStart);
+			GLES30.glBufferSubData(GLES30.GL_UNIFORM_BUFFER, mDirtyStart,
+					mDirtyEnd - mDirtyStart, mData);
+			mData.position(0);
+			mDirtyStart = mData.capacity();
+			mDirtyEnd = 0;
+		}
+	}
+
+	private int getHandle() {
+		if (mBufferHandle == 0) {
+			upload();
+		}
+		return mBufferHandle;
+	}
+
+	private void markDirty(int start, int end) {
+		mDirtyStart = Math.min(mDirtyStart, start);
+		mDirtyEnd = Math.max(mDirtyEnd, end);
+	}
+
+}
@@ -0,0 +1,135 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.graphics;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import android.opengl.GLES30;
+
+/**
+ * Helper class for drawing geometry generated on client side every frame.
+ * Vertices are floats exposed to shaders as a vec4 attribute, and are
+ * streamed into a buffer object once per draw. Buffer is read through a
+ * vertex array object of its own, set up once per attribute location.
+ */
+public final class VertexStream {
+
+	// Floats per vertex.
+	private static final int VERTEX_SIZE = 4;
+
+	// Buffer object handle, 0 if not generated.
+	private int mBufferHandle = 0;
+	// Client side vertex data.
+	private FloatBuffer mData = allocate(256);
+	// Vertex array object handle, 0 if not generated, and attribute location
+	// it was set up for.
+	private int mVaoHandle = 0;
+	private int mVaoLocation = -1;
+
+	private static FloatBuffer allocate(int vertexCount) {
+		return ByteBuffer.allocateDirect(vertexCount * VERTEX_SIZE * 4)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+	}
+
+	/**
+	 * Streams given vertices into buffer object and draws them as triangles
+	 * with shader currently in use.
+	 *
+	 * @param location
+	 *            Location of vec4 position attribute, resolved once shader
+	 *            has been loaded
+	 * @param vertices
+	 *            Array holding {x, y, z, w} per vertex
+	 * @param vertexCount
+	 *            Number of vertices to draw
+	 */
+	public void draw(int location, float[] vertices, int vertexCount) {
+		if (vertexCount == 0) {
+			return;
+		}
+		if (mData.capacity() < vertexCount * VERTEX_SIZE) {
+			mData = allocate(Math.max(vertexCount,
+					mData.capacity() / VERTEX_SIZE * 2));
+		}
+		mData.clear();
+		mData.put(vertices, 0, vertexCount * VERTEX_SIZE).flip();
+
+		if (mBufferHandle == 0) {
+			int[] handle = { 0 };
+			GLES30.glGenBuffers(1, handle, 0);
+			mBufferHandle = handle[0];
+		}
+		if (mVaoHandle == 0 || mVaoLocation != location) {
+			setupVertexArray(location);
+		} else {
+			GLState.bindVertexArray(mVaoHandle);
+		}
+
+		// Orphan previous contents so that draws in flight are not waited
+		// for. Buffer name stays the same, so vertex array is kept.
+		GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, mBufferHandle);
+		GLES30.glBufferData(GLES30.GL_ARRAY_BUFFER, mData.capacity() * 4,
+				null, GLES30.GL_STREAM_DRAW);
+		GLES30.glBufferSubData(GLES30.GL_ARRAY_BUFFER, 0,
+				vertexCount * VERTEX_SIZE * 4, mData);
+
+		GLES30.glDrawArrays(GLES30.GL_TRIANGLES, 0, vertexCount);
+		GLState.countDraw();
+	}
+
+	/**
+	 * Forgets buffer and vertex array handles without deleting them. This
+	 * should be called once the OpenGL context has been lost.
+	 */
+	public void invalidate() {
+		mBufferHandle = 0;
+		mVaoHandle = 0;
+		mVaoLocation = -1;
+	}
+
+	/**
+	 * Releases buffer and vertex array objects.
+	 */
+	public void reset() {
+		int[] handle = { mBufferHandle, mVaoHandle };
+		GLES30.glDeleteBuffers(1, handle, 0);
+		GLState.deleteVertexArrays(1, handle, 1);
+		invalidate();
+	}
+
+	/**
+	 * Creates vertex array object reading buffer into given location,
+	 * replacing one set up for another location, and leaves it bound.
+	 */
+	private void setupVertexArray(int location) {
+		int[] handle = { mVaoHandle };
+		if (mVaoHandle != 0) {
+			GLState.deleteVertexArrays(1, handle, 0);
+		}
+		GLES30.glGenVertexArrays(1, handle, 0);
+		mVaoHandle = handle[0];
+		mVaoLocation = location;
+		GLState.bindVertexArray(mVaoHandle);
+		GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, mBufferHandle);
+		GLES30.glVertexAttribPointer(location, VERTEX_SIZE, GLES30.GL_FLOAT,
+				false, VERTEX_SIZE * 4, 0);
+		GLES30.glEnableVertexAttribArray(location);
+	}
+
+}
@@ -57,10 +57,12 @@ public final class Visibility {
 		result[22] = mvp[11] + mvp[10];
 		result[23] = mvp[15] + mvp[14];
 
+		// Normalize by normal length so that plane distances are in world
+		// units and can be compared against sphere radii.
 		for (int i = 0; i < 24; i += 4) {
 			float lenInv = 1f / FloatMath.sqrt(result[i] * result[i]
 					+ result[i + 1] * result[i + 1] + result[i + 2]
-					* result[i + 2] + result[i + 3] * result[i + 3]);
+					* result[i + 2]);
 			result[i] *= lenInv;
 			result[i + 1] *= lenInv;
 			result[i + 2] *= lenInv;
@@ -69,6 +71,8 @@ public final class Visibility {
 	}
 
 	public static boolean intersects(float[] planes, float[] sphere) {
+		// Sphere straddling one plane may still be outside of another, so
+		// every plane has to be tested.
 		int k = 0;
 		for (int i = 0; i < 6; ++i) {
 			float dist = planes[k++] * sphere[0] + planes[k++] * sphere[1]
@@ -76,9 +80,6 @@ public final class Visibility {
 			if (dist <= -sphere[3]) {
 				return false;
 			}
-			if (Math.abs(dist) < sphere[3]) {
-				return true;
-			}
 		}
 		return true;
 	}
@@ -16,20 +16,15 @@
 
 package com.github.andromeduck.prismatic.graphics.blocks;
 
-import java.nio.ByteBuffer;
+import android.opengl.GLES30;
 
-import android.opengl.Matrix;
-
-import com.github.andromeduck.prismatic.graphics.MathUtils;
+import com.github.andromeduck.prismatic.graphics.Mesh;
+import com.github.andromeduck.prismatic.graphics.TransformPool;
 
 public class BasicBlock implements Drawable {
 
-    private static ByteBuffer mBufferNormals;
-    private static ByteBuffer mBufferNormalsInv;
-    private static ByteBuffer mBufferNormalsShadow;
-    private static ByteBuffer mBufferVertices;
-    private static ByteBuffer mBufferVerticesShadow;
-    private static final float SQRT_2 = (float) Math.sqrt(2);
+    private static final Mesh mMesh;
+    private static final Mesh mMeshInv;
 
     static {
         // Vertex and normal data plus indices arrays.
@@ -46,136 +41,124 @@ public class BasicBlock implements Drawable {
                 {{4, 0, 6, 0, 2, 6}, {4}, {5}, {4, 0, 2, 6}},
                 {{1, 5, 3, 5, 7, 3}, {5}, {4}, {1, 5, 7, 3}}};
 
-        mBufferVertices = ByteBuffer.allocateDirect(3 * 6 * 6);
-        mBufferNormals = ByteBuffer.allocateDirect(3 * 6 * 6);
-        mBufferNormalsInv = ByteBuffer.allocateDirect(3 * 6 * 6);
-        mBufferVerticesShadow = ByteBuffer.allocateDirect(4 * 6 * 24);
-        mBufferNormalsShadow = ByteBuffer.allocateDirect(3 * 6 * 24);
+        // Every face has its own four corners as normals differ per face.
+        // Vertex layout is {x, y, z, w, nx, ny, nz, pad}, 8 bytes.
+        final byte[] vertices = new byte[8 * 4 * 6];
+        final byte[] verticesInv = new byte[8 * 4 * 6];
+        final short[] indices = new short[6 * 6];
 
-        final byte C = 1, P = 0;
         for (int i = 0; i < CUBEFILLED.length; ++i) {
-            for (int j = 0; j < CUBEFILLED[i][0].length; ++j) {
-                mBufferVertices.put(CUBEVERTICES[CUBEFILLED[i][0][j]]);
-                mBufferNormals.put(CUBENORMALS[CUBEFILLED[i][1][0]]);
-                mBufferNormalsInv.put(CUBENORMALS[CUBEFILLED[i][2][0]]);
+            int[] corners = CUBEFILLED[i][3];
+            byte[] normal = CUBENORMALS[CUBEFILLED[i][1][0]];
+            byte[] normalInv = CUBENORMALS[CUBEFILLED[i][2][0]];
+
+            for (int j = 0; j < 4; ++j) {
+                byte[] vertex = CUBEVERTICES[corners[j]];
+                putVertex(vertices, i * 4 + j, vertex, (byte) 0, normal);
+                putVertex(verticesInv, i * 4 + j, vertex, (byte) 0, normalInv);
             }
 
-            mBufferVerticesShadow.put(CUBEVERTICES[CUBEFILLED[i][3][0]]).put(C);
-            mBufferVerticesShadow.put(CUBEVERTICES[CUBEFILLED[i][3][0]]).put(P);
-            mBufferVerticesShadow.put(CUBEVERTICES[CUBEFILLED[i][3][1]]).put(C);
-            mBufferVerticesShadow.put(CUBEVERTICES[CUBEFILLED[i][3][0]]).put(P);
-            mBufferVerticesShadow.put(CUBEVERTICES[CUBEFILLED[i][3][1]]).put(P);
-            mBufferVerticesShadow.put(CUBEVERTICES[CUBEFILLED[i][3][1]]).put(C);
-
-            mBufferVerticesShadow.put(CUBEVERTICES[CUBEFILLED[i][3][1]]).put(C);
-            mBufferVerticesShadow.put(CUBEVERTICES[CUBEFILLED[i][3][1]]).put(P);
-            mBufferVerticesShadow.put(CUBEVERTICES[CUBEFILLED[i][3][2]]).put(C);
-            mBufferVerticesShadow.put(CUBEVERTICES[CUBEFILLED[i][3][1]]).put(P);
-            mBufferVerticesShadow.put(CUBEVERTICES[CUBEFILLED[i][3][2]]).put(P);
-            mBufferVerticesShadow.put(CUBEVERTICES[CUBEFILLED[i][3][2]]).put(C);
-
-            mBufferVerticesShadow.put(CUBEVERTICES[CUBEFILLED[i][3][2]]).put(C);
-            mBufferVerticesShadow.put(CUBEVERTICES[CUBEFILLED[i][3][2]]).put(P);
-            mBufferVerticesShadow.put(CUBEVERTICES[CUBEFILLED[i][3][3]]).put(C);
-            mBufferVerticesShadow.put(CUBEVERTICES[CUBEFILLED[i][3][2]]).put(P);
-            mBufferVerticesShadow.put(CUBEVERTICES[CUBEFILLED[i][3][3]]).put(P);
-            mBufferVerticesShadow.put(CUBEVERTICES[CUBEFILLED[i][3][3]]).put(C);
-
-            mBufferVerticesShadow.put(CUBEVERTICES[CUBEFILLED[i][3][3]]).put(C);
-            mBufferVerticesShadow.put(CUBEVERTICES[CUBEFILLED[i][3][3]]).put(P);
-            mBufferVerticesShadow.put(CUBEVERTICES[CUBEFILLED[i][3][0]]).put(C);
-            mBufferVerticesShadow.put(CUBEVERTICES[CUBEFILLED[i][3][3]]).put(P);
-            mBufferVerticesShadow.put(CUBEVERTICES[CUBEFILLED[i][3][0]]).put(P);
-            mBufferVerticesShadow.put(CUBEVERTICES[CUBEFILLED[i][3][0]]).put(C);
-
-            for (int j = 0; j < 24; ++j) {
-                mBufferNormalsShadow.put(CUBENORMALS[CUBEFILLED[i][1][0]]);
+            for (int j = 0; j < CUBEFILLED[i][0].length; ++j) {
+                indices[i * 6 + j] = (short) (i * 4 + indexOf(corners,
+                        CUBEFILLED[i][0][j]));
             }
         }
-        mBufferVertices.position(0);
-        mBufferNormals.position(0);
-        mBufferNormalsInv.position(0);
 
-        mBufferVertices.position(0);
-        mBufferNormals.position(0);
-        mBufferNormalsInv.position(0);
+        mMesh = new Mesh(vertices, 8, indices);
+        mMesh.addAttribute("aPosition", 3, GLES30.GL_BYTE, 0);
+        mMesh.addAttribute("aNormal", 3, GLES30.GL_BYTE, 4);
 
-        mBufferVerticesShadow.position(0);
-        mBufferNormalsShadow.position(0);
+        mMeshInv = new Mesh(verticesInv, 8, indices);
+        mMeshInv.addAttribute("aPosition", 3, GLES30.GL_BYTE, 0);
+        mMeshInv.addAttribute("aNormal", 3, GLES30.GL_BYTE, 4);
     }
 
-    public static ByteBuffer getNormals() {
-        return mBufferNormals;
+    private static int indexOf(int[] array, int value) {
+        for (int i = 0; i < array.length; ++i) {
+            if (array[i] == value) {
+                return i;
+            }
+        }
+        return -1;
     }
 
-    public static ByteBuffer getNormalsInv() {
-        return mBufferNormalsInv;
+    private static void putVertex(byte[] dst, int index, byte[] position,
+                                  byte w, byte[] normal) {
+        int k = index * 8;
+        dst[k] = position[0];
+        dst[k + 1] = position[1];
+        dst[k + 2] = position[2];
+        dst[k + 3] = w;
+        dst[k + 4] = normal[0];
+        dst[k + 5] = normal[1];
+        dst[k + 6] = normal[2];
     }
 
-    public static ByteBuffer getNormalsShadow() {
-        return mBufferNormalsShadow;
+    public static Mesh getMesh() {
+        return mMesh;
     }
 
-    public static ByteBuffer getVertices() {
-        return mBufferVertices;
+    public static Mesh getMeshInv() {
+        return mMeshInv;
     }
 
-    public static ByteBuffer getVerticesShadow() {
-        return mBufferVerticesShadow;
+    /**
+     * Forgets GPU side geometry once OpenGL context has been lost.
+     */
+    public static void invalidateMeshes() {
+        mMesh.invalidate();
+        mMeshInv.invalidate();
     }
 
+    // World space bounds, copied from transform pool on request.
     private final float[] boundingSphere = new float[4];
-    private final float[] color = new float[3];
-    private final float[] matrixModel = new float[16];
-    private final float[] matrixRotate = new float[16];
-    private final float[] matrixScale = new float[16];
-    private final float[] matrixTranslate = new float[16];
-    private final float[] matrixParentModel = new float[16];
-    private boolean recalculationNeeded = true;
     private final float[] position = new float[3];
     private final float[] scale = new float[3];
-
-    public BasicBlock() {
-        Matrix.setIdentityM(matrixRotate, 0);
-        Matrix.setIdentityM(matrixScale, 0);
-        Matrix.setIdentityM(matrixTranslate, 0);
-        Matrix.setIdentityM(matrixModel, 0);
-        Matrix.setIdentityM(matrixParentModel, 0);
-        boundingSphere[3] = SQRT_2;
+    // Pool of level this block belongs to, and slot of this block in it.
+    private final TransformPool mTransforms;
+    private final int transform;
+
+    /**
+     * Creates block with its transform in given pool.
+     *
+     * @param transforms Transform pool of level block is added into
+     */
+    public BasicBlock(TransformPool transforms) {
+        mTransforms = transforms;
+        transform = transforms.allocate();
 
         // scale cube to size 1
         setScale(new float[]{1,1,1});
     }
 
-    @Override
-    public float[] getBoundingSphere() {
-        return boundingSphere;
+    /**
+     * Getter for pool holding transform of this block.
+     */
+    public TransformPool getTransforms() {
+        return mTransforms;
     }
 
+    /**
+     * Returns world space bounds as of last transform pool update.
+     */
     @Override
-    public float[] getColor() {
-        return color;
+    public float[] getBoundingSphere() {
+        mTransforms.getBounds(transform, boundingSphere);
+        return boundingSphere;
     }
 
     @Override
-    public float[] getModelM() {
-        if (recalculationNeeded) {
-            Matrix.multiplyMM(matrixModel, 0, matrixRotate, 0, matrixScale, 0);
-            Matrix.multiplyMM(matrixModel, 0, matrixTranslate, 0, matrixModel, 0);
-            Matrix.multiplyMM(matrixModel, 0, matrixParentModel, 0, matrixModel, 0);
-            recalculationNeeded = false;
-        }
-        return matrixModel;
+    public int getTransform() {
+        return transform;
     }
 
     @Override
     public void setColor(float[] newColor) {
-        System.arraycopy(newColor, 0, color, 0, 3);
+        mTransforms.setColor(transform, newColor);
     }
 
     public void setRotate(float[] newRotation) {
-        MathUtils.setRotateM(matrixRotate, newRotation[0], newRotation[1], newRotation[2]);
-        recalculationNeeded = true;
+        mTransforms.setRotation(transform, newRotation[0], newRotation[1], newRotation[2]);
     }
 
     @Override
@@ -183,15 +166,9 @@ public class BasicBlock implements Drawable {
         System.arraycopy(scale, 0, this.scale, 0, 3);
 
         // Scale down by 1/2 so cube edge is 1.f
-        Matrix.setIdentityM(matrixScale, 0);
-        Matrix.scaleM(matrixScale, 0, scale[0]*0.5f, scale[1]*0.5f, scale[2]*0.5f);
-
-
-        boundingSphere[3] = 0.5f * (float) Math.sqrt(
-                                Math.pow(scale[0],2.f) +
-                                Math.pow(scale[1],2.f) +
-                                Math.pow(scale[2],2.f));
-        recalculationNeeded = true;
+        mTransforms.setScale(transform, scale[0]*0.5f, scale[1]*0.5f, scale[2]*0.5f);
+        mTransforms.setRadius(transform, 0.5f * (float) Math.sqrt(
+                scale[0] * scale[0] + scale[1] * scale[1] + scale[2] * scale[2]));
     }
 
     @Override
@@ -201,12 +178,15 @@ public class BasicBlock implements Drawable {
 
     @Override
     public void setPosition(float[] newPosition) {
-        System.arraycopy(newPosition, 0, position, 0, 3);
-        System.arraycopy(position, 0, boundingSphere, 0, 3);
+        // Callers may have modified position array in place, so compare
+        // against position stored in transform pool.
+        if (mTransforms.isPosition(transform, newPosition[0], newPosition[1],
+                newPosition[2])) {
+            return;
+        }
 
-        Matrix.setIdentityM(matrixTranslate, 0);
-        Matrix.translateM(matrixTranslate, 0, position[0], position[1], position[2]);
-        recalculationNeeded = true;
+        System.arraycopy(newPosition, 0, position, 0, 3);
+        mTransforms.setPosition(transform, position[0], position[1], position[2]);
     }
 
     @Override
@@ -214,10 +194,26 @@ public class BasicBlock implements Drawable {
         return position;
     }
 
+    @Override
+    public void setParentTransform(int parent) {
+        mTransforms.setParent(transform, parent);
+    }
+
+    @Override
+    public void setBoundsListener(BoundsListener listener) {
+        mTransforms.setListener(transform, this, listener);
+    }
 
     @Override
-    public void setParentModelM(float[] newParentModelMatrix){
-        System.arraycopy(newParentModelMatrix, 0, matrixParentModel, 0, 16);
-        recalculationNeeded = true;
+    public int getRevision() {
+        return mTransforms.getRevision(transform);
+    }
+
+    /**
+     * Returns transform slot of this block into pool. Block must not be
+     * used afterwards.
+     */
+    public void release() {
+        mTransforms.free(transform);
     }
 }
@@ -0,0 +1,7 @@
+package com.github.andromeduck.prismatic.graphics.blocks;
+
+
+public interface BoundsListener {
+    // Called every time bounding sphere of given drawable may have changed.
+    void boundsChanged(Drawable drawable);
+}
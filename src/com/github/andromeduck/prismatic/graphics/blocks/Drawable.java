@@ -2,13 +2,14 @@ package com.github.andromeduck.prismatic.graphics.blocks;
 
 
 public interface Drawable {
+    // World space bounds as of last transform pool update.
     float[] getBoundingSphere();
 
-    float[] getColor();
+    // Slot of model matrix and color in transform pool of its level.
+    int getTransform();
 
-    float[] getModelM();
-
-    void setParentModelM(float[] newParentModelMatrix);
+    // Parent slot in same transform pool, -1 for none.
+    void setParentTransform(int parent);
 
     void setColor(float[] color);
 
@@ -22,4 +23,10 @@ public interface Drawable {
 
     float[] getPosition();
 
+    // Incremented every time model matrix or bounds change.
+    int getRevision();
+
+    // Listener notified whenever bounds change, null for none.
+    void setBoundsListener(BoundsListener listener);
+
 }
@@ -1,75 +1,106 @@
 package com.github.andromeduck.prismatic.graphics.blocks;
 
-import com.github.andromeduck.prismatic.graphics.platforms.Platform;
-
-import java.util.List;
+import com.github.andromeduck.prismatic.graphics.TransformPool;
+import com.github.andromeduck.prismatic.physics.Box;
+import com.github.andromeduck.prismatic.physics.CollisionWorld;
+import com.github.andromeduck.prismatic.physics.Contact;
+import com.github.andromeduck.prismatic.physics.NarrowPhase;
 
 public class PlayerBlock extends BasicBlock {
+    // Distance kept between player and blocks it moves against.
+    private static final float SKIN = 0.001f;
+
     PlayerState state = PlayerState.STABLE;
-    Platform currentPlatform = null;
 
-    public PlayerBlock(){
-        super();
+    // Narrow phase state, reused every update.
+    private final Box box = new Box();
+    private final Contact contact = new Contact();
+    private final NarrowPhase narrowPhase = new NarrowPhase();
+    private final Box other = new Box();
+    private final float[] sweepSphere = new float[4];
+
+    public PlayerBlock(TransformPool transforms){
+        super(transforms);
 
         setScale(new float[]{1,2,1});
     }
 
-    public void update(float deltaTime, float[] inputDir, List<Platform> platforms){
-        // Broad phase collision on levels
+    public void update(float deltaTime, float[] inputDir, CollisionWorld world){
+        float mx = inputDir[0], my = inputDir[1], mz = inputDir[2];
+        float motion = (float) Math.sqrt(mx * mx + my * my + mz * mz);
+
+        // Broad phase collision against blocks near the path of player,
+        // bounds are in world space.
         float[] playerSphere = getBoundingSphere();
-        for (Platform p : platforms){
-            float[] platformSphere = p.getBoundingSphere();
-            if (colissionDetected(playerSphere, platformSphere)) {
-                float[] plocalPlayerSphere = {
-                        playerSphere[0] - platformSphere[0],
-                        playerSphere[1] - platformSphere[1],
-                        playerSphere[2] - platformSphere[2],
-                        playerSphere[3]};
-
-                // TODO: test algorithim and handle events
-                for (Drawable d : p.getBlocks()){
-                    if (colissionDetected(plocalPlayerSphere, d.getBoundingSphere())){
-                        // TODO: box collision
-                        setColor(getPosition());
-                        switch (state) {
-                            case STABLE: {
-
-                            }
-                            case FALLING: {
-
-                            }
-                            case ROLLING: {
-
-                            }
-                        }
-                    }
+        sweepSphere[0] = playerSphere[0] + mx * 0.5f;
+        sweepSphere[1] = playerSphere[1] + my * 0.5f;
+        sweepSphere[2] = playerSphere[2] + mz * 0.5f;
+        sweepSphere[3] = playerSphere[3] + motion * 0.5f;
+        int count = world.query(sweepSphere, CollisionWorld.LAYER_BLOCK);
+        Drawable[] blocks = world.getResult();
+
+        // Push player out of blocks it already overlaps first, so that every
+        // sweep below starts from the corrected box.
+        TransformPool transforms = getTransforms();
+        float[] records = transforms.getWorld();
+        box.set(records, transforms.getWorldOffset(getTransform()));
+        for (int j = 0; j < count; ++j) {
+            other.set(records, transforms.getWorldOffset(blocks[j].getTransform()));
+            if (narrowPhase.intersect(box, other, contact)) {
+                float[] normal = contact.getNormal();
+                float depth = contact.getDepth();
+                box.translate(normal[0] * depth, normal[1] * depth, normal[2] * depth);
+            }
+        }
 
+        // Narrow phase sweeps player box along motion so that fast moves
+        // cannot tunnel through thin blocks.
+        float time = 1f;
+        for (int j = 0; j < count; ++j) {
+            other.set(records, transforms.getWorldOffset(blocks[j].getTransform()));
+            if (!narrowPhase.sweep(box, mx, my, mz, other, contact)) {
+                continue;
+            }
+            // TODO: test algorithim and handle events
+            setColor(getPosition());
+            if (contact.getTime() > 0f) {
+                time = Math.min(time, contact.getTime());
+            } else {
+                // Touching at start, blocking only if moving into the block.
+                float[] normal = contact.getNormal();
+                if (normal[0] * mx + normal[1] * my + normal[2] * mz < 0f) {
+                    time = 0f;
                 }
+            }
+            switch (state) {
+                case STABLE: {
 
-                //TODO: implement collision block vs decoration
-                for (Drawable d : p.getDecorations()){
-                    // TODO: create decoration class with onCollision method
-                    // if collision then d.onCollision(this) else nothing;
                 }
-            }
+                case FALLING: {
+
+                }
+                case ROLLING: {
 
-            // TODO: implement roll mechanic, this is for testing purposes only
-            float[] playerPos = getPosition();
-            playerPos[0] += inputDir[0];
-            playerPos[1] += inputDir[1];
-            playerPos[2] += inputDir[2];
-            setPosition(playerPos);
+                }
+            }
         }
-    }
 
+        //TODO: implement collision block vs decoration
+        // TODO: create decoration class with onCollision method
+        // if collision then d.onCollision(this) else nothing;
 
-    boolean colissionDetected(float[] a, float[] b){
-        float dist = (float) Math.sqrt(
-                Math.pow(a[0] - b[0],2.f) +
-                Math.pow(a[1] - b[1],2.f) +
-                Math.pow(a[2] - b[2],2.f));
+        // Stop just short of first block hit.
+        if (time < 1f) {
+            time = Math.max(0f, time - SKIN / motion);
+        }
 
-        return (dist <= (a[3] + b[3]));
+        // TODO: implement roll mechanic, this is for testing purposes only
+        float[] boxCenter = box.getCenter();
+        float[] playerPos = getPosition();
+        playerPos[0] += boxCenter[0] - playerSphere[0] + mx * time;
+        playerPos[1] += boxCenter[1] - playerSphere[1] + my * time;
+        playerPos[2] += boxCenter[2] - playerSphere[2] + mz * time;
+        setPosition(playerPos);
     }
 
 
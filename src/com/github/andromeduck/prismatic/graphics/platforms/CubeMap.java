@@ -1,11 +1,21 @@
 package com.github.andromeduck.prismatic.graphics.platforms;
 
+import com.github.andromeduck.prismatic.graphics.TransformPool;
 import com.github.andromeduck.prismatic.graphics.blocks.BasicBlock;
 import com.github.andromeduck.prismatic.graphics.blocks.Drawable;
 
 
 public class CubeMap extends Platform {
 
+    public CubeMap(TransformPool transforms) {
+        super(transforms);
+    }
+
+    @Override
+    public boolean isStatic() {
+        return true;
+    }
+
     @Override
     public void init() {
         //fake skybox made out of six cubes
@@ -13,37 +23,37 @@ public class CubeMap extends Platform {
         float skyboxSize = 30f;
         float[] skyboxScale = {skyboxSize,skyboxSize,skyboxSize};
 
-        Drawable cube0 = new BasicBlock();
+        Drawable cube0 = new BasicBlock(transforms);
         cube0.setColor(skyboxColor);
         cube0.setPosition(new float[]{-skyboxSize, 0, 0});
         cube0.setScale(skyboxScale);
         blocks.add(cube0);
 
-        Drawable cube1 = new BasicBlock();
+        Drawable cube1 = new BasicBlock(transforms);
         cube1.setColor(skyboxColor);
         cube1.setPosition(new float[]{skyboxSize, 0, 0});
         cube1.setScale(skyboxScale);
         blocks.add(cube1);
 
-        Drawable cube2 = new BasicBlock();
+        Drawable cube2 = new BasicBlock(transforms);
         cube2.setColor(skyboxColor);
         cube2.setPosition(new float[]{0, -skyboxSize, 0});
         cube2.setScale(skyboxScale);
         blocks.add(cube2);
 
-        Drawable cube3 = new BasicBlock();
+        Drawable cube3 = new BasicBlock(transforms);
         cube3.setColor(skyboxColor);
         cube3.setPosition(new float[]{0, skyboxSize, 0});
         cube3.setScale(skyboxScale);
         blocks.add(cube3);
 
-        Drawable cube4 = new BasicBlock();
+        Drawable cube4 = new BasicBlock(transforms);
         cube4.setColor(skyboxColor);
         cube4.setPosition(new float[]{0, 0, -skyboxSize});
         cube4.setScale(skyboxScale);
         blocks.add(cube4);
 
-        Drawable cube5 = new BasicBlock();
+        Drawable cube5 = new BasicBlock(transforms);
         cube5.setColor(skyboxColor);
         cube5.setPosition(new float[]{0, 0, skyboxSize});
         cube5.setScale(skyboxScale);
@@ -1,8 +1,11 @@
 package com.github.andromeduck.prismatic.graphics.platforms;
 
-import android.opengl.Matrix;
-
+import com.github.andromeduck.prismatic.graphics.SceneRegistry;
+import com.github.andromeduck.prismatic.graphics.StaticGeometry;
+import com.github.andromeduck.prismatic.graphics.TransformPool;
+import com.github.andromeduck.prismatic.graphics.blocks.BasicBlock;
 import com.github.andromeduck.prismatic.graphics.blocks.Drawable;
+import com.github.andromeduck.prismatic.physics.CollisionWorld;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -14,15 +17,23 @@ public abstract class Platform {
     protected final List<Drawable> allDrawables = new ArrayList<Drawable>();
 
     private final float[] boundingSphere = new float[4];
-    private final float[] matrixTranslate = new float[16];
     private final float[] position = new float[3];
+    // Transform pool of level, blocks created by init go into it too.
+    protected final TransformPool transforms;
+    // Parent transform of all drawables of this platform.
+    private final int transform;
 
 
-    public Platform(){
+    public Platform(TransformPool transforms){
+        this.transforms = transforms;
+        transform = transforms.allocate();
         init();
 
         allDrawables.addAll(blocks);
         allDrawables.addAll(decorations);
+        for (int i = 0; i < allDrawables.size(); ++i) {
+            allDrawables.get(i).setParentTransform(transform);
+        }
 
         float[] maxPos = new float[3];
         for (Drawable d : allDrawables){
@@ -36,6 +47,38 @@ public abstract class Platform {
 
     public abstract void init();
 
+    /**
+     * Adds block or decoration after init, e.g one loaded from a level file.
+     */
+    protected void addDrawable(Drawable drawable, boolean decoration) {
+        if (decoration) {
+            decorations.add(drawable);
+        } else {
+            blocks.add(drawable);
+        }
+        allDrawables.add(drawable);
+        drawable.setParentTransform(transform);
+
+        float[] dPosition = drawable.getPosition();
+        boundingSphere[3] = Math.max(boundingSphere[3], Math.max(Math.abs(dPosition[0]),
+                Math.max(Math.abs(dPosition[1]), Math.abs(dPosition[2]))) + 0.5f);
+    }
+
+    /**
+     * Returns transform slots of this platform and its blocks into pool.
+     * Platform must have been removed from its level and not be used
+     * afterwards.
+     */
+    public void release() {
+        for (int i = 0; i < allDrawables.size(); ++i) {
+            Drawable drawable = allDrawables.get(i);
+            if (drawable instanceof BasicBlock) {
+                ((BasicBlock) drawable).release();
+            }
+        }
+        transforms.free(transform);
+    }
+
     public List<Drawable> getDrawables() {
         return allDrawables;
     }
@@ -46,17 +89,76 @@ public abstract class Platform {
 
     public void update() {};
 
+    /**
+     * Returns true if drawables of this platform never move or change color
+     * after init, so that they can be merged into static geometry.
+     */
+    public boolean isStatic() { return false; }
+
     public float[] getPosition() { return position;}
 
     public void setPosition(float[] newPosition) {
         System.arraycopy(newPosition, 0, position, 0, 3);
         System.arraycopy(position, 0, boundingSphere, 0, 3);
 
-        Matrix.setIdentityM(matrixTranslate, 0);
-        Matrix.translateM(matrixTranslate, 0, position[0], position[1], position[2]);
+        // Drawables follow on next transform pool update.
+        transforms.setPosition(transform, position[0], position[1], position[2]);
+    }
 
-        for (Drawable d : allDrawables){
-            d.setParentModelM(matrixTranslate);
+    /**
+     * Adds all drawables of this platform into given scene.
+     */
+    public void register(SceneRegistry registry) {
+        for (int i = 0; i < allDrawables.size(); ++i) {
+            registry.add(allDrawables.get(i));
+        }
+    }
+
+    /**
+     * Removes all drawables of this platform from given scene.
+     */
+    public void unregister(SceneRegistry registry) {
+        for (int i = 0; i < allDrawables.size(); ++i) {
+            registry.remove(allDrawables.get(i));
+        }
+    }
+
+    /**
+     * Adds blocks and decorations of this platform into given collision world.
+     */
+    public void addColliders(CollisionWorld world) {
+        for (int i = 0; i < blocks.size(); ++i) {
+            world.add(blocks.get(i), CollisionWorld.LAYER_BLOCK);
+        }
+        for (int i = 0; i < decorations.size(); ++i) {
+            world.add(decorations.get(i), CollisionWorld.LAYER_DECORATION);
+        }
+    }
+
+    /**
+     * Removes blocks and decorations of this platform from given collision world.
+     */
+    public void removeColliders(CollisionWorld world) {
+        for (int i = 0; i < allDrawables.size(); ++i) {
+            world.remove(allDrawables.get(i));
+        }
+    }
+
+    /**
+     * Adds all drawables of this platform into given static geometry.
+     */
+    public void bake(StaticGeometry geometry) {
+        for (int i = 0; i < allDrawables.size(); ++i) {
+            geometry.add(allDrawables.get(i));
+        }
+    }
+
+    /**
+     * Removes all drawables of this platform from given static geometry.
+     */
+    public void unbake(StaticGeometry geometry) {
+        for (int i = 0; i < allDrawables.size(); ++i) {
+            geometry.remove(allDrawables.get(i));
         }
     }
 
@@ -10,8 +10,8 @@ public class BasicLevel extends Level {
 
         playerBlock.setColor(new float[]{.4f, .4f, .4f});
 
-        platforms.add(new DebugAxis());
-        platforms.add(new CubeMap());
+        addPlatform(new DebugAxis(getTransforms()));
+        addPlatform(new CubeMap(getTransforms()));
         }
 
     @Override
@@ -0,0 +1,30 @@
+package com.github.andromeduck.prismatic.levels;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Level loaded from a level file, streaming platforms in and out around the
+ * player.
+ */
+public class FileLevel extends Level {
+    private final LevelFile file;
+    private final LevelStreamer streamer;
+
+    public FileLevel(File path, float streamingRadius) throws IOException {
+        file = LevelFile.open(path);
+        System.arraycopy(file.getLightPosition(), 0, lightPosition, 0, 3);
+        streamer = new LevelStreamer(this, file, streamingRadius);
+    }
+
+    @Override
+    public int getRenderMode() {
+        return file.getRenderMode();
+    }
+
+    @Override
+    public void update(float deltaTime, float[] inputDir) {
+        streamer.update(playerBlock.getPosition());
+        super.update(deltaTime, inputDir);
+    }
+}
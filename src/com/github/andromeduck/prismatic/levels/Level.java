@@ -1,11 +1,15 @@
 package com.github.andromeduck.prismatic.levels;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
-import com.github.andromeduck.prismatic.graphics.blocks.Drawable;
+import com.github.andromeduck.prismatic.graphics.SceneRegistry;
+import com.github.andromeduck.prismatic.graphics.StaticGeometry;
+import com.github.andromeduck.prismatic.graphics.TransformPool;
 import com.github.andromeduck.prismatic.graphics.blocks.PlayerBlock;
 import com.github.andromeduck.prismatic.graphics.platforms.Platform;
+import com.github.andromeduck.prismatic.physics.CollisionWorld;
 
 
 public abstract class Level {
@@ -18,29 +22,105 @@ public abstract class Level {
 
     public float[] lightPosition = new float[3];
     public float[] foregroundColor = new float[4];
-    public final List<Platform> platforms = new ArrayList<Platform>();
+    // Platforms of this level, changed through addPlatform and removePlatform
+    // only so that registry, collision world and static geometry follow.
+    private final List<Platform> platforms = new ArrayList<Platform>();
+    private final List<Platform> platformsView = Collections.unmodifiableList(platforms);
 
-    public final PlayerBlock playerBlock = new PlayerBlock();
+    // Transforms of player, platforms and their blocks. Owned by this level,
+    // so that levels never share slots.
+    private final TransformPool transforms = new TransformPool(256);
 
+    public final PlayerBlock playerBlock = new PlayerBlock(transforms);
 
-    public List<Drawable> getDrawables() {
-        List<Drawable> drawables = new ArrayList<Drawable>();
-        drawables.add(playerBlock);
-        for (Platform p : platforms) { drawables.addAll(p.getDrawables()); }
-        return drawables;
+    // Drawables of player and all platforms, kept up to date as platforms
+    // are added and removed.
+    private final SceneRegistry registry = new SceneRegistry();
+
+    // Blocks and decorations of all platforms, player excluded.
+    private final CollisionWorld collisionWorld = new CollisionWorld(2f);
+
+    // Merged meshes of static platforms.
+    private final StaticGeometry staticGeometry = new StaticGeometry(transforms, collisionWorld);
+
+    public Level() {
+        registry.setBoundsListener(collisionWorld);
+        transforms.update();
+        registry.add(playerBlock);
+    }
+
+    public void addPlatform(Platform platform) {
+        // Bounds of new blocks are read on registration.
+        transforms.update();
+        platforms.add(platform);
+        platform.register(registry);
+        platform.addColliders(collisionWorld);
+        if (platform.isStatic()) {
+            platform.bake(staticGeometry);
+        }
+    }
+
+    public void removePlatform(Platform platform) {
+        if (platforms.remove(platform)) {
+            platform.unregister(registry);
+            platform.unbake(staticGeometry);
+            platform.removeColliders(collisionWorld);
+        }
+    }
+
+    /**
+     * Removes all platforms and returns transform slots of platforms and
+     * player into pool. Level must not be used afterwards.
+     */
+    public void release() {
+        for (int i = platforms.size() - 1; i >= 0; --i) {
+            Platform platform = platforms.get(i);
+            removePlatform(platform);
+            platform.release();
+        }
+        registry.remove(playerBlock);
+        playerBlock.release();
+    }
+
+    /**
+     * Returns read-only view of platforms of this level.
+     */
+    public List<Platform> getPlatforms() {
+        return platformsView;
+    }
+
+    public CollisionWorld getCollisionWorld() {
+        return collisionWorld;
+    }
+
+    public SceneRegistry getRegistry() {
+        return registry;
+    }
+
+    public StaticGeometry getStaticGeometry() {
+        return staticGeometry;
+    }
+
+    /**
+     * Getter for pool holding transforms of all drawables of this level.
+     */
+    public TransformPool getTransforms() {
+        return transforms;
     }
 
     public abstract int getRenderMode();
 
     public void update(float deltaTime, float[] inputDir){
         // Update platforms
-        for (Platform p : platforms){
-            p.update();
+        for (int i = 0; i < platforms.size(); ++i) {
+            platforms.get(i).update();
         }
-
+        // Drawable bounds are read-only, pool is brought up to date once
+        // per step before the player queries them.
+        transforms.update();
 
         // Handles collisions/rolling
-        playerBlock.update(deltaTime, inputDir, platforms);
+        playerBlock.update(deltaTime, inputDir, collisionWorld);
 
         //Update Camera
         // TODO: remove camera bounce once roll is implemented
@@ -0,0 +1,200 @@
+package com.github.andromeduck.prismatic.levels;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.github.andromeduck.prismatic.graphics.blocks.Drawable;
+
+/**
+ * Read only view of a binary level file. The file is memory mapped and only
+ * the header, platform table and chunk table are read on open, block
+ * records are decoded as chunks are loaded.
+ *
+ * Layout, all values little endian:
+ * header {int magic, int version, int renderMode, float[3] lightPosition,
+ * float chunkSize, int platformCount, int chunkCount, int recordCount},
+ * platform table {float[3] position, int flags} per platform,
+ * chunk table {int platform, int firstRecord, int recordCount,
+ * float[4] boundingSphere} per chunk,
+ * block records {float[3] position, float[3] scale, float[3] rotation,
+ * int rgba8 color, short platform, short flags} sorted by chunk.
+ */
+public final class LevelFile {
+    public static final int MAGIC = 0x4D535250; // "PRSM"
+    public static final int VERSION = 1;
+
+    // Platform flags.
+    public static final int PLATFORM_STATIC = 1;
+    // Block record flags.
+    public static final int BLOCK_DECORATION = 1;
+
+    static final int HEADER_SIZE = 40;
+    static final int PLATFORM_SIZE = 16;
+    static final int CHUNK_SIZE = 28;
+    static final int RECORD_SIZE = 44;
+
+    private final MappedByteBuffer buffer;
+    private final int renderMode;
+    private final float[] lightPosition = new float[3];
+    private final float chunkSize;
+
+    private final float[] platformPositions;
+    private final int[] platformFlags;
+
+    private final int[] chunkPlatforms;
+    private final int[] chunkFirstRecords;
+    private final int[] chunkRecordCounts;
+    private final float[] chunkBounds;
+    private final int recordsOffset;
+
+    // Scratch space for decoding records.
+    private final float[] position = new float[3];
+    private final float[] scale = new float[3];
+    private final float[] rotation = new float[3];
+    private final float[] color = new float[3];
+
+    private LevelFile(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a level file");
+        }
+        int version = buffer.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("Unsupported level file version " + version);
+        }
+        renderMode = buffer.getInt(8);
+        for (int i = 0; i < 3; ++i) {
+            lightPosition[i] = buffer.getFloat(12 + i * 4);
+        }
+        chunkSize = buffer.getFloat(24);
+        int platformCount = buffer.getInt(28);
+        int chunkCount = buffer.getInt(32);
+        int recordCount = buffer.getInt(36);
+
+        if (platformCount < 0 || chunkCount < 0 || recordCount < 0) {
+            throw new IOException("Corrupt header in level file");
+        }
+        // Sizes are computed in long, so that huge counts cannot overflow
+        // past the check.
+        long chunksEnd = HEADER_SIZE + (long) platformCount * PLATFORM_SIZE;
+        long recordsEnd = chunksEnd + (long) chunkCount * CHUNK_SIZE;
+        if (recordsEnd + (long) recordCount * RECORD_SIZE > buffer.capacity()) {
+            throw new IOException("Truncated level file");
+        }
+        int chunksOffset = (int) chunksEnd;
+        recordsOffset = (int) recordsEnd;
+
+        platformPositions = new float[platformCount * 3];
+        platformFlags = new int[platformCount];
+        for (int i = 0; i < platformCount; ++i) {
+            int offset = HEADER_SIZE + i * PLATFORM_SIZE;
+            for (int j = 0; j < 3; ++j) {
+                platformPositions[i * 3 + j] = buffer.getFloat(offset + j * 4);
+            }
+            platformFlags[i] = buffer.getInt(offset + 12);
+        }
+
+        chunkPlatforms = new int[chunkCount];
+        chunkFirstRecords = new int[chunkCount];
+        chunkRecordCounts = new int[chunkCount];
+        chunkBounds = new float[chunkCount * 4];
+        for (int i = 0; i < chunkCount; ++i) {
+            int offset = chunksOffset + i * CHUNK_SIZE;
+            chunkPlatforms[i] = buffer.getInt(offset);
+            chunkFirstRecords[i] = buffer.getInt(offset + 4);
+            chunkRecordCounts[i] = buffer.getInt(offset + 8);
+            for (int j = 0; j < 4; ++j) {
+                chunkBounds[i * 4 + j] = buffer.getFloat(offset + 12 + j * 4);
+            }
+            if (chunkPlatforms[i] < 0 || chunkPlatforms[i] >= platformCount
+                    || chunkFirstRecords[i] < 0 || chunkRecordCounts[i] < 0
+                    || (long) chunkFirstRecords[i] + chunkRecordCounts[i] > recordCount) {
+                throw new IOException("Corrupt chunk table in level file");
+            }
+        }
+    }
+
+    /**
+     * Maps given level file into memory. File is closed right away, the
+     * mapping stays valid until this object is garbage collected.
+     */
+    public static LevelFile open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return new LevelFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    public int getRenderMode() {
+        return renderMode;
+    }
+
+    public float[] getLightPosition() {
+        return lightPosition;
+    }
+
+    public float getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getChunkCount() {
+        return chunkPlatforms.length;
+    }
+
+    /**
+     * Copies world space bounding sphere of all blocks of chunk into given
+     * array.
+     */
+    public void getChunkBounds(int chunk, float[] sphere) {
+        System.arraycopy(chunkBounds, chunk * 4, sphere, 0, 4);
+    }
+
+    public int getChunkPlatform(int chunk) {
+        return chunkPlatforms[chunk];
+    }
+
+    public int getChunkRecordCount(int chunk) {
+        return chunkRecordCounts[chunk];
+    }
+
+    public void getPlatformPosition(int platform, float[] position) {
+        System.arraycopy(platformPositions, platform * 3, position, 0, 3);
+    }
+
+    public boolean isPlatformStatic(int platform) {
+        return (platformFlags[platform] & PLATFORM_STATIC) != 0;
+    }
+
+    /**
+     * Decodes block record of chunk into given drawable, position being
+     * relative to platform.
+     *
+     * @return true if block is a decoration.
+     */
+    public boolean loadBlock(int chunk, int index, Drawable drawable) {
+        int offset = recordsOffset + (chunkFirstRecords[chunk] + index) * RECORD_SIZE;
+        for (int i = 0; i < 3; ++i) {
+            position[i] = buffer.getFloat(offset + i * 4);
+            scale[i] = buffer.getFloat(offset + 12 + i * 4);
+            rotation[i] = buffer.getFloat(offset + 24 + i * 4);
+        }
+        int rgba = buffer.getInt(offset + 36);
+        color[0] = (rgba & 0xFF) / 255f;
+        color[1] = ((rgba >>> 8) & 0xFF) / 255f;
+        color[2] = ((rgba >>> 16) & 0xFF) / 255f;
+
+        drawable.setPosition(position);
+        drawable.setScale(scale);
+        drawable.setRotate(rotation);
+        drawable.setColor(color);
+        return (buffer.getShort(offset + 42) & BLOCK_DECORATION) != 0;
+    }
+}
@@ -0,0 +1,143 @@
+package com.github.andromeduck.prismatic.levels;
+
+/**
+ * Loads chunks of a level file as platforms once they come within given
+ * radius of a point, and unloads them once they are further away again, so
+ * that only blocks near the player are resident.
+ */
+public final class LevelStreamer {
+    // Extra distance chunks have to move away before being unloaded, so
+    // that chunks at the edge do not load and unload every step.
+    private static final float HYSTERESIS = 2f;
+    // Chunks loaded per update. Ones containing the point are loaded even
+    // past it.
+    private static final int MAX_LOADS_PER_UPDATE = 2;
+
+    private final LevelFile file;
+    private final Level level;
+    private final float radius;
+    // Loaded platform per chunk, null if not loaded.
+    private final StreamedPlatform[] loaded;
+    private int loadedCount = 0;
+
+    // Nearest chunks to load during current update, sorted by distance.
+    private final int[] candidates = new int[MAX_LOADS_PER_UPDATE];
+    private final float[] candidateDistances = new float[MAX_LOADS_PER_UPDATE];
+
+    private final float[] bounds = new float[4];
+    private final float[] scratch = new float[3];
+
+    /**
+     * @param level  Level chunks are added into as platforms
+     * @param file   Level file to stream from
+     * @param radius Distance from point within which chunks are loaded
+     */
+    public LevelStreamer(Level level, LevelFile file, float radius) {
+        this.level = level;
+        this.file = file;
+        this.radius = radius;
+        loaded = new StreamedPlatform[file.getChunkCount()];
+    }
+
+    public int getLoadedCount() {
+        return loadedCount;
+    }
+
+    /**
+     * Returns true if given chunk is loaded as a platform.
+     */
+    boolean isLoaded(int chunk) {
+        return loaded[chunk] != null;
+    }
+
+    /**
+     * Unloads chunks out of range and loads ones in range around given
+     * point, nearest first. Distances are computed once per chunk.
+     */
+    public void update(float[] point) {
+        // Chunks the point is inside of are always loaded right away, and
+        // count towards the budget of other loads.
+        int loads = 0;
+        int candidateCount = 0;
+        for (int chunk = 0; chunk < loaded.length; ++chunk) {
+            float distance = distance(chunk, point);
+            if (loaded[chunk] != null) {
+                if (distance > radius + HYSTERESIS) {
+                    unload(chunk);
+                }
+            } else if (distance <= 0f) {
+                load(chunk);
+                ++loads;
+            } else if (distance <= radius) {
+                candidateCount = addCandidate(chunk, distance, candidateCount);
+            }
+        }
+
+        for (int i = 0; i < candidateCount && loads < MAX_LOADS_PER_UPDATE; ++i) {
+            load(candidates[i]);
+            ++loads;
+        }
+    }
+
+    /**
+     * Unloads all chunks.
+     */
+    public void unloadAll() {
+        for (int chunk = 0; chunk < loaded.length; ++chunk) {
+            if (loaded[chunk] != null) {
+                unload(chunk);
+            }
+        }
+    }
+
+    /**
+     * Inserts chunk into candidates sorted by distance, keeping only
+     * MAX_LOADS_PER_UPDATE nearest ones.
+     *
+     * @return New number of candidates.
+     */
+    private int addCandidate(int chunk, float distance, int count) {
+        if (count == MAX_LOADS_PER_UPDATE) {
+            if (distance >= candidateDistances[count - 1]) {
+                return count;
+            }
+            // Farthest candidate is dropped.
+            --count;
+        }
+        int i = count;
+        while (i > 0 && candidateDistances[i - 1] > distance) {
+            candidates[i] = candidates[i - 1];
+            candidateDistances[i] = candidateDistances[i - 1];
+            --i;
+        }
+        candidates[i] = chunk;
+        candidateDistances[i] = distance;
+        return count + 1;
+    }
+
+    /**
+     * Returns distance from given point to bounding sphere of chunk, negative
+     * if inside.
+     */
+    private float distance(int chunk, float[] point) {
+        file.getChunkBounds(chunk, bounds);
+        float dx = bounds[0] - point[0], dy = bounds[1] - point[1], dz = bounds[2] - point[2];
+        return (float) Math.sqrt(dx * dx + dy * dy + dz * dz) - bounds[3];
+    }
+
+    private void load(int chunk) {
+        StreamedPlatform platform = new StreamedPlatform(
+                level.getTransforms(), file, chunk, scratch);
+        loaded[chunk] = platform;
+        ++loadedCount;
+        level.addPlatform(platform);
+    }
+
+    private void unload(int chunk) {
+        StreamedPlatform platform = loaded[chunk];
+        loaded[chunk] = null;
+        --loadedCount;
+        level.removePlatform(platform);
+        platform.release();
+    }
+}
@@ -0,0 +1,191 @@
+package com.github.andromeduck.prismatic.levels;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Collects platforms and blocks and writes them into a level file readable
+ * by LevelFile. Blocks are grouped into chunks per platform and grid cell,
+ * so that chunks can be streamed in independently.
+ */
+public final class LevelWriter {
+    // Cell coordinates are packed into 14 bits each, so they have to lie
+    // within [-MAX_CELL, MAX_CELL).
+    private static final int MAX_CELL = 1 << 13;
+
+    private int renderMode = Level.MODE_SHADOWMAP;
+    private final float[] lightPosition = new float[3];
+
+    private int platformCount = 0;
+    private float[] platforms = new float[16 * 3];
+    private int[] platformFlags = new int[16];
+
+    private int recordCount = 0;
+    // Record fields {position, scale, rotation} per block.
+    private float[] records = new float[256 * 9];
+    private int[] colors = new int[256];
+    private int[] recordPlatforms = new int[256];
+    private int[] recordFlags = new int[256];
+
+    public void setRenderMode(int renderMode) {
+        this.renderMode = renderMode;
+    }
+
+    public void setLightPosition(float[] position) {
+        System.arraycopy(position, 0, lightPosition, 0, 3);
+    }
+
+    /**
+     * Adds platform and returns its id.
+     */
+    public int addPlatform(float[] position, int flags) {
+        if (platformCount == platformFlags.length) {
+            platforms = Arrays.copyOf(platforms, platforms.length * 2);
+            platformFlags = Arrays.copyOf(platformFlags, platformFlags.length * 2);
+        }
+        System.arraycopy(position, 0, platforms, platformCount * 3, 3);
+        platformFlags[platformCount] = flags;
+        return platformCount++;
+    }
+
+    /**
+     * Adds block to given platform, position being relative to platform
+     * and rotation in degrees as taken by Drawable.setRotate.
+     */
+    public void addBlock(int platform, float[] position, float[] scale,
+                         float[] rotation, float[] color, int flags) {
+        if (platform < 0 || platform >= platformCount) {
+            throw new IllegalArgumentException("Unknown platform " + platform);
+        }
+        if (recordCount == colors.length) {
+            records = Arrays.copyOf(records, records.length * 2);
+            colors = Arrays.copyOf(colors, colors.length * 2);
+            recordPlatforms = Arrays.copyOf(recordPlatforms, recordPlatforms.length * 2);
+            recordFlags = Arrays.copyOf(recordFlags, recordFlags.length * 2);
+        }
+        int r = recordCount * 9;
+        System.arraycopy(position, 0, records, r, 3);
+        System.arraycopy(scale, 0, records, r + 3, 3);
+        System.arraycopy(rotation, 0, records, r + 6, 3);
+        colors[recordCount] = toByte(color[0]) | toByte(color[1]) << 8
+                | toByte(color[2]) << 16 | 0xFF << 24;
+        recordPlatforms[recordCount] = platform;
+        recordFlags[recordCount] = flags;
+        ++recordCount;
+    }
+
+    /**
+     * Writes level into given file.
+     *
+     * @param chunkSize Edge length of grid cell blocks are grouped by.
+     */
+    public void write(File file, final float chunkSize) throws IOException {
+        // Sort records by platform and cell of world position.
+        final long[] keys = new long[recordCount];
+        Integer[] order = new Integer[recordCount];
+        for (int i = 0; i < recordCount; ++i) {
+            int p = recordPlatforms[i] * 3, r = i * 9;
+            long cx = cell(platforms[p] + records[r], chunkSize);
+            long cy = cell(platforms[p + 1] + records[r + 1], chunkSize);
+            long cz = cell(platforms[p + 2] + records[r + 2], chunkSize);
+            keys[i] = (long) recordPlatforms[i] << 42 | cx << 28 | cy << 14 | cz;
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return keys[a] < keys[b] ? -1 : keys[a] > keys[b] ? 1 : 0;
+            }
+        });
+
+        int chunkCount = 0;
+        for (int i = 0; i < recordCount; ++i) {
+            if (i == 0 || keys[order[i]] != keys[order[i - 1]]) {
+                ++chunkCount;
+            }
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(LevelFile.HEADER_SIZE
+                + platformCount * LevelFile.PLATFORM_SIZE
+                + chunkCount * LevelFile.CHUNK_SIZE
+                + recordCount * LevelFile.RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(LevelFile.MAGIC).putInt(LevelFile.VERSION).putInt(renderMode);
+        out.putFloat(lightPosition[0]).putFloat(lightPosition[1]).putFloat(lightPosition[2]);
+        out.putFloat(chunkSize).putInt(platformCount).putInt(chunkCount).putInt(recordCount);
+
+        for (int i = 0; i < platformCount; ++i) {
+            out.putFloat(platforms[i * 3]).putFloat(platforms[i * 3 + 1])
+                    .putFloat(platforms[i * 3 + 2]).putInt(platformFlags[i]);
+        }
+
+        // Chunk bounds enclose bounding spheres of all blocks, as given by
+        // BasicBlock for unit cube scaled by block scale.
+        int chunksOffset = out.position();
+        out.position(chunksOffset + chunkCount * LevelFile.CHUNK_SIZE);
+        int chunk = 0;
+        for (int first = 0; first < recordCount; ) {
+            int end = first + 1;
+            while (end < recordCount && keys[order[end]] == keys[order[first]]) {
+                ++end;
+            }
+            int platform = recordPlatforms[order[first]];
+            float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+            float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+            for (int i = first; i < end; ++i) {
+                int record = order[i], r = record * 9;
+                float radius = 0.5f * (float) Math.sqrt(records[r + 3] * records[r + 3]
+                        + records[r + 4] * records[r + 4] + records[r + 5] * records[r + 5]);
+                for (int j = 0; j < 3; ++j) {
+                    float center = platforms[platform * 3 + j] + records[r + j];
+                    min[j] = Math.min(min[j], center - radius);
+                    max[j] = Math.max(max[j], center + radius);
+                }
+                for (int j = 0; j < 9; ++j) {
+                    out.putFloat(records[r + j]);
+                }
+                out.putInt(colors[record]).putShort((short) platform)
+                        .putShort((short) recordFlags[record]);
+            }
+
+            int c = chunksOffset + chunk * LevelFile.CHUNK_SIZE;
+            out.putInt(c, platform).putInt(c + 4, first).putInt(c + 8, end - first);
+            float dx = max[0] - min[0], dy = max[1] - min[1], dz = max[2] - min[2];
+            out.putFloat(c + 12, (min[0] + max[0]) * 0.5f);
+            out.putFloat(c + 16, (min[1] + max[1]) * 0.5f);
+            out.putFloat(c + 20, (min[2] + max[2]) * 0.5f);
+            out.putFloat(c + 24, 0.5f * (float) Math.sqrt(dx * dx + dy * dy + dz * dz));
+            ++chunk;
+            first = end;
+        }
+
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            stream.write(out.array());
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Returns packed cell coordinate of given world coordinate.
+     *
+     * @throws IllegalArgumentException if cell is out of packable range.
+     */
+    private static long cell(float coordinate, float chunkSize) {
+        double cell = Math.floor(coordinate / chunkSize);
+        if (!(cell >= -MAX_CELL && cell < MAX_CELL)) {
+            throw new IllegalArgumentException("Block at " + coordinate
+                    + " is out of level bounds");
+        }
+        return (long) cell & (2 * MAX_CELL - 1);
+    }
+
+    private static int toByte(float value) {
+        return Math.round(Math.max(0f, Math.min(value, 1f)) * 255f);
+    }
+}
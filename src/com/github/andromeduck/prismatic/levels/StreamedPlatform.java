@@ -0,0 +1,37 @@
+package com.github.andromeduck.prismatic.levels;
+
+import com.github.andromeduck.prismatic.graphics.TransformPool;
+import com.github.andromeduck.prismatic.graphics.blocks.BasicBlock;
+import com.github.andromeduck.prismatic.graphics.platforms.Platform;
+
+/**
+ * Platform holding blocks of one chunk of a level file.
+ */
+final class StreamedPlatform extends Platform {
+    private final boolean isStatic;
+
+    StreamedPlatform(TransformPool transforms, LevelFile file, int chunk,
+                     float[] scratch) {
+        super(transforms);
+        int platform = file.getChunkPlatform(chunk);
+        isStatic = file.isPlatformStatic(platform);
+
+        for (int i = 0; i < file.getChunkRecordCount(chunk); ++i) {
+            BasicBlock block = new BasicBlock(transforms);
+            boolean decoration = file.loadBlock(chunk, i, block);
+            addDrawable(block, decoration);
+        }
+        file.getPlatformPosition(platform, scratch);
+        setPosition(scratch);
+    }
+
+    @Override
+    public void init() {
+        // Blocks are loaded by constructor.
+    }
+
+    @Override
+    public boolean isStatic() {
+        return isStatic;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.physics;
+
+/**
+ * Oriented box given by center, three orthonormal axes and half lengths
+ * along them. Axis aligned boxes are oriented boxes with identity axes.
+ * Boxes are meant to be reused, set recalculates all values in place.
+ */
+public final class Box {
+
+	// Unit axes, three floats per axis.
+	final float[] mAxes = new float[9];
+	// Center of box.
+	final float[] mCenter = new float[3];
+	// Half lengths along axes.
+	final float[] mExtents = new float[3];
+
+	/**
+	 * Creates new unit cube centered at origin.
+	 */
+	public Box() {
+		setAxisAligned(0f, 0f, 0f, 1f, 1f, 1f);
+	}
+
+	/**
+	 * Getter for unit axes, {x0, y0, z0, x1, y1, z1, x2, y2, z2}.
+	 */
+	public float[] getAxes() {
+		return mAxes;
+	}
+
+	/**
+	 * Getter for center.
+	 */
+	public float[] getCenter() {
+		return mCenter;
+	}
+
+	/**
+	 * Getter for half lengths along axes.
+	 */
+	public float[] getExtents() {
+		return mExtents;
+	}
+
+	/**
+	 * Sets box to cube from -1 to 1 transformed by given model matrix, e.g a
+	 * world record of TransformPool. Matrix is expected to hold rotation,
+	 * scale and translation only.
+	 *
+	 * @param m
+	 *            Array holding column major matrix
+	 * @param offset
+	 *            Offset of matrix within array
+	 */
+	public void set(float[] m, int offset) {
+		for (int i = 0; i < 3; ++i) {
+			int c = offset + i * 4;
+			float x = m[c], y = m[c + 1], z = m[c + 2];
+			float length = (float) Math.sqrt(x * x + y * y + z * z);
+			float inv = length > 0f ? 1f / length : 0f;
+			mAxes[i * 3] = x * inv;
+			mAxes[i * 3 + 1] = y * inv;
+			mAxes[i * 3 + 2] = z * inv;
+			mExtents[i] = length;
+		}
+		mCenter[0] = m[offset + 12];
+		mCenter[1] = m[offset + 13];
+		mCenter[2] = m[offset + 14];
+	}
+
+	/**
+	 * Sets box to axis aligned one.
+	 */
+	public void setAxisAligned(float cx, float cy, float cz, float ex,
+			float ey, float ez) {
+		for (int i = 0; i < 9; ++i) {
+			mAxes[i] = i % 4 == 0 ? 1f : 0f;
+		}
+		mCenter[0] = cx;
+		mCenter[1] = cy;
+		mCenter[2] = cz;
+		mExtents[0] = ex;
+		mExtents[1] = ey;
+		mExtents[2] = ez;
+	}
+
+	/**
+	 * Moves box by given offset.
+	 */
+	public void translate(float dx, float dy, float dz) {
+		mCenter[0] += dx;
+		mCenter[1] += dy;
+		mCenter[2] += dz;
+	}
+
+}
@@ -0,0 +1,441 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.physics;
+
+import java.util.IdentityHashMap;
+
+import com.github.andromeduck.prismatic.graphics.blocks.BoundsListener;
+import com.github.andromeduck.prismatic.graphics.blocks.Drawable;
+
+/**
+ * Broad phase collision detection over a spatial hash. Bounding spheres of
+ * colliders are binned into a uniform grid of cubic cells, and only cells
+ * hashed into are stored, so that queries touch a constant number of cells
+ * regardless of level size. Colliders too large for the grid are kept in a
+ * separate list tested on every query. Colliders are rebinned lazily once
+ * their bounds have changed. Queries allocate nothing once result arrays
+ * have grown large enough.
+ */
+public final class CollisionWorld implements BoundsListener {
+
+	// Collider layers, used as bit masks in queries.
+	public static final int LAYER_BLOCK = 1;
+	public static final int LAYER_DECORATION = 2;
+
+	// Colliders spanning more cells per axis are not binned.
+	private static final int MAX_CELLS_PER_AXIS = 4;
+	// Marks unused hash table slot.
+	private static final long EMPTY_KEY = Long.MIN_VALUE;
+
+	// Cell range of every collider, {minX, minY, minZ, maxX, maxY, maxZ}.
+	private int[] mCells;
+	// Inverse of grid cell edge length.
+	private final float mInvCellSize;
+	// Number of collider slots ever used, free ones included.
+	private int mColliderCount = 0;
+	// Colliders waiting to be rebinned.
+	private boolean[] mDirty;
+	private int[] mDirtyList = new int[16];
+	private int mDirtyCount = 0;
+	// Drawable of every collider, null for free slots.
+	private Drawable[] mDrawables;
+	// Cell entry lists, next entry being -1 for last one.
+	private int[] mEntryCollider = new int[256];
+	private int[] mEntryNext = new int[256];
+	private int mEntryCount = 0;
+	// Head of free entry list.
+	private int mEntryFree = -1;
+	// Free collider slots.
+	private int[] mFree;
+	private int mFreeCount = 0;
+	// Collider slot of every drawable.
+	private final IdentityHashMap<Drawable, Integer> mIndices = new IdentityHashMap<Drawable, Integer>();
+	// Layer bit of every collider.
+	private int[] mLayer;
+	// Colliders not binned into the grid.
+	private int[] mOversized = new int[16];
+	private int mOversizedCount = 0;
+	// Query results.
+	private Drawable[] mResult = new Drawable[16];
+	private int mResultCount = 0;
+	// Query stamp of every collider, used for reporting colliders spanning
+	// several cells only once.
+	private int mStamp = 0;
+	private int[] mStamps;
+	// Hash table of cells, keys being packed cell coordinates and values
+	// heads of entry lists.
+	private int mTableCount = 0;
+	private int[] mTableHeads;
+	private long[] mTableKeys;
+
+	/**
+	 * Creates new collision world.
+	 *
+	 * @param cellSize
+	 *            Edge length of grid cell, preferably about the diameter of
+	 *            typical collider
+	 */
+	public CollisionWorld(float cellSize) {
+		mInvCellSize = 1f / cellSize;
+		allocateColliders(64);
+		allocateTable(256);
+	}
+
+	/**
+	 * Adds collider. Drawables already added are ignored.
+	 *
+	 * @param drawable
+	 *            Drawable whose bounding sphere is used
+	 * @param layer
+	 *            LAYER_BLOCK or LAYER_DECORATION
+	 */
+	public void add(Drawable drawable, int layer) {
+		if (mIndices.containsKey(drawable)) {
+			return;
+		}
+		int collider;
+		if (mFreeCount > 0) {
+			collider = mFree[--mFreeCount];
+		} else {
+			if (mColliderCount == mDrawables.length) {
+				allocateColliders(mColliderCount * 2);
+			}
+			collider = mColliderCount++;
+		}
+		mDrawables[collider] = drawable;
+		mLayer[collider] = layer;
+		mStamps[collider] = mStamp;
+		mIndices.put(drawable, collider);
+		bin(collider);
+	}
+
+	@Override
+	public void boundsChanged(Drawable drawable) {
+		Integer collider = mIndices.get(drawable);
+		if (collider == null || mDirty[collider]) {
+			return;
+		}
+		if (mDirtyCount == mDirtyList.length) {
+			int[] dirtyList = new int[mDirtyCount * 2];
+			System.arraycopy(mDirtyList, 0, dirtyList, 0, mDirtyCount);
+			mDirtyList = dirtyList;
+		}
+		mDirtyList[mDirtyCount++] = collider;
+		mDirty[collider] = true;
+	}
+
+	/**
+	 * Getter for colliders found by last query, valid up to
+	 * getResultCount() entries.
+	 */
+	public Drawable[] getResult() {
+		return mResult;
+	}
+
+	/**
+	 * Getter for number of colliders found by last query.
+	 */
+	public int getResultCount() {
+		return mResultCount;
+	}
+
+	/**
+	 * Finds colliders whose bounding spheres intersect given sphere. Cost
+	 * grows with number of cells query sphere overlaps, so it should be
+	 * about the size of a cell.
+	 *
+	 * @param sphere
+	 *            Array holding {x, y, z, radius}
+	 * @param layers
+	 *            Mask of layers to report
+	 * @return Number of colliders found.
+	 */
+	public int query(float[] sphere, int layers) {
+		update();
+		mResultCount = 0;
+		if (++mStamp == 0) {
+			// Stamp wrapped around, forget all previous stamps.
+			for (int i = 0; i < mColliderCount; ++i) {
+				mStamps[i] = 0;
+			}
+			mStamp = 1;
+		}
+
+		float x = sphere[0], y = sphere[1], z = sphere[2], r = sphere[3];
+		int minX = cell(x - r), minY = cell(y - r), minZ = cell(z - r);
+		int maxX = cell(x + r), maxY = cell(y + r), maxZ = cell(z + r);
+		for (int cx = minX; cx <= maxX; ++cx) {
+			for (int cy = minY; cy <= maxY; ++cy) {
+				for (int cz = minZ; cz <= maxZ; ++cz) {
+					int slot = findSlot(key(cx, cy, cz));
+					if (mTableKeys[slot] == EMPTY_KEY) {
+						continue;
+					}
+					for (int e = mTableHeads[slot]; e != -1; e = mEntryNext[e]) {
+						test(mEntryCollider[e], sphere, layers);
+					}
+				}
+			}
+		}
+		for (int i = 0; i < mOversizedCount; ++i) {
+			test(mOversized[i], sphere, layers);
+		}
+		return mResultCount;
+	}
+
+	/**
+	 * Removes collider.
+	 *
+	 * @param drawable
+	 *            Drawable to remove
+	 * @return true if drawable was added before.
+	 */
+	public boolean remove(Drawable drawable) {
+		Integer index = mIndices.remove(drawable);
+		if (index == null) {
+			return false;
+		}
+		int collider = index;
+		unbin(collider);
+		mDrawables[collider] = null;
+		mFree[mFreeCount++] = collider;
+		return true;
+	}
+
+	/**
+	 * Rebins all colliders whose bounds have changed. Called by query, so
+	 * there is no need to call this explicitly.
+	 */
+	public void update() {
+		for (int i = 0; i < mDirtyCount; ++i) {
+			int collider = mDirtyList[i];
+			mDirty[collider] = false;
+			if (mDrawables[collider] != null) {
+				unbin(collider);
+				bin(collider);
+			}
+		}
+		mDirtyCount = 0;
+	}
+
+	private void addEntry(int cx, int cy, int cz, int collider) {
+		long key = key(cx, cy, cz);
+		int slot = findSlot(key);
+		if (mTableKeys[slot] == EMPTY_KEY) {
+			// Cells are never removed, emptied ones are reused later.
+			if ((mTableCount + 1) * 2 > mTableKeys.length) {
+				allocateTable(mTableKeys.length * 2);
+				slot = findSlot(key);
+			}
+			mTableKeys[slot] = key;
+			mTableHeads[slot] = -1;
+			++mTableCount;
+		}
+
+		int entry = mEntryFree;
+		if (entry != -1) {
+			mEntryFree = mEntryNext[entry];
+		} else {
+			if (mEntryCount == mEntryNext.length) {
+				int[] colliders = new int[mEntryCount * 2];
+				int[] next = new int[mEntryCount * 2];
+				System.arraycopy(mEntryCollider, 0, colliders, 0, mEntryCount);
+				System.arraycopy(mEntryNext, 0, next, 0, mEntryCount);
+				mEntryCollider = colliders;
+				mEntryNext = next;
+			}
+			entry = mEntryCount++;
+		}
+		mEntryCollider[entry] = collider;
+		mEntryNext[entry] = mTableHeads[slot];
+		mTableHeads[slot] = entry;
+	}
+
+	private void allocateColliders(int capacity) {
+		int[] cells = new int[capacity * 6];
+		boolean[] dirty = new boolean[capacity];
+		Drawable[] drawables = new Drawable[capacity];
+		int[] free = new int[capacity];
+		int[] layer = new int[capacity];
+		int[] stamps = new int[capacity];
+		if (mColliderCount > 0) {
+			System.arraycopy(mCells, 0, cells, 0, mColliderCount * 6);
+			System.arraycopy(mDirty, 0, dirty, 0, mColliderCount);
+			System.arraycopy(mDrawables, 0, drawables, 0, mColliderCount);
+			System.arraycopy(mFree, 0, free, 0, mFreeCount);
+			System.arraycopy(mLayer, 0, layer, 0, mColliderCount);
+			System.arraycopy(mStamps, 0, stamps, 0, mColliderCount);
+		}
+		mCells = cells;
+		mDirty = dirty;
+		mDrawables = drawables;
+		mFree = free;
+		mLayer = layer;
+		mStamps = stamps;
+	}
+
+	private void allocateTable(int capacity) {
+		long[] oldKeys = mTableKeys;
+		int[] oldHeads = mTableHeads;
+		mTableKeys = new long[capacity];
+		mTableHeads = new int[capacity];
+		for (int i = 0; i < capacity; ++i) {
+			mTableKeys[i] = EMPTY_KEY;
+		}
+		if (oldKeys != null) {
+			for (int i = 0; i < oldKeys.length; ++i) {
+				if (oldKeys[i] != EMPTY_KEY) {
+					int slot = findSlot(oldKeys[i]);
+					mTableKeys[slot] = oldKeys[i];
+					mTableHeads[slot] = oldHeads[i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Inserts collider into every cell its bounding sphere overlaps, or into
+	 * oversized list if it overlaps too many.
+	 */
+	private void bin(int collider) {
+		float[] sphere = mDrawables[collider].getBoundingSphere();
+		float x = sphere[0], y = sphere[1], z = sphere[2], r = sphere[3];
+		int c = collider * 6;
+		mCells[c] = cell(x - r);
+		mCells[c + 1] = cell(y - r);
+		mCells[c + 2] = cell(z - r);
+		mCells[c + 3] = cell(x + r);
+		mCells[c + 4] = cell(y + r);
+		mCells[c + 5] = cell(z + r);
+
+		if (mCells[c + 3] - mCells[c] >= MAX_CELLS_PER_AXIS
+				|| mCells[c + 4] - mCells[c + 1] >= MAX_CELLS_PER_AXIS
+				|| mCells[c + 5] - mCells[c + 2] >= MAX_CELLS_PER_AXIS) {
+			if (mOversizedCount == mOversized.length) {
+				int[] oversized = new int[mOversizedCount * 2];
+				System.arraycopy(mOversized, 0, oversized, 0, mOversizedCount);
+				mOversized = oversized;
+			}
+			mOversized[mOversizedCount++] = collider;
+			// Empty cell range marks oversized colliders.
+			mCells[c + 3] = mCells[c] - 1;
+			return;
+		}
+
+		for (int cx = mCells[c]; cx <= mCells[c + 3]; ++cx) {
+			for (int cy = mCells[c + 1]; cy <= mCells[c + 4]; ++cy) {
+				for (int cz = mCells[c + 2]; cz <= mCells[c + 5]; ++cz) {
+					addEntry(cx, cy, cz, collider);
+				}
+			}
+		}
+	}
+
+	private int cell(float coordinate) {
+		return (int) Math.floor(coordinate * mInvCellSize);
+	}
+
+	/**
+	 * Returns table slot holding given key, or empty slot key would be
+	 * inserted into.
+	 */
+	private int findSlot(long key) {
+		int mask = mTableKeys.length - 1;
+		long h = key * 0x9E3779B97F4A7C15L;
+		int slot = (int) (h ^ (h >>> 32)) & mask;
+		while (mTableKeys[slot] != EMPTY_KEY && mTableKeys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private static long key(int cx, int cy, int cz) {
+		return ((long) (cx & 0x1FFFFF) << 42) | ((long) (cy & 0x1FFFFF) << 21)
+				| (cz & 0x1FFFFF);
+	}
+
+	private void removeEntry(int cx, int cy, int cz, int collider) {
+		int slot = findSlot(key(cx, cy, cz));
+		if (mTableKeys[slot] == EMPTY_KEY) {
+			return;
+		}
+		int prev = -1;
+		for (int e = mTableHeads[slot]; e != -1; prev = e, e = mEntryNext[e]) {
+			if (mEntryCollider[e] == collider) {
+				if (prev == -1) {
+					mTableHeads[slot] = mEntryNext[e];
+				} else {
+					mEntryNext[prev] = mEntryNext[e];
+				}
+				mEntryNext[e] = mEntryFree;
+				mEntryFree = e;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Adds collider into results if it is on one of given layers, has not
+	 * been reported yet and its bounding sphere intersects given one.
+	 */
+	private void test(int collider, float[] sphere, int layers) {
+		if ((mLayer[collider] & layers) == 0 || mStamps[collider] == mStamp) {
+			return;
+		}
+		mStamps[collider] = mStamp;
+
+		float[] other = mDrawables[collider].getBoundingSphere();
+		float dx = sphere[0] - other[0];
+		float dy = sphere[1] - other[1];
+		float dz = sphere[2] - other[2];
+		float r = sphere[3] + other[3];
+		if (dx * dx + dy * dy + dz * dz > r * r) {
+			return;
+		}
+
+		if (mResultCount == mResult.length) {
+			Drawable[] result = new Drawable[mResultCount * 2];
+			System.arraycopy(mResult, 0, result, 0, mResultCount);
+			mResult = result;
+		}
+		mResult[mResultCount++] = mDrawables[collider];
+	}
+
+	/**
+	 * Removes collider from all cells it was binned into.
+	 */
+	private void unbin(int collider) {
+		int c = collider * 6;
+		if (mCells[c + 3] < mCells[c]) {
+			for (int i = 0; i < mOversizedCount; ++i) {
+				if (mOversized[i] == collider) {
+					mOversized[i] = mOversized[--mOversizedCount];
+					break;
+				}
+			}
+			return;
+		}
+		for (int cx = mCells[c]; cx <= mCells[c + 3]; ++cx) {
+			for (int cy = mCells[c + 1]; cy <= mCells[c + 4]; ++cy) {
+				for (int cz = mCells[c + 2]; cz <= mCells[c + 5]; ++cz) {
+					removeEntry(cx, cy, cz, collider);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,62 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.physics;
+
+/**
+ * Result of a narrow phase test. Contacts are meant to be reused, every test
+ * overwrites all values.
+ */
+public final class Contact {
+
+	// Penetration depth along normal, 0 for swept contacts.
+	float mDepth;
+	// Unit normal pointing from second box towards first one.
+	final float[] mNormal = new float[3];
+	// Fraction of motion before contact, 0 for boxes overlapping already.
+	float mTime;
+
+	/**
+	 * Getter for penetration depth. Moving first box by normal multiplied by
+	 * depth separates boxes.
+	 */
+	public float getDepth() {
+		return mDepth;
+	}
+
+	/**
+	 * Getter for contact normal, pointing from second box towards first one.
+	 */
+	public float[] getNormal() {
+		return mNormal;
+	}
+
+	/**
+	 * Getter for time of impact as fraction of motion given to swept test.
+	 */
+	public float getTime() {
+		return mTime;
+	}
+
+	void set(float nx, float ny, float nz, float depth, float time) {
+		mNormal[0] = nx;
+		mNormal[1] = ny;
+		mNormal[2] = nz;
+		mDepth = depth;
+		mTime = time;
+	}
+
+}
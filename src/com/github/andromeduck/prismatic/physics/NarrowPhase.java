@@ -0,0 +1,254 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.physics;
+
+/**
+ * Exact box versus box tests based on the separating axis theorem. Two boxes
+ * are disjoint if and only if their projections are disjoint on one of
+ * fifteen axes, the face normals of both boxes and cross products of their
+ * edges. Swept tests use the same axes, as a box translating against another
+ * one is equal to a ray cast against their Minkowski difference, whose face
+ * normals are among those axes. Tests allocate nothing.
+ */
+public final class NarrowPhase {
+
+	// Cross products shorter than this are parallel edges and skipped.
+	private static final float EPSILON = 1e-6f;
+	// Edge axes are preferred only if they separate clearly less than face
+	// axes do, which keeps normals stable for face contacts.
+	private static final float EDGE_BIAS = 0.95f;
+
+	// Axis currently tested.
+	private float mAxisX;
+	private float mAxisY;
+	private float mAxisZ;
+	// Best axis found so far.
+	private float mBestDepth;
+	private float mBestX;
+	private float mBestY;
+	private float mBestZ;
+	// Swept test state, entry time and normal plus exit time.
+	private float mEnter;
+	private float mEnterX;
+	private float mEnterY;
+	private float mEnterZ;
+	private float mExit;
+	// Motion of first box for swept tests.
+	private float mMotionX;
+	private float mMotionY;
+	private float mMotionZ;
+
+	/**
+	 * Tests whether two boxes overlap.
+	 *
+	 * @param a
+	 *            First box
+	 * @param b
+	 *            Second box
+	 * @param contact
+	 *            Contact for writing normal and penetration depth, may be
+	 *            null
+	 * @return true if boxes overlap.
+	 */
+	public boolean intersect(Box a, Box b, Contact contact) {
+		mBestDepth = Float.MAX_VALUE;
+		for (int i = 0; i < 3; ++i) {
+			setAxis(a.mAxes, i);
+			if (!testOverlap(a, b, 1f)) {
+				return false;
+			}
+			setAxis(b.mAxes, i);
+			if (!testOverlap(a, b, 1f)) {
+				return false;
+			}
+		}
+		for (int i = 0; i < 3; ++i) {
+			for (int j = 0; j < 3; ++j) {
+				if (setCrossAxis(a.mAxes, i, b.mAxes, j)
+						&& !testOverlap(a, b, EDGE_BIAS)) {
+					return false;
+				}
+			}
+		}
+		if (contact != null) {
+			contact.set(mBestX, mBestY, mBestZ, mBestDepth, 0f);
+		}
+		return true;
+	}
+
+	/**
+	 * Tests whether first box hits second one while moving by given motion.
+	 * Boxes overlapping at start are reported as static contact at time 0.
+	 *
+	 * @param a
+	 *            Moving box at start of motion
+	 * @param dx
+	 *            Motion of first box along x axis
+	 * @param dy
+	 *            Motion of first box along y axis
+	 * @param dz
+	 *            Motion of first box along z axis
+	 * @param b
+	 *            Static box
+	 * @param contact
+	 *            Contact for writing time of impact and normal, may be null
+	 * @return true if boxes touch at some point of motion.
+	 */
+	public boolean sweep(Box a, float dx, float dy, float dz, Box b,
+			Contact contact) {
+		mMotionX = dx;
+		mMotionY = dy;
+		mMotionZ = dz;
+		mEnter = -Float.MAX_VALUE;
+		mExit = Float.MAX_VALUE;
+		for (int i = 0; i < 3; ++i) {
+			setAxis(a.mAxes, i);
+			if (!testSweep(a, b)) {
+				return false;
+			}
+			setAxis(b.mAxes, i);
+			if (!testSweep(a, b)) {
+				return false;
+			}
+		}
+		for (int i = 0; i < 3; ++i) {
+			for (int j = 0; j < 3; ++j) {
+				if (setCrossAxis(a.mAxes, i, b.mAxes, j) && !testSweep(a, b)) {
+					return false;
+				}
+			}
+		}
+
+		if (mEnter > 1f || mExit < 0f) {
+			return false;
+		}
+		if (mEnter < 0f) {
+			return intersect(a, b, contact);
+		}
+		if (contact != null) {
+			contact.set(mEnterX, mEnterY, mEnterZ, 0f, mEnter);
+		}
+		return true;
+	}
+
+	/**
+	 * Projects box onto current axis.
+	 *
+	 * @return Half length of projection.
+	 */
+	private float radius(Box box) {
+		float[] axes = box.mAxes;
+		float[] extents = box.mExtents;
+		float r = 0f;
+		for (int i = 0; i < 3; ++i) {
+			float d = axes[i * 3] * mAxisX + axes[i * 3 + 1] * mAxisY
+					+ axes[i * 3 + 2] * mAxisZ;
+			r += extents[i] * Math.abs(d);
+		}
+		return r;
+	}
+
+	private void setAxis(float[] axes, int i) {
+		mAxisX = axes[i * 3];
+		mAxisY = axes[i * 3 + 1];
+		mAxisZ = axes[i * 3 + 2];
+	}
+
+	/**
+	 * Sets current axis to normalized cross product of given axes.
+	 *
+	 * @return false if axes are parallel.
+	 */
+	private boolean setCrossAxis(float[] a, int i, float[] b, int j) {
+		float ax = a[i * 3], ay = a[i * 3 + 1], az = a[i * 3 + 2];
+		float bx = b[j * 3], by = b[j * 3 + 1], bz = b[j * 3 + 2];
+		float x = ay * bz - az * by;
+		float y = az * bx - ax * bz;
+		float z = ax * by - ay * bx;
+		float lengthSq = x * x + y * y + z * z;
+		if (lengthSq < EPSILON) {
+			return false;
+		}
+		float inv = 1f / (float) Math.sqrt(lengthSq);
+		mAxisX = x * inv;
+		mAxisY = y * inv;
+		mAxisZ = z * inv;
+		return true;
+	}
+
+	/**
+	 * Tests projections of boxes onto current axis, and stores it as best
+	 * axis if it has least overlap so far.
+	 *
+	 * @return false if projections are disjoint.
+	 */
+	private boolean testOverlap(Box a, Box b, float bias) {
+		float distance = (a.mCenter[0] - b.mCenter[0]) * mAxisX
+				+ (a.mCenter[1] - b.mCenter[1]) * mAxisY
+				+ (a.mCenter[2] - b.mCenter[2]) * mAxisZ;
+		float depth = radius(a) + radius(b) - Math.abs(distance);
+		if (depth < 0f) {
+			return false;
+		}
+		if (depth < mBestDepth * bias) {
+			// Normal points from second box towards first one.
+			float sign = distance < 0f ? -1f : 1f;
+			mBestDepth = depth;
+			mBestX = mAxisX * sign;
+			mBestY = mAxisY * sign;
+			mBestZ = mAxisZ * sign;
+		}
+		return true;
+	}
+
+	/**
+	 * Narrows entry and exit times of first box by times its projection
+	 * overlaps second one on current axis.
+	 *
+	 * @return false if projections never overlap during motion.
+	 */
+	private boolean testSweep(Box a, Box b) {
+		float distance = (a.mCenter[0] - b.mCenter[0]) * mAxisX
+				+ (a.mCenter[1] - b.mCenter[1]) * mAxisY
+				+ (a.mCenter[2] - b.mCenter[2]) * mAxisZ;
+		float speed = mMotionX * mAxisX + mMotionY * mAxisY + mMotionZ
+				* mAxisZ;
+		float r = radius(a) + radius(b);
+
+		if (Math.abs(speed) < EPSILON) {
+			// Projection does not move, it either always or never overlaps.
+			return Math.abs(distance) <= r;
+		}
+
+		// Projections overlap while |distance + speed * t| <= r.
+		float t0 = (-r - distance) / speed;
+		float t1 = (r - distance) / speed;
+		float enter = Math.min(t0, t1);
+		float exit = Math.max(t0, t1);
+		if (enter > mEnter) {
+			// First box approaches from side opposite to its motion.
+			float sign = speed < 0f ? 1f : -1f;
+			mEnter = enter;
+			mEnterX = mAxisX * sign;
+			mEnterY = mAxisY * sign;
+			mEnterZ = mAxisZ * sign;
+		}
+		mExit = Math.min(mExit, exit);
+		return mEnter <= mExit;
+	}
+
+}
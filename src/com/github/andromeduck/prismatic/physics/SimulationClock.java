@@ -0,0 +1,125 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.physics;
+
+/**
+ * Fixed timestep clock. Elapsed real time is accumulated in nanoseconds and
+ * consumed in whole simulation steps, so that simulation runs at the same
+ * rate regardless of frame rate. Time left over is exposed as interpolation
+ * factor between the last two simulated states. Number of steps per advance
+ * is capped, and time beyond the cap is dropped, so that a long stall slows
+ * the game down for a moment instead of making it spend ever more time
+ * catching up.
+ */
+public final class SimulationClock {
+
+	// Unconsumed time.
+	private long mAccumulator = 0;
+	// Total time dropped due to step cap.
+	private long mDroppedNanos = 0;
+	// Time of last advance, -1 before first one.
+	private long mLastTime = -1;
+	// Maximum number of steps per advance.
+	private final int mMaxSteps;
+	// Length of one step.
+	private final long mStepNanos;
+
+	/**
+	 * Creates new clock.
+	 *
+	 * @param stepNanos
+	 *            Length of simulation step in nanoseconds
+	 * @param maxSteps
+	 *            Maximum number of steps taken per advance
+	 */
+	public SimulationClock(long stepNanos, int maxSteps) {
+		mStepNanos = stepNanos;
+		mMaxSteps = maxSteps;
+	}
+
+	/**
+	 * Accumulates time elapsed since last call.
+	 *
+	 * @param now
+	 *            Current time from System.nanoTime()
+	 * @return Number of simulation steps to take.
+	 */
+	public int advance(long now) {
+		if (mLastTime < 0) {
+			mLastTime = now;
+			return 0;
+		}
+		mAccumulator += now - mLastTime;
+		mLastTime = now;
+
+		long steps = mAccumulator / mStepNanos;
+		if (steps > mMaxSteps) {
+			long dropped = (steps - mMaxSteps) * mStepNanos;
+			mDroppedNanos += dropped;
+			mAccumulator -= dropped;
+			steps = mMaxSteps;
+		}
+		mAccumulator -= steps * mStepNanos;
+		return (int) steps;
+	}
+
+	/**
+	 * Getter for interpolation factor between previous and current state,
+	 * from 0 to 1.
+	 */
+	public float getAlpha() {
+		return (float) mAccumulator / mStepNanos;
+	}
+
+	/**
+	 * Getter for total time dropped since creation because of step cap.
+	 */
+	public long getDroppedNanos() {
+		return mDroppedNanos;
+	}
+
+	/**
+	 * Getter for time left until next step is due, as of last advance.
+	 */
+	public long getNanosToNextStep() {
+		return mStepNanos - mAccumulator;
+	}
+
+	/**
+	 * Getter for length of one step in nanoseconds.
+	 */
+	public long getStepNanos() {
+		return mStepNanos;
+	}
+
+	/**
+	 * Getter for length of one step in milliseconds.
+	 */
+	public float getStepMillis() {
+		return mStepNanos / 1000000f;
+	}
+
+	/**
+	 * Forgets time of last advance, so that time spent e.g paused is not
+	 * simulated.
+	 */
+	public void reset() {
+		mLastTime = -1;
+		mAccumulator = 0;
+	}
+
+}
@@ -0,0 +1,180 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.bench;
+
+import java.lang.reflect.Method;
+import java.util.Random;
+
+import com.github.andromeduck.prismatic.physics.Box;
+import com.github.andromeduck.prismatic.physics.Contact;
+import com.github.andromeduck.prismatic.physics.NarrowPhase;
+
+/**
+ * Measures time and heap allocation per NarrowPhase query over randomly
+ * placed and rotated boxes. Allocation is read from the thread allocation
+ * counter of HotSpot, and a non-zero count fails the run. Compiled with the
+ * test sources, runs on a desktop JVM with the physics classes on class
+ * path:
+ * <p/>
+ * java com.github.andromeduck.prismatic.bench.CollisionBenchmark [count]
+ */
+public final class CollisionBenchmark {
+
+	private static final int ROUNDS = 50;
+
+	// HotSpot thread allocation counter and its bean, null if missing.
+	private static Method sAllocatedBytes;
+	private static Object sThreads;
+
+	static {
+		// Looked up through reflection, as java.lang.management is not part
+		// of Android the test sources are compiled against.
+		try {
+			sThreads = Class.forName("java.lang.management.ManagementFactory")
+					.getMethod("getThreadMXBean").invoke(null);
+			sAllocatedBytes = Class.forName(
+					"com.sun.management.ThreadMXBean").getMethod(
+					"getThreadAllocatedBytes", long.class);
+		} catch (Exception ex) {
+			sAllocatedBytes = null;
+		}
+	}
+
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+
+		Random random = new Random(0);
+		Box[] boxes = new Box[count];
+		float[] motions = new float[count * 3];
+		float[] m = new float[16];
+		for (int i = 0; i < count; ++i) {
+			randomMatrix(random, m);
+			boxes[i] = new Box();
+			boxes[i].set(m, 0);
+			for (int j = 0; j < 3; ++j) {
+				motions[i * 3 + j] = random.nextFloat() * 8 - 4;
+			}
+		}
+
+		NarrowPhase narrowPhase = new NarrowPhase();
+		Contact contact = new Contact();
+		long overhead = allocatedBytes();
+		overhead = allocatedBytes() - overhead;
+
+		// Second pass is measured, first one warms up.
+		long timeIntersect = 0, timeSweep = 0, bytes = 0;
+		int hitsIntersect = 0, hitsSweep = 0;
+		for (int pass = 0; pass < 2; ++pass) {
+			timeIntersect = timeSweep = 0;
+			hitsIntersect = hitsSweep = 0;
+			long bytesStart = allocatedBytes();
+			for (int round = 0; round < ROUNDS; ++round) {
+				long start = System.nanoTime();
+				for (int i = 0; i < count; ++i) {
+					for (int j = i + 1; j < count; ++j) {
+						if (narrowPhase.intersect(boxes[i], boxes[j], contact)) {
+							++hitsIntersect;
+						}
+					}
+				}
+				timeIntersect += System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for (int i = 0; i < count; ++i) {
+					int k = i * 3;
+					for (int j = i + 1; j < count; ++j) {
+						if (narrowPhase.sweep(boxes[i], motions[k],
+								motions[k + 1], motions[k + 2], boxes[j],
+								contact)) {
+							++hitsSweep;
+						}
+					}
+				}
+				timeSweep += System.nanoTime() - start;
+			}
+			bytes = allocatedBytes() - bytesStart - overhead;
+		}
+
+		long queries = (long) count * (count - 1) / 2 * ROUNDS;
+		System.out.println(count + " boxes, " + queries + " queries per test");
+		report("NarrowPhase.intersect", queries, timeIntersect, hitsIntersect);
+		report("NarrowPhase.sweep", queries, timeSweep, hitsSweep);
+		if (sAllocatedBytes == null) {
+			System.out.println("Allocation not measured, JVM has no counter");
+			return;
+		}
+		System.out.println("Allocated " + bytes + " bytes, "
+				+ String.format("%.4f", (double) bytes / (queries * 2))
+				+ " per query");
+		if (bytes != 0) {
+			throw new IllegalStateException("Narrow phase allocated memory");
+		}
+	}
+
+	/**
+	 * Returns bytes allocated by current thread so far, 0 if not known.
+	 * Reading the counter allocates too, callers subtract that overhead.
+	 */
+	private static long allocatedBytes() {
+		if (sAllocatedBytes == null) {
+			return 0;
+		}
+		try {
+			return (Long) sAllocatedBytes.invoke(sThreads, Thread
+					.currentThread().getId());
+		} catch (Exception ex) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Builds model matrix of a box with random rotation, half extents from
+	 * 0.05 to 2 and center within 40 units cube.
+	 */
+	private static void randomMatrix(Random random, float[] m) {
+		// Random unit quaternion into rotation matrix.
+		float x = random.nextFloat() * 2 - 1, y = random.nextFloat() * 2 - 1;
+		float z = random.nextFloat() * 2 - 1, w = random.nextFloat() * 2 - 1;
+		float inv = 1f / (float) Math.sqrt(x * x + y * y + z * z + w * w);
+		x *= inv;
+		y *= inv;
+		z *= inv;
+		w *= inv;
+		float[] r = { 1 - 2 * (y * y + z * z), 2 * (x * y + z * w),
+				2 * (x * z - y * w), 2 * (x * y - z * w),
+				1 - 2 * (x * x + z * z), 2 * (y * z + x * w),
+				2 * (x * z + y * w), 2 * (y * z - x * w),
+				1 - 2 * (x * x + y * y) };
+		for (int col = 0; col < 3; ++col) {
+			float extent = 0.05f + random.nextFloat() * 1.95f;
+			for (int row = 0; row < 3; ++row) {
+				m[col * 4 + row] = r[col * 3 + row] * extent;
+			}
+			m[col * 4 + 3] = 0;
+		}
+		m[12] = random.nextFloat() * 40 - 20;
+		m[13] = random.nextFloat() * 40 - 20;
+		m[14] = random.nextFloat() * 40 - 20;
+		m[15] = 1;
+	}
+
+	private static void report(String name, long queries, long nanos, int hits) {
+		System.out.println(String.format("%-24s %8.1f ns/query, %d hits",
+				name, (double) nanos / queries, hits));
+	}
+
+}
@@ -0,0 +1,93 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.bench;
+
+import java.util.Random;
+
+import com.github.andromeduck.prismatic.graphics.FrustumCuller;
+import com.github.andromeduck.prismatic.graphics.Visibility;
+
+/**
+ * Measures sphere culling throughput of Visibility.intersects, testing one
+ * sphere array per call, against batched FrustumCuller. Compiled with the
+ * test sources, runs on a desktop JVM with the graphics classes on class
+ * path:
+ * <p/>
+ * java com.github.andromeduck.prismatic.bench.CullingBenchmark [count]
+ */
+public final class CullingBenchmark {
+
+	private static final int ROUNDS = 200;
+	private static final float SQRT_2_INV = (float) (1 / Math.sqrt(2));
+
+	// 90 degree frustum looking down negative z axis, near 0.1 and far 100.
+	private static final float[] PLANES = { -SQRT_2_INV, 0, -SQRT_2_INV, 0,
+			SQRT_2_INV, 0, -SQRT_2_INV, 0, 0, SQRT_2_INV, -SQRT_2_INV, 0, 0,
+			-SQRT_2_INV, -SQRT_2_INV, 0, 0, 0, 1, 100, 0, 0, -1, -0.1f };
+
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+		// Blocks spread around camera, so roughly a quarter is visible.
+		Random random = new Random(0);
+		float[][] spheres = new float[count][];
+		FrustumCuller culler = new FrustumCuller(count);
+		for (int i = 0; i < count; ++i) {
+			spheres[i] = new float[] { random.nextFloat() * 200 - 100,
+					random.nextFloat() * 200 - 100,
+					random.nextFloat() * 200 - 100,
+					0.5f + random.nextFloat() };
+			culler.add(spheres[i]);
+		}
+
+		// Alternate rounds so that both are equally warmed up.
+		long timeSingle = 0, timeBatch = 0;
+		int visibleSingle = 0, visibleBatch = 0;
+		for (int pass = 0; pass < 2; ++pass) {
+			timeSingle = timeBatch = 0;
+			for (int round = 0; round < ROUNDS; ++round) {
+				long start = System.nanoTime();
+				visibleSingle = 0;
+				for (int i = 0; i < count; ++i) {
+					if (Visibility.intersects(PLANES, spheres[i])) {
+						++visibleSingle;
+					}
+				}
+				timeSingle += System.nanoTime() - start;
+
+				start = System.nanoTime();
+				visibleBatch = culler.cull(PLANES);
+				timeBatch += System.nanoTime() - start;
+			}
+		}
+
+		if (visibleSingle != visibleBatch) {
+			throw new IllegalStateException("Results differ: " + visibleSingle
+					+ " != " + visibleBatch);
+		}
+		System.out.println(count + " spheres, " + visibleBatch + " visible");
+		report("Visibility.intersects", count, timeSingle);
+		report("FrustumCuller.cull", count, timeBatch);
+	}
+
+	private static void report(String name, int count, long nanos) {
+		double perMicro = (double) count * ROUNDS / (nanos / 1000.0);
+		System.out.println(String.format("%-24s %8.1f spheres/us", name,
+				perMicro));
+	}
+
+}
@@ -0,0 +1,141 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.opengl.GLES30;
+
+/**
+ * Captures rendered frames and compares them against reference images
+ * stored as PNG files. Pixels are kept as RGBA rows from top to bottom, with
+ * alpha forced opaque, as output alpha is not part of what is compared.
+ */
+final class GoldenImage {
+
+	private GoldenImage() {
+	}
+
+	/**
+	 * Reads pixels of current framebuffer.
+	 *
+	 * @param width
+	 *            Framebuffer width in pixels
+	 * @param height
+	 *            Framebuffer height in pixels
+	 * @return Direct buffer of RGBA rows, top row first.
+	 */
+	static ByteBuffer capture(int width, int height) {
+		ByteBuffer pixels = ByteBuffer.allocateDirect(width * height * 4)
+				.order(ByteOrder.nativeOrder());
+		GLES30.glPixelStorei(GLES30.GL_PACK_ALIGNMENT, 1);
+		GLES30.glReadPixels(0, 0, width, height, GLES30.GL_RGBA,
+				GLES30.GL_UNSIGNED_BYTE, pixels);
+
+		// GL rows start from bottom.
+		int stride = width * 4;
+		byte[] top = new byte[stride];
+		byte[] bottom = new byte[stride];
+		for (int y = 0; y < height / 2; ++y) {
+			pixels.position(y * stride);
+			pixels.get(top);
+			pixels.position((height - 1 - y) * stride);
+			pixels.get(bottom);
+			pixels.position((height - 1 - y) * stride);
+			pixels.put(top);
+			pixels.position(y * stride);
+			pixels.put(bottom);
+		}
+		for (int i = 3; i < width * height * 4; i += 4) {
+			pixels.put(i, (byte) 0xFF);
+		}
+		pixels.position(0);
+		return pixels;
+	}
+
+	/**
+	 * Counts pixels differing in any channel by more than given tolerance.
+	 * Buffers have to be of same size.
+	 */
+	static int diff(ByteBuffer pixels, ByteBuffer golden, int tolerance) {
+		int count = 0;
+		for (int i = 0; i < pixels.capacity(); i += 4) {
+			for (int c = 0; c < 3; ++c) {
+				int delta = (pixels.get(i + c) & 0xFF)
+						- (golden.get(i + c) & 0xFF);
+				if (delta > tolerance || delta < -tolerance) {
+					++count;
+					break;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Reads reference image.
+	 *
+	 * @return Direct buffer of RGBA rows, or null if image is of different
+	 *         size or cannot be decoded.
+	 */
+	static ByteBuffer read(File file, int width, int height) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		options.inScaled = false;
+		Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+		if (bitmap == null) {
+			return null;
+		}
+		ByteBuffer pixels = null;
+		if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+			pixels = ByteBuffer.allocateDirect(width * height * 4).order(
+					ByteOrder.nativeOrder());
+			bitmap.copyPixelsToBuffer(pixels);
+			pixels.position(0);
+		}
+		bitmap.recycle();
+		return pixels;
+	}
+
+	/**
+	 * Writes pixels as reference image.
+	 */
+	static void write(ByteBuffer pixels, int width, int height, File file)
+			throws IOException {
+		Bitmap bitmap = Bitmap.createBitmap(width, height,
+				Bitmap.Config.ARGB_8888);
+		bitmap.copyPixelsFromBuffer(pixels);
+		pixels.position(0);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			if (!bitmap.compress(Bitmap.CompressFormat.PNG, 100, out)) {
+				throw new IOException("Unable to write " + file);
+			}
+		} finally {
+			out.close();
+			bitmap.recycle();
+		}
+	}
+
+}
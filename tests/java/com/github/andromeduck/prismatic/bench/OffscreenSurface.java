@@ -0,0 +1,129 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.bench;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+
+/**
+ * OpenGL ES 3 context rendering into a pbuffer instead of a window. Context
+ * is made current on the creating thread, and all rendering into it has to
+ * happen on that thread.
+ */
+final class OffscreenSurface {
+
+	// EGL_OPENGL_ES3_BIT_KHR, not part of EGL14.
+	private static final int EGL_OPENGL_ES3_BIT = 0x40;
+
+	private EGLContext mContext;
+	private EGLDisplay mDisplay;
+	private final int mHeight;
+	private EGLSurface mSurface;
+	private final int mWidth;
+
+	/**
+	 * Creates context and pbuffer with 8 bit color channels, 24 bit depth
+	 * and 8 bit stencil, and makes it current.
+	 *
+	 * @param width
+	 *            Pbuffer width in pixels
+	 * @param height
+	 *            Pbuffer height in pixels
+	 */
+	OffscreenSurface(int width, int height) {
+		mWidth = width;
+		mHeight = height;
+
+		mDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+		int[] version = new int[2];
+		if (!EGL14.eglInitialize(mDisplay, version, 0, version, 1)) {
+			throw new IllegalStateException("eglInitialize failed: 0x"
+					+ Integer.toHexString(EGL14.eglGetError()));
+		}
+
+		int[] configAttribs = { EGL14.EGL_RED_SIZE, 8, EGL14.EGL_GREEN_SIZE,
+				8, EGL14.EGL_BLUE_SIZE, 8, EGL14.EGL_ALPHA_SIZE, 8,
+				EGL14.EGL_DEPTH_SIZE, 24, EGL14.EGL_STENCIL_SIZE, 8,
+				EGL14.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES3_BIT,
+				EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT, EGL14.EGL_NONE };
+		EGLConfig[] configs = new EGLConfig[1];
+		int[] configCount = new int[1];
+		if (!EGL14.eglChooseConfig(mDisplay, configAttribs, 0, configs, 0, 1,
+				configCount, 0) || configCount[0] == 0) {
+			release();
+			throw new IllegalStateException("No GLES 3 pbuffer config");
+		}
+
+		int[] contextAttribs = { EGL14.EGL_CONTEXT_CLIENT_VERSION, 3,
+				EGL14.EGL_NONE };
+		mContext = EGL14.eglCreateContext(mDisplay, configs[0],
+				EGL14.EGL_NO_CONTEXT, contextAttribs, 0);
+		int[] surfaceAttribs = { EGL14.EGL_WIDTH, width, EGL14.EGL_HEIGHT,
+				height, EGL14.EGL_NONE };
+		mSurface = EGL14.eglCreatePbufferSurface(mDisplay, configs[0],
+				surfaceAttribs, 0);
+		if (mContext == null || mContext == EGL14.EGL_NO_CONTEXT
+				|| mSurface == null || mSurface == EGL14.EGL_NO_SURFACE
+				|| !EGL14.eglMakeCurrent(mDisplay, mSurface, mSurface, mContext)) {
+			int error = EGL14.eglGetError();
+			release();
+			throw new IllegalStateException("Unable to create pbuffer context: 0x"
+					+ Integer.toHexString(error));
+		}
+	}
+
+	/**
+	 * Getter for pbuffer height.
+	 */
+	int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * Getter for pbuffer width.
+	 */
+	int getWidth() {
+		return mWidth;
+	}
+
+	/**
+	 * Destroys context and pbuffer. All GL objects created in the context
+	 * are released along with it.
+	 */
+	void release() {
+		if (mDisplay == null) {
+			return;
+		}
+		EGL14.eglMakeCurrent(mDisplay, EGL14.EGL_NO_SURFACE,
+				EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+		if (mSurface != null) {
+			EGL14.eglDestroySurface(mDisplay, mSurface);
+		}
+		if (mContext != null) {
+			EGL14.eglDestroyContext(mDisplay, mContext);
+		}
+		EGL14.eglReleaseThread();
+		EGL14.eglTerminate(mDisplay);
+		mDisplay = null;
+		mSurface = null;
+		mContext = null;
+	}
+
+}
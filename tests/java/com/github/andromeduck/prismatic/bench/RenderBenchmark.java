@@ -0,0 +1,268 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.bench;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Context;
+import android.opengl.GLES30;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.github.andromeduck.prismatic.graphics.GLState;
+import com.github.andromeduck.prismatic.graphics.SceneManager;
+import com.github.andromeduck.prismatic.levels.Level;
+
+/**
+ * Renders synthetic levels offscreen through the full SceneManager pipeline
+ * and reports frame time percentiles, draw calls and state calls issued and
+ * skipped by GLState per frame, and differences against golden images. Every scenario gets its own pbuffer context, time
+ * is stepped by exactly one simulation step per frame, and camera follows a
+ * scripted path, so that a given frame renders the same image on every run.
+ * Needs no window, e.g on a Linux host it runs in an emulator started with
+ * -no-window and software rendering (-gpu swiftshader_indirect, or -gpu host
+ * with Mesa llvmpipe). Benchmark ships in the test package only:
+ * <p/>
+ * adb shell am instrument -w [-e sizes 4,8,16] [-e modes shadowmap,shadowvolume]
+ * [-e frames 300] [-e width 1280] [-e height 720] [-e updateGolden true]
+ * com.github.andromeduck.prismatic.test/com.github.andromeduck.prismatic.bench.RenderBenchmark
+ * <p/>
+ * Golden images are read from and written to files/golden under external
+ * storage of the application, missing ones are written on first run.
+ */
+public final class RenderBenchmark extends Instrumentation {
+
+	private static final String TAG = "RenderBenchmark";
+
+	// One simulation step per frame, same as SceneManager simulation clock.
+	private static final long FRAME_NANOS = 1000000000L / 60;
+	// Maximum time spent loading programs per scenario.
+	private static final long INIT_TIMEOUT_NANOS = 30000000000L;
+	// Channel difference up to which pixels count as equal.
+	private static final int PIXEL_TOLERANCE = 8;
+	private static final int WARMUP_FRAMES = 60;
+
+	private Bundle mArguments;
+	// Frames measured per scenario.
+	private int mFrameCount;
+	private File mGoldenDir;
+	// Fraction of differing pixels above which golden comparison fails.
+	private float mMaxDiff;
+	private boolean mUpdateGolden;
+	private int mHeight;
+	private int mWidth;
+
+	@Override
+	public void onCreate(Bundle arguments) {
+		super.onCreate(arguments);
+		mArguments = arguments;
+		start();
+	}
+
+	@Override
+	public void onStart() {
+		super.onStart();
+		StringBuilder report = new StringBuilder();
+		Bundle results = new Bundle();
+		int resultCode = Activity.RESULT_OK;
+		try {
+			mFrameCount = getInt("frames", 300);
+			mWidth = getInt("width", 1280);
+			mHeight = getInt("height", 720);
+			mMaxDiff = Float.parseFloat(getString("maxDiff", "0.001"));
+			mUpdateGolden = Boolean.parseBoolean(getString("updateGolden",
+					"false"));
+			Context context = getTargetContext();
+			File root = context.getExternalFilesDir(null);
+			mGoldenDir = new File(root != null ? root : context.getFilesDir(),
+					"golden");
+			if (!mGoldenDir.isDirectory() && !mGoldenDir.mkdirs()) {
+				throw new IllegalStateException("Unable to create " + mGoldenDir);
+			}
+
+			report.append(String.format("%d frames at %dx%d\n", mFrameCount,
+					mWidth, mHeight));
+			for (String mode : getString("modes", "shadowmap,shadowvolume")
+					.split(",")) {
+				int renderMode;
+				if (mode.equals("shadowmap")) {
+					renderMode = Level.MODE_SHADOWMAP;
+				} else if (mode.equals("shadowvolume")) {
+					renderMode = Level.MODE_SHADOWVOLUME;
+				} else {
+					throw new IllegalArgumentException("Unknown mode " + mode);
+				}
+				for (String size : getString("sizes", "4,8,16").split(",")) {
+					String name = mode + "_" + size;
+					String line = runScenario(name, Integer.parseInt(size),
+							renderMode, results);
+					Log.i(TAG, line);
+					report.append(line).append('\n');
+					if (line.endsWith("FAIL")) {
+						resultCode = Activity.RESULT_CANCELED;
+					}
+				}
+			}
+		} catch (Exception ex) {
+			Log.e(TAG, "Benchmark failed", ex);
+			report.append("Benchmark failed: ").append(ex).append('\n');
+			resultCode = Activity.RESULT_CANCELED;
+		}
+		results.putString(REPORT_KEY_STREAMRESULT, report.toString());
+		finish(resultCode, results);
+	}
+
+	private int getInt(String key, int defaultValue) {
+		return Integer.parseInt(getString(key, Integer.toString(defaultValue)));
+	}
+
+	private String getString(String key, String defaultValue) {
+		String value = mArguments != null ? mArguments.getString(key) : null;
+		return value != null ? value : defaultValue;
+	}
+
+	/**
+	 * Returns value below which given fraction of sorted values fall.
+	 */
+	private static double percentileMillis(long[] sorted, double fraction) {
+		int index = (int) Math.ceil(fraction * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+	}
+
+	/**
+	 * Renders one level in its own context and returns report line for it.
+	 * Values are also put into results under keys prefixed with name.
+	 */
+	private String runScenario(String name, int gridSize, int renderMode,
+			Bundle results) throws Exception {
+		final Context context = getTargetContext();
+		final Level level = new SyntheticLevel(gridSize, renderMode);
+		final SceneManager[] scenes = new SceneManager[1];
+		// Views have to be created on main thread, scene is only driven
+		// from this one.
+		runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				scenes[0] = new SceneManager(context, level);
+			}
+		});
+		SceneManager scene = scenes[0];
+
+		OffscreenSurface surface = new OffscreenSurface(mWidth, mHeight);
+		try {
+			results.putString("renderer",
+					GLES30.glGetString(GLES30.GL_RENDERER));
+			scene.onSurfaceCreated(null, null);
+			scene.onSurfaceChanged(null, mWidth, mHeight);
+
+			// Programs load over several frames, time stands still until
+			// then so that frames are numbered from the same step.
+			long deadline = System.nanoTime() + INIT_TIMEOUT_NANOS;
+			while (!scene.isInitialized()) {
+				if (System.nanoTime() > deadline) {
+					throw new IllegalStateException(name
+							+ ": scene not initialized in time");
+				}
+				scene.onDrawFrame(null);
+				Thread.sleep(1);
+			}
+			long time = 0;
+			scene.advanceTo(time);
+			for (int i = 0; i < WARMUP_FRAMES; ++i) {
+				time += FRAME_NANOS;
+				scene.advanceTo(time);
+				scene.onDrawFrame(null);
+			}
+			GLES30.glFinish();
+
+			// Call counts are read once next frame has started counting,
+			// so every sample lags one frame behind.
+			long[] frameNanos = new long[mFrameCount];
+			long drawSum = 0;
+			int drawMax = 0;
+			long issuedSum = 0;
+			long skippedSum = 0;
+			for (int i = 0; i < mFrameCount; ++i) {
+				time += FRAME_NANOS;
+				scene.advanceTo(time);
+				long start = System.nanoTime();
+				scene.onDrawFrame(null);
+				GLES30.glFinish();
+				frameNanos[i] = System.nanoTime() - start;
+				drawSum += GLState.getDrawCount();
+				drawMax = Math.max(drawMax, GLState.getDrawCount());
+				issuedSum += GLState.getIssuedCount();
+				skippedSum += GLState.getSkippedCount();
+			}
+			String golden = compareGolden(name);
+
+			Arrays.sort(frameNanos);
+			double p50 = percentileMillis(frameNanos, 0.5);
+			double p90 = percentileMillis(frameNanos, 0.9);
+			double p99 = percentileMillis(frameNanos, 0.99);
+			double max = frameNanos[frameNanos.length - 1] / 1e6;
+			double draws = (double) drawSum / mFrameCount;
+			double issued = (double) issuedSum / mFrameCount;
+			double skipped = (double) skippedSum / mFrameCount;
+			results.putDouble(name + ".p50", p50);
+			results.putDouble(name + ".p90", p90);
+			results.putDouble(name + ".p99", p99);
+			results.putDouble(name + ".max", max);
+			results.putDouble(name + ".draws", draws);
+			results.putInt(name + ".drawsMax", drawMax);
+			results.putDouble(name + ".issued", issued);
+			results.putDouble(name + ".skipped", skipped);
+			results.putString(name + ".golden", golden);
+			return String.format("%-18s p50 %7.2f  p90 %7.2f  p99 %7.2f  "
+					+ "max %7.2f ms  draws %6.1f (max %d)  state calls %6.1f "
+					+ "(skipped %6.1f)  golden %s", name, p50, p90, p99, max,
+					draws, drawMax, issued, skipped, golden);
+		} finally {
+			scene.release();
+			surface.release();
+		}
+	}
+
+	/**
+	 * Compares last rendered frame against golden image of given scenario,
+	 * writing it if there is none or update was requested.
+	 *
+	 * @return Comparison result, ending with FAIL if images differ.
+	 */
+	private String compareGolden(String name) throws Exception {
+		ByteBuffer pixels = GoldenImage.capture(mWidth, mHeight);
+		File file = new File(mGoldenDir, name + "_" + mWidth + "x" + mHeight
+				+ ".png");
+		if (mUpdateGolden || !file.exists()) {
+			GoldenImage.write(pixels, mWidth, mHeight, file);
+			return "written";
+		}
+		ByteBuffer golden = GoldenImage.read(file, mWidth, mHeight);
+		if (golden == null) {
+			return "unreadable FAIL";
+		}
+		float diff = (float) GoldenImage.diff(pixels, golden, PIXEL_TOLERANCE)
+				/ (mWidth * mHeight);
+		return String.format("%.4f%% %s", diff * 100,
+				diff > mMaxDiff ? "FAIL" : "ok");
+	}
+
+}
@@ -0,0 +1,152 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.bench;
+
+import com.github.andromeduck.prismatic.graphics.TransformPool;
+import com.github.andromeduck.prismatic.graphics.blocks.BasicBlock;
+import com.github.andromeduck.prismatic.graphics.platforms.Platform;
+import com.github.andromeduck.prismatic.levels.Level;
+
+/**
+ * Generated level for benchmarks. Square grid of platforms, every other one
+ * static and the rest bobbing up and down, while camera orbits the grid on a
+ * scripted path. Everything depends on number of steps taken only, so that
+ * a given step looks the same on every run.
+ */
+public final class SyntheticLevel extends Level {
+
+	// Steps per camera orbit, 10 seconds at 60 steps per second.
+	private static final int ORBIT_STEPS = 600;
+	// Blocks per platform side.
+	private static final int PLATFORM_SIZE = 4;
+	// Distance between platform centers.
+	private static final float SPACING = 6f;
+
+	// Camera orbit radius and height.
+	private final float mOrbitHeight;
+	private final float mOrbitRadius;
+	private final int mRenderMode;
+	// Steps taken.
+	private int mStep;
+
+	/**
+	 * Creates level of gridSize * gridSize platforms.
+	 *
+	 * @param gridSize
+	 *            Platforms per grid side
+	 * @param renderMode
+	 *            Level.MODE_SHADOWMAP or Level.MODE_SHADOWVOLUME
+	 */
+	public SyntheticLevel(int gridSize, int renderMode) {
+		mRenderMode = renderMode;
+		float extent = (gridSize - 1) * SPACING / 2;
+		mOrbitRadius = extent + 10f;
+		mOrbitHeight = mOrbitRadius / 2 + 4f;
+
+		float[] position = new float[3];
+		for (int x = 0; x < gridSize; ++x) {
+			for (int z = 0; z < gridSize; ++z) {
+				position[0] = x * SPACING - extent;
+				position[1] = -2f;
+				position[2] = z * SPACING - extent;
+				addPlatform(new GridPlatform(getTransforms(), position,
+						(x + z) % 2 == 0, x * gridSize + z));
+			}
+		}
+
+		lightPosition[1] = 6f;
+		foregroundColor[3] = 1f;
+		updateCamera();
+	}
+
+	@Override
+	public int getRenderMode() {
+		return mRenderMode;
+	}
+
+	@Override
+	public void update(float deltaTime, float[] inputDir) {
+		++mStep;
+		super.update(deltaTime, inputDir);
+		updateCamera();
+	}
+
+	/**
+	 * Places camera on its orbit for current step, looking at grid center.
+	 */
+	private void updateCamera() {
+		double angle = 2 * Math.PI * (mStep % ORBIT_STEPS) / ORBIT_STEPS;
+		cameraPosition[0] = (float) Math.cos(angle) * mOrbitRadius;
+		cameraPosition[1] = mOrbitHeight;
+		cameraPosition[2] = (float) Math.sin(angle) * mOrbitRadius;
+		cameraTarget[0] = cameraTarget[1] = cameraTarget[2] = 0f;
+	}
+
+	/**
+	 * Flat square of blocks, moving up and down unless static.
+	 */
+	private static final class GridPlatform extends Platform {
+		private final float[] mBase = new float[3];
+		// Phase of bobbing, in steps.
+		private int mPhase;
+		private final float[] mPosition = new float[3];
+		private final boolean mStatic;
+
+		GridPlatform(TransformPool transforms, float[] position,
+				boolean isStatic, int index) {
+			super(transforms);
+			mStatic = isStatic;
+			mPhase = index * 7;
+			float[] color = { 0.3f + 0.1f * (index % 7), 0.4f,
+					0.3f + 0.1f * (index % 5) };
+			float offset = (PLATFORM_SIZE - 1) / 2f;
+			for (int x = 0; x < PLATFORM_SIZE; ++x) {
+				for (int z = 0; z < PLATFORM_SIZE; ++z) {
+					BasicBlock block = new BasicBlock(transforms);
+					block.setColor(color);
+					block.setPosition(new float[] { x - offset,
+							(x + z) % 3 == 0 ? 1f : 0f, z - offset });
+					addDrawable(block, false);
+				}
+			}
+			System.arraycopy(position, 0, mBase, 0, 3);
+			setPosition(mBase);
+		}
+
+		@Override
+		public void init() {
+			// Blocks are added by constructor.
+		}
+
+		@Override
+		public boolean isStatic() {
+			return mStatic;
+		}
+
+		@Override
+		public void update() {
+			if (mStatic) {
+				return;
+			}
+			++mPhase;
+			System.arraycopy(mBase, 0, mPosition, 0, 3);
+			mPosition[1] += (float) Math.sin(2 * Math.PI * mPhase / 120);
+			setPosition(mPosition);
+		}
+	}
+
+}
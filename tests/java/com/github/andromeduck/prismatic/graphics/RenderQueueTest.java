@@ -0,0 +1,69 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.graphics;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks command key packing and that fields not fitting their bits are
+ * rejected instead of spilling into neighboring ones.
+ */
+public class RenderQueueTest extends TestCase {
+
+	private static final int PAYLOAD_MAX = (1 << RenderQueue.PAYLOAD_BITS) - 1;
+	private static final int STATE_MAX = (1 << RenderQueue.STATE_BITS) - 1;
+
+	private final RenderQueue mQueue = new RenderQueue(16);
+
+	public void testFieldsRoundTrip() {
+		mQueue.add(2, 3, STATE_MAX, 0.5f, PAYLOAD_MAX);
+		long key = mQueue.get(0);
+		assertEquals(2, RenderQueue.getPass(key));
+		assertEquals(3, RenderQueue.getShader(key));
+		assertEquals(STATE_MAX, RenderQueue.getState(key));
+		assertEquals(PAYLOAD_MAX, RenderQueue.getPayload(key));
+	}
+
+	public void testSortOrdersByPassThenDepth() {
+		mQueue.add(1, 0, 0, 0.2f, 0);
+		mQueue.add(0, 0, 0, 0.9f, 1);
+		mQueue.add(1, 0, 0, 0.1f, 2);
+		mQueue.sort();
+		assertEquals(1, RenderQueue.getPayload(mQueue.get(0)));
+		assertEquals(2, RenderQueue.getPayload(mQueue.get(1)));
+		assertEquals(0, RenderQueue.getPayload(mQueue.get(2)));
+	}
+
+	public void testOutOfRangeFieldsRejected() {
+		assertRejected(1 << RenderQueue.PASS_BITS, 0, 0, 0);
+		assertRejected(0, 1 << RenderQueue.SHADER_BITS, 0, 0);
+		assertRejected(0, 0, STATE_MAX + 1, 0);
+		assertRejected(0, 0, 0, PAYLOAD_MAX + 1);
+		assertRejected(0, 0, 0, -1);
+		assertEquals(0, mQueue.size());
+	}
+
+	private void assertRejected(int pass, int shader, int state, int payload) {
+		try {
+			mQueue.add(pass, shader, state, 0f, payload);
+			fail("Command out of range recorded");
+		} catch (IllegalArgumentException ex) {
+			// Expected.
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.graphics.blocks;
+
+import junit.framework.TestCase;
+
+import com.github.andromeduck.prismatic.graphics.TransformPool;
+import com.github.andromeduck.prismatic.physics.CollisionWorld;
+
+/**
+ * Moves player against a thin wall at x = 0, player box reaching 0.5 from
+ * its center and wall 0.05.
+ */
+public class PlayerBlockTest extends TestCase {
+
+	// Player center touching wall from negative side.
+	private static final float TOUCHING = -0.55f;
+	private static final float TOLERANCE = 0.01f;
+
+	private PlayerBlock mPlayer;
+	private TransformPool mTransforms;
+	private CollisionWorld mWorld;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mTransforms = new TransformPool(16);
+		mWorld = new CollisionWorld(2f);
+		BasicBlock wall = new BasicBlock(mTransforms);
+		wall.setScale(new float[] { 0.1f, 4f, 4f });
+		wall.setBoundsListener(mWorld);
+		mPlayer = new PlayerBlock(mTransforms);
+		mTransforms.update();
+		mWorld.add(wall, CollisionWorld.LAYER_BLOCK);
+	}
+
+	public void testApproachStopsAtWall() {
+		assertEquals(TOUCHING, move(-3f, 5f), TOLERANCE);
+	}
+
+	public void testTouchingBlocksMotionIntoWall() {
+		assertEquals(TOUCHING, move(TOUCHING, 5f), TOLERANCE);
+	}
+
+	public void testOverlappingIsPushedOutAndBlocked() {
+		assertEquals(TOUCHING, move(-0.54f, 5f), TOLERANCE);
+	}
+
+	public void testTouchingMovesAwayFreely() {
+		assertEquals(TOUCHING - 1f, move(TOUCHING, -1f), TOLERANCE);
+	}
+
+	/**
+	 * Places player at given x, moves it by given distance along x axis in
+	 * one update and returns resulting x.
+	 */
+	private float move(float x, float dx) {
+		mPlayer.setPosition(new float[] { x, 0f, 0f });
+		mTransforms.update();
+		mPlayer.update(16f, new float[] { dx, 0f, 0f }, mWorld);
+		mTransforms.update();
+		return mPlayer.getPosition()[0];
+	}
+
+}
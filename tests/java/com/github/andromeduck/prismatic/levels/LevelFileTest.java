@@ -0,0 +1,124 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.levels;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+import com.github.andromeduck.prismatic.graphics.TransformPool;
+import com.github.andromeduck.prismatic.graphics.blocks.BasicBlock;
+
+/**
+ * Writes level files with LevelWriter and reads them back, corrupted ones
+ * included.
+ */
+public class LevelFileTest extends TestCase {
+
+	// Header offsets of platform, chunk and record counts.
+	private static final int PLATFORM_COUNT = 28;
+	private static final int CHUNK_COUNT = 32;
+	private static final int RECORD_COUNT = 36;
+
+	private File mPath;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mPath = File.createTempFile("level", ".level");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mPath.delete();
+		super.tearDown();
+	}
+
+	public void testRoundTrip() throws IOException {
+		LevelWriter writer = new LevelWriter();
+		int platform = writer.addPlatform(new float[] { 1f, 2f, 3f },
+				LevelFile.PLATFORM_STATIC);
+		writer.addBlock(platform, new float[] { 0.5f, 0f, 0.5f },
+				new float[] { 1f, 2f, 1f }, new float[3], new float[] { 1f,
+						0f, 0f }, LevelFile.BLOCK_DECORATION);
+		writer.write(mPath, 8f);
+
+		LevelFile file = LevelFile.open(mPath);
+		assertEquals(1, file.getChunkCount());
+		assertEquals(1, file.getChunkRecordCount(0));
+		assertTrue(file.isPlatformStatic(file.getChunkPlatform(0)));
+		BasicBlock block = new BasicBlock(new TransformPool(16));
+		assertTrue(file.loadBlock(0, 0, block));
+		assertEquals(0.5f, block.getPosition()[0], 0f);
+		assertEquals(2f, block.getScale()[1], 0f);
+	}
+
+	public void testNegativeCountRejected() throws IOException {
+		writeLevel();
+		assertCorrupt(CHUNK_COUNT, -1);
+	}
+
+	public void testOverflowingCountRejected() throws IOException {
+		// Sizes of both counts wrap around to small ones in int arithmetic.
+		writeLevel();
+		assertCorrupt(PLATFORM_COUNT, 0x10000000);
+		writeLevel();
+		assertCorrupt(RECORD_COUNT, 0x2E8BA2E9);
+	}
+
+	public void testOutOfRangeCellRejected() throws IOException {
+		LevelWriter writer = new LevelWriter();
+		int platform = writer.addPlatform(new float[] { 1e6f, 0f, 0f }, 0);
+		writer.addBlock(platform, new float[3], new float[] { 1f, 1f, 1f },
+				new float[3], new float[3], 0);
+		try {
+			writer.write(mPath, 8f);
+			fail("Block out of level bounds written");
+		} catch (IllegalArgumentException ex) {
+			// Expected.
+		}
+	}
+
+	private void assertCorrupt(int offset, int value) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(mPath, "rw");
+		try {
+			file.seek(offset);
+			file.writeInt(Integer.reverseBytes(value));
+		} finally {
+			file.close();
+		}
+		try {
+			LevelFile.open(mPath);
+			fail("Corrupt level file opened");
+		} catch (IOException ex) {
+			// Expected.
+		}
+	}
+
+	private void writeLevel() throws IOException {
+		LevelWriter writer = new LevelWriter();
+		int platform = writer.addPlatform(new float[3], 0);
+		for (int i = 0; i < 4; ++i) {
+			writer.addBlock(platform, new float[] { i * 10f, 0f, 0f },
+					new float[] { 1f, 1f, 1f }, new float[3], new float[3], 0);
+		}
+		writer.write(mPath, 8f);
+	}
+
+}
@@ -0,0 +1,136 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.levels;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+/**
+ * Walks a point across a 40000 block level file and checks which chunks
+ * are resident after every update.
+ */
+public class LevelStreamerTest extends TestCase {
+
+	private static final float CHUNK_SIZE = 8f;
+	// Blocks per level side.
+	private static final int LEVEL_SIZE = 200;
+	private static final float RADIUS = 16f;
+	// Unload distance of LevelStreamer.
+	private static final float HYSTERESIS = 2f;
+	private static final int MAX_LOADS_PER_UPDATE = 2;
+	// Resident blocks allowed while walking, chunks overlapping a disc of
+	// radius plus hysteresis hold about 1700.
+	private static final int MAX_RESIDENT_BLOCKS = 2500;
+
+	private final float[] mBounds = new float[4];
+	private LevelFile mFile;
+	private Level mLevel;
+	private File mPath;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		LevelWriter writer = new LevelWriter();
+		int platform = writer.addPlatform(new float[] { 0f, 0f, 0f },
+				LevelFile.PLATFORM_STATIC);
+		float[] position = new float[3];
+		float[] scale = { 1f, 1f, 1f };
+		float[] rotation = new float[3];
+		float[] color = { 0.5f, 0.5f, 0.5f };
+		for (int x = 0; x < LEVEL_SIZE; ++x) {
+			for (int z = 0; z < LEVEL_SIZE; ++z) {
+				position[0] = x + 0.5f;
+				position[2] = z + 0.5f;
+				writer.addBlock(platform, position, scale, rotation, color, 0);
+			}
+		}
+		mPath = File.createTempFile("streamer", ".level");
+		writer.write(mPath, CHUNK_SIZE);
+		mFile = LevelFile.open(mPath);
+		mLevel = new Level() {
+			@Override
+			public int getRenderMode() {
+				return MODE_SHADOWMAP;
+			}
+		};
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mLevel.release();
+		mPath.delete();
+		super.tearDown();
+	}
+
+	public void testWalkAcrossLevel() {
+		LevelStreamer streamer = new LevelStreamer(mLevel, mFile, RADIUS);
+		float[] point = new float[3];
+		for (int step = 0; step <= LEVEL_SIZE; ++step) {
+			point[0] = step;
+			point[2] = step;
+			int before = streamer.getLoadedCount();
+			int inside = 0;
+			for (int chunk = 0; chunk < mFile.getChunkCount(); ++chunk) {
+				if (distance(chunk, point) <= 0f) {
+					++inside;
+				}
+			}
+			streamer.update(point);
+
+			// Loads are limited by budget, except chunks the point is in.
+			assertTrue("Step " + step + " loaded too many chunks",
+					streamer.getLoadedCount() - before <= Math.max(
+							MAX_LOADS_PER_UPDATE, inside));
+			assertEquals(streamer.getLoadedCount(), mLevel.getPlatforms()
+					.size());
+
+			int resident = 0;
+			for (int i = 0; i < mLevel.getPlatforms().size(); ++i) {
+				resident += mLevel.getPlatforms().get(i).getBlocks().size();
+			}
+			assertTrue("Step " + step + " has " + resident
+					+ " resident blocks", resident <= MAX_RESIDENT_BLOCKS);
+		}
+
+		// Once point stands still, all chunks in range get loaded and none
+		// out of range stay.
+		for (int i = 0; i < mFile.getChunkCount(); ++i) {
+			streamer.update(point);
+		}
+		for (int chunk = 0; chunk < mFile.getChunkCount(); ++chunk) {
+			float distance = distance(chunk, point);
+			assertTrue("Chunk " + chunk + " in range not loaded",
+					distance > RADIUS || streamer.isLoaded(chunk));
+			assertTrue("Chunk " + chunk + " out of range loaded",
+					distance <= RADIUS + HYSTERESIS || !streamer.isLoaded(chunk));
+		}
+
+		streamer.unloadAll();
+		assertEquals(0, streamer.getLoadedCount());
+		assertEquals(0, mLevel.getPlatforms().size());
+	}
+
+	private float distance(int chunk, float[] point) {
+		mFile.getChunkBounds(chunk, mBounds);
+		float dx = mBounds[0] - point[0];
+		float dy = mBounds[1] - point[1];
+		float dz = mBounds[2] - point[2];
+		return (float) Math.sqrt(dx * dx + dy * dy + dz * dz) - mBounds[3];
+	}
+
+}
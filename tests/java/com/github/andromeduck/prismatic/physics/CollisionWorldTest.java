@@ -0,0 +1,127 @@
+/*
+   Copyright 2014 James Deng
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.andromeduck.prismatic.physics;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.github.andromeduck.prismatic.graphics.TransformPool;
+import com.github.andromeduck.prismatic.graphics.blocks.BasicBlock;
+import com.github.andromeduck.prismatic.graphics.blocks.Drawable;
+
+/**
+ * Checks CollisionWorld queries against brute force over randomly placed,
+ * moved and removed colliders of mixed sizes, oversized ones included.
+ */
+public class CollisionWorldTest extends TestCase {
+
+	private static final int BLOCK_COUNT = 3000;
+	private static final float EXTENT = 50f;
+	private static final int QUERY_COUNT = 2000;
+
+	private final List<BasicBlock> mBlocks = new ArrayList<BasicBlock>();
+	private final IdentityHashMap<Drawable, Integer> mLayers = new IdentityHashMap<Drawable, Integer>();
+	private final Random mRandom = new Random(1);
+	private TransformPool mTransforms;
+	private CollisionWorld mWorld;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mTransforms = new TransformPool(BLOCK_COUNT);
+		mWorld = new CollisionWorld(2f);
+		for (int i = 0; i < BLOCK_COUNT; ++i) {
+			BasicBlock block = new BasicBlock(mTransforms);
+			float size = mRandom.nextFloat() < 0.02f ? 20f : 0.2f + mRandom
+					.nextFloat() * 2f;
+			block.setScale(new float[] { size, size, size });
+			block.setPosition(randomPoint());
+			block.setBoundsListener(mWorld);
+			mBlocks.add(block);
+		}
+		mTransforms.update();
+		for (int i = 0; i < mBlocks.size(); ++i) {
+			int layer = i % 3 == 0 ? CollisionWorld.LAYER_DECORATION
+					: CollisionWorld.LAYER_BLOCK;
+			mWorld.add(mBlocks.get(i), layer);
+			mLayers.put(mBlocks.get(i), layer);
+		}
+	}
+
+	public void testQueryMatchesBruteForce() {
+		float[] sphere = new float[4];
+		for (int i = 0; i < QUERY_COUNT; ++i) {
+			// Move one collider per query and remove some, so that lazy
+			// rebinning and free slots are exercised too.
+			BasicBlock moved = mBlocks.get(mRandom.nextInt(mBlocks.size()));
+			moved.setPosition(randomPoint());
+			if (i % 7 == 0) {
+				BasicBlock removed = mBlocks.remove(mRandom.nextInt(mBlocks
+						.size()));
+				assertTrue(mWorld.remove(removed));
+				mLayers.remove(removed);
+			}
+			mTransforms.update();
+
+			float[] center = randomPoint();
+			System.arraycopy(center, 0, sphere, 0, 3);
+			sphere[3] = 1f + mRandom.nextFloat() * 3f;
+			int layers = i % 5 == 0 ? CollisionWorld.LAYER_BLOCK
+					: CollisionWorld.LAYER_BLOCK | CollisionWorld.LAYER_DECORATION;
+			int count = mWorld.query(sphere, layers);
+			assertEquals(count, mWorld.getResultCount());
+
+			IdentityHashMap<Drawable, Boolean> found = new IdentityHashMap<Drawable, Boolean>();
+			Drawable[] result = mWorld.getResult();
+			for (int j = 0; j < count; ++j) {
+				assertNull("Reported twice", found.put(result[j], true));
+				assertTrue("Removed collider reported",
+						mLayers.containsKey(result[j]));
+			}
+
+			int expected = 0;
+			for (int j = 0; j < mBlocks.size(); ++j) {
+				BasicBlock block = mBlocks.get(j);
+				if ((mLayers.get(block) & layers) == 0
+						|| !intersects(block.getBoundingSphere(), sphere)) {
+					continue;
+				}
+				++expected;
+				assertTrue("Query " + i + " missed collider",
+						found.containsKey(block));
+			}
+			assertEquals("Query " + i, expected, count);
+		}
+	}
+
+	private static boolean intersects(float[] a, float[] b) {
+		float dx = a[0] - b[0], dy = a[1] - b[1], dz = a[2] - b[2];
+		float r = a[3] + b[3];
+		return dx * dx + dy * dy + dz * dz <= r * r;
+	}
+
+	private float[] randomPoint() {
+		return new float[] { (mRandom.nextFloat() * 2f - 1f) * EXTENT,
+				(mRandom.nextFloat() * 2f - 1f) * EXTENT,
+				(mRandom.nextFloat() * 2f - 1f) * EXTENT };
+	}
+
+}